@@ -0,0 +1,136 @@
+package http;
+
+import main.HttpFileServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A real HttpServer over loopback, on each engine, serving a small cached file to concurrent
+ * clients: throughput, and the latency distribution (SampleTime reports percentiles), on
+ * persistent connections and with a connection per request.
+ *
+ * The server cannot be stopped, so the forked JVM is halted as soon as the run is over.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djmh.shutdownTimeout=1")
+@Threads(4)
+public class LoopbackBenchmark {
+
+    private static final String PATH = "/index.html";
+
+    @State(Scope.Benchmark)
+    public static class Server {
+
+        @Param({ "BLOCKING", "NIO" })
+        Engine engine;
+
+        InetSocketAddress address;
+        private Path root;
+
+        @Setup
+        public void setUp() throws Exception {
+            root = Files.createTempDirectory("loopback-benchmark");
+            Files.writeString(root.resolve(PATH.substring(1)), "<html><body>" + "x".repeat(1000) + "</body></html>\n");
+
+            int port;
+            try (ServerSocket probe = new ServerSocket(0)) {
+                port = probe.getLocalPort();
+            }
+            HttpServer server = new HttpServer.Builder(port, new HttpFileServer(root.toString()))
+                    .engine(engine)
+                    .maxRequestsPerConnection(Integer.MAX_VALUE)
+                    .build();
+            Thread thread = new Thread(() -> {
+                try {
+                    server.run();
+                }
+                catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }, "loopback-server");
+            thread.setDaemon(true);
+            thread.start();
+
+            address = new InetSocketAddress("127.0.0.1", port);
+            waitUntilListening(address);
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            Files.deleteIfExists(root.resolve(PATH.substring(1)));
+            Files.deleteIfExists(root);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class KeepAliveClient {
+
+        LoopbackClient client;
+
+        @Setup
+        public void setUp(Server server) {
+            client = new LoopbackClient(server.address, PATH, true);
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            client.close();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class CloseClient {
+
+        LoopbackClient client;
+
+        @Setup
+        public void setUp(Server server) {
+            client = new LoopbackClient(server.address, PATH, false);
+        }
+    }
+
+    @Benchmark
+    public int keepAlive(KeepAliveClient client) throws IOException {
+        return client.client.get();
+    }
+
+    @Benchmark
+    public int connectionPerRequest(CloseClient client) throws IOException {
+        return client.client.get();
+    }
+
+    private static void waitUntilListening(InetSocketAddress address) throws InterruptedException {
+        for (int attempt = 0; attempt < 100; ++attempt) {
+            try (Socket socket = new Socket()) {
+                socket.connect(address, 100);
+                return;
+            }
+            catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+        throw new IllegalStateException("Server did not start on " + address);
+    }
+}
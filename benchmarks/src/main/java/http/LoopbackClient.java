@@ -0,0 +1,101 @@
+package http;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Minimal HTTP client for the loopback benchmarks: sends a GET and reads the response, whose
+ * length must be given by Content-Length. Reconnects when the server closed the connection.
+ */
+public class LoopbackClient implements AutoCloseable {
+
+    private final InetSocketAddress address;
+    private final byte[] request;
+    private final boolean keepAlive;
+    private final byte[] body = new byte[64 * 1024];
+    private Socket socket;
+    private InputStream in;
+    private OutputStream out;
+
+    public LoopbackClient(InetSocketAddress address, String path, boolean keepAlive) {
+        this.address = address;
+        this.keepAlive = keepAlive;
+        String version = keepAlive ? HttpServer.VERSION_1_1 : HttpServer.VERSION_1_0;
+        this.request = ("GET " + path + " " + version + "\r\nHost: localhost\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Sends the request and reads the whole response. Returns the status code.
+     */
+    public int get() throws IOException {
+
+        if (socket == null) {
+            connect();
+        }
+        out.write(request);
+        out.flush();
+
+        int status = -1;
+        long contentLength = 0;
+        boolean close = !keepAlive;
+        StringBuilder line = new StringBuilder(64);
+        while (true) {
+            int c = in.read();
+            if (c == -1) {
+                throw new IOException("Connection closed in the response header");
+            }
+            if (c != '\n') {
+                if (c != '\r') line.append((char) c);
+                continue;
+            }
+            if (line.length() == 0) {
+                break; // end of header
+            }
+            String header = line.toString();
+            if (status == -1) {
+                status = Integer.parseInt(header.substring(9, 12));
+            }
+            else if (header.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+                contentLength = Long.parseLong(header.substring(15).trim());
+            }
+            else if (header.equalsIgnoreCase("Connection: close")) {
+                close = true;
+            }
+            line.setLength(0);
+        }
+
+        while (contentLength > 0) {
+            int count = in.read(body, 0, (int) Math.min(body.length, contentLength));
+            if (count == -1) {
+                throw new IOException("Connection closed in the response body");
+            }
+            contentLength -= count;
+        }
+
+        if (close) {
+            close();
+        }
+        return status;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (socket != null) {
+            socket.close();
+            socket = null;
+        }
+    }
+
+    private void connect() throws IOException {
+        socket = new Socket();
+        socket.setTcpNoDelay(true);
+        socket.connect(address);
+        in = new BufferedInputStream(socket.getInputStream(), 16 * 1024);
+        out = socket.getOutputStream();
+    }
+}
@@ -0,0 +1,102 @@
+package http;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Request header parsing: HttpServer.extractRequest over a byte stream (blocking engine), the
+ * parser fed one buffer (nio engine) or 16 byte fragments, and the former character stream
+ * parsing for reference (which only knows HTTP/1.0, hence the version of the requests).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RequestParsingBenchmark {
+
+    private static final int FRAGMENT_SIZE = 16;
+
+    static final Map<String, String> REQUESTS = Map.of(
+            "small",
+            "GET /index.html HTTP/1.0\r\n\r\n",
+            "browser",
+            "GET /docs/report.json?offset=100&limit=50 HTTP/1.0\r\n" +
+            "Host: localhost:8080\r\n" +
+            "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:109.0) Gecko/20100101 Firefox/115.0\r\n" +
+            "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n" +
+            "Accept-Language: en-US,en;q=0.5\r\n" +
+            "Accept-Encoding: gzip, deflate\r\n" +
+            "If-None-Match: \"1a95e-18df7c6aedb6fd1a\"\r\n" +
+            "Cache-Control: max-age=0\r\n\r\n",
+            "post",
+            "POST /upload/data.txt HTTP/1.0\r\n" +
+            "Host: localhost:8080\r\n" +
+            "Content-Type: text/plain\r\n" +
+            "Content-Length: 1024\r\n\r\n" + "x".repeat(1024));
+
+    @Param({ "small", "browser", "post" })
+    String request;
+
+    private byte[] raw;
+    private ByteBuffer buffer;
+    private HttpRequestParser parser;
+
+    @Setup
+    public void setUp() {
+        raw = REQUESTS.get(request).getBytes(StandardCharsets.ISO_8859_1);
+        buffer = ByteBuffer.allocate(8192);
+        parser = new HttpRequestParser();
+    }
+
+    @Benchmark
+    public HttpRequest extractRequest() throws Exception {
+        buffer.clear().flip(); // empty, in read mode
+        return HttpServer.extractRequest(new ByteArrayInputStream(raw), buffer, parser);
+    }
+
+    @Benchmark
+    public HttpRequest parseBuffer() throws Exception {
+        parser.reset();
+        parser.parse(ByteBuffer.wrap(raw));
+        return parser.getRequest();
+    }
+
+    /**
+     * The same request arriving 16 bytes at a time, as successive socket reads of a slow client would.
+     */
+    @Benchmark
+    public HttpRequest parseFragments() throws Exception {
+        parser.reset();
+        ByteBuffer fragments = ByteBuffer.wrap(raw, 0, Math.min(FRAGMENT_SIZE, raw.length));
+        while (!parser.parse(fragments)) {
+            fragments.limit(Math.min(fragments.limit() + FRAGMENT_SIZE, raw.length));
+        }
+        return parser.getRequest();
+    }
+
+    @Benchmark
+    @SuppressWarnings("deprecation")
+    public HttpRequest extractRequestReader() throws Exception {
+        return HttpServer.extractRequest(new BufferedReader(
+                new InputStreamReader(new ByteArrayInputStream(raw), StandardCharsets.ISO_8859_1)));
+    }
+}
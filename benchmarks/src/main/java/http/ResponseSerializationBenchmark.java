@@ -0,0 +1,71 @@
+package http;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building and serializing responses: an error from its template, a file response with the
+ * headers HttpFileServer sets, as toString() and as the bytes written to a channel.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ResponseSerializationBenchmark {
+
+    private static final String MESSAGE = "Resource does not exist.\n";
+    private static final byte[] FILE_CONTENT = new byte[4096];
+
+    private final DiscardingChannel channel = new DiscardingChannel();
+
+    @Benchmark
+    public String errorToString() {
+        return HttpServer.getErrorResponse(HttpResponse.NOT_FOUND_404, MESSAGE).toString();
+    }
+
+    @Benchmark
+    public long errorWrite() throws Exception {
+        HttpResponse response = HttpServer.getErrorResponse(HttpResponse.NOT_FOUND_404, MESSAGE);
+        response.setHttpVersion(HttpServer.VERSION_1_1);
+        response.writeTo(channel);
+        return channel.count;
+    }
+
+    @Benchmark
+    public String fileToString() {
+        return newFileResponse().toString();
+    }
+
+    @Benchmark
+    public long fileWrite() throws Exception {
+        HttpResponse response = newFileResponse();
+        response.setHttpVersion(HttpServer.VERSION_1_1);
+        response.writeTo(channel);
+        response.close();
+        return channel.count;
+    }
+
+    private static HttpResponse newFileResponse() {
+        return new HttpResponse.Builder(HttpServer.VERSION_1_0)
+                .statusCodeAndReasonPhrase(HttpResponse.OK_200)
+                .date(HttpDate.now())
+                .contentType(HttpResponse.contentTypeJson)
+                .contentDisposition("inline")
+                .body(ResponseBody.of(FILE_CONTENT))
+                .header("Accept-Ranges", "bytes")
+                .header("ETag", "\"1000-18df7c6aedb6fd1a\"")
+                .header("Last-Modified", "Sun, 18 Oct 2026 01:46:15 GMT")
+                .build();
+    }
+}
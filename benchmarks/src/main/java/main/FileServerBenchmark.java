@@ -0,0 +1,129 @@
+package main;
+
+import http.DiscardingChannel;
+import http.HttpRequest;
+import http.HttpResponse;
+import http.HttpServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * HttpFileServer handlers against a temporary directory, with and without the content cache.
+ * Each GET response is written to a discarding channel and closed, as the server would.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FileServerBenchmark {
+
+    private static final int LISTED_ENTRIES = 1000;
+    private static final int UPLOAD_SIZE = 16 * 1024;
+
+    @Param({ "64", "0" })
+    int cacheMB;
+
+    private Path root;
+    private HttpFileServer fileServer;
+
+    @Setup
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("file-server-benchmark");
+        Files.write(root.resolve("small.txt"), randomText(1024));
+        Files.write(root.resolve("medium.json"), randomText(64 * 1024));
+        Files.write(root.resolve("large.bin"), randomText(4 << 20));
+        Path dir = Files.createDirectory(root.resolve("dir"));
+        for (int i = 0; i < LISTED_ENTRIES; ++i) {
+            Files.write(dir.resolve("entry" + i + ".txt"), new byte[0]);
+        }
+        Files.createDirectory(root.resolve("upload"));
+
+        fileServer = new HttpFileServer(root.toString(), (long) cacheMB << 20);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Target {
+
+        @Param({ "/small.txt", "/medium.json", "/large.bin", "/dir" })
+        String path;
+    }
+
+    @State(Scope.Thread)
+    public static class Upload {
+
+        byte[] content;
+        String uri;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            content = randomText(UPLOAD_SIZE);
+            uri = "/upload/file-" + Thread.currentThread().getId() + ".txt";
+        }
+    }
+
+    @Benchmark
+    public long get(Target target) throws IOException {
+        HttpRequest request = new HttpRequest.Builder(HttpRequest.GET)
+                .requestURI(target.path)
+                .httpVersion(HttpServer.VERSION_1_1)
+                .build();
+        HttpResponse response = fileServer.handleRequest(request);
+        try {
+            DiscardingChannel channel = new DiscardingChannel();
+            response.writeTo(channel);
+            return channel.count;
+        }
+        finally {
+            response.close();
+        }
+    }
+
+    @Benchmark
+    public HttpResponse post(Upload upload) {
+        HttpRequest request = new HttpRequest.Builder(HttpRequest.POST)
+                .requestURI(upload.uri)
+                .httpVersion(HttpServer.VERSION_1_1)
+                .contentLength(upload.content.length)
+                .bodyStream(new ByteArrayInputStream(upload.content))
+                .build();
+        return fileServer.handleRequest(request);
+    }
+
+    private static byte[] randomText(int size) {
+        byte[] text = new byte[size];
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < size; ++i) {
+            text[i] = (byte) ((i % 64 == 63) ? '\n' : 'a' + random.nextInt(26));
+        }
+        return text;
+    }
+}
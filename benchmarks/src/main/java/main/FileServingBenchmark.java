@@ -0,0 +1,144 @@
+package main;
+
+import http.ResponseBody;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends a file over a loopback socket the ways the file server could: copying it through a
+ * heap buffer (the blocking stream path the server started with), with FileChannel.transferTo
+ * on a channel opened per request (TRANSFER mode), from a cached memory mapping (MMAP mode), and
+ * read ahead with an AsynchronousFileChannel (ASYNC mode). The file is read once beforehand so
+ * all of them run from the page cache; the receiving end discards what it reads on its own thread.
+ * The async reads run on the file channel's threads, so the sending thread spends less CPU than
+ * the time per operation suggests.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FileServingBenchmark {
+
+    private static final int STREAM_BUFFER_SIZE = 8192;
+
+    @Param({ "64" })
+    int sizeMB;
+
+    private Path file;
+    private BasicFileAttributes attributes;
+    private MappedFileCache mappedCache;
+    private ServerSocketChannel server;
+    private Thread sink;
+    private SocketChannel socket;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        file = Files.createTempFile("serving-benchmark", ".bin");
+        byte[] block = new byte[1 << 20];
+        new Random(42).nextBytes(block);
+        try (OutputStream out = Files.newOutputStream(file)) {
+            for (int i = 0; i < sizeMB; ++i) {
+                out.write(block);
+            }
+        }
+        Files.readAllBytes(file); // into the page cache
+        attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        mappedCache = new MappedFileCache(MappedFileCache.DEFAULT_MAX_SIZE);
+
+        server = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+        sink = new Thread(() -> {
+            try (SocketChannel client = server.accept()) {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+                while (client.read(buffer) != -1) {
+                    buffer.clear();
+                }
+            }
+            catch (IOException ignored) {
+            }
+        }, "serving-benchmark-sink");
+        sink.start();
+        socket = SocketChannel.open(server.getLocalAddress());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        socket.close();
+        sink.join();
+        server.close();
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public void stream() throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            OutputStream out = Channels.newOutputStream(socket);
+            byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+        }
+    }
+
+    @Benchmark
+    public void transfer() throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long position = 0;
+            long size = channel.size();
+            while (position < size) {
+                position += channel.transferTo(position, size - position, socket);
+            }
+        }
+    }
+
+    @Benchmark
+    public void mmap() throws IOException {
+        MappedFileCache.Mapping mapping = mappedCache.acquire(file, attributes);
+        try {
+            ByteBuffer content = mapping.getContent();
+            while (content.hasRemaining()) {
+                socket.write(content);
+            }
+        }
+        finally {
+            mapping.release();
+        }
+    }
+
+    @Benchmark
+    public void async() throws IOException {
+        try (ResponseBody body = ResponseBody.of(AsynchronousFileChannel.open(file, StandardOpenOption.READ), 0, attributes.size())) {
+            body.writeTo(socket); // blocking socket: waits for the reads
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package main;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * The root directory check every GET and POST goes through, on a path inside the root and on
+ * one escaping it, against the regex check it replaced; and the lookup of a file's attributes,
+ * through the metadata cache and straight from the file system.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PathCheckBenchmark {
+
+    private static final String ROOT = "/srv/www";
+
+    private final PathResolver resolver = new PathResolver(ROOT);
+    private final String inside = "/docs/reports/../2024/summary.json";
+    private final String outside = "/docs/../../etc/passwd";
+
+    private final FileMetadataCache metadataCache = new FileMetadataCache(TimeUnit.HOURS.toMillis(1), FileMetadataCache.DEFAULT_MAX_ENTRIES);
+    private Path file;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        file = Files.createTempFile("path-check", ".txt");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public Path inside() {
+        return resolver.resolve(inside);
+    }
+
+    @Benchmark
+    public Path outside() {
+        return resolver.resolve(outside);
+    }
+
+    @Benchmark
+    public boolean regexInside() {
+        return regexCheck(ROOT + inside);
+    }
+
+    @Benchmark
+    public boolean regexOutside() {
+        return regexCheck(ROOT + outside);
+    }
+
+    @Benchmark
+    public FileMetadataCache.Metadata cachedAttributes() {
+        return metadataCache.get(file);
+    }
+
+    @Benchmark
+    public BasicFileAttributes readAttributes() throws IOException {
+        return Files.readAttributes(file, BasicFileAttributes.class);
+    }
+
+    /**
+     * The check HttpFileServer used to make, compiling a pattern for each request.
+     */
+    private static boolean regexCheck(String path) {
+        Path normalizedPath = Paths.get(path).normalize();
+        String regex = "^" + Pattern.quote(ROOT) + "(" + Pattern.quote(File.separator) + ".*)?$";
+        return normalizedPath.toString().matches(regex);
+    }
+}
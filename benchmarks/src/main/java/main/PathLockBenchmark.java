@@ -0,0 +1,111 @@
+package main;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Contention on the file server locking: one global ReentrantReadWriteLock (as HttpFileServer
+ * used to do) against the per-path PathLockTable, with a mix of readers (GET, short critical
+ * section) and writers (POST, longer critical section), on disjoint paths (each thread its own
+ * files) and on overlapping paths (all threads on a few files). The critical sections are file
+ * system calls, so their work is modelled as a wait.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+public class PathLockBenchmark {
+
+    private static final long READ_WORK_NANOS = 20_000;   // stat + open
+    private static final long WRITE_WORK_NANOS = 200_000; // mkdirs + create + move
+    private static final int WRITE_PERCENTAGE = 10;
+    private static final int OVERLAPPING_PATHS = 4;
+    private static final int PATHS_PER_THREAD = 16;
+
+    @State(Scope.Benchmark)
+    public static class Locking {
+
+        @Param({ "global", "perPath" })
+        String locking;
+
+        @Param({ "disjoint", "overlapping" })
+        String paths;
+
+        private final ReentrantReadWriteLock global = new ReentrantReadWriteLock();
+        private final PathLockTable table = new PathLockTable();
+        private final AtomicInteger threadCount = new AtomicInteger();
+        private boolean perPath;
+        boolean overlapping;
+
+        @Setup
+        public void setUp() {
+            perPath = locking.equals("perPath");
+            overlapping = paths.equals("overlapping");
+        }
+
+        AutoCloseable read(Path path) {
+            if (perPath) {
+                return table.lockForReading(path);
+            }
+            global.readLock().lock();
+            return global.readLock()::unlock;
+        }
+
+        AutoCloseable write(Path path) {
+            if (perPath) {
+                return table.lockForWriting(path.getParent(), path);
+            }
+            global.writeLock().lock();
+            return global.writeLock()::unlock;
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadPaths {
+
+        Path[] paths;
+
+        @Setup
+        public void setUp(Locking locking) {
+            int count = locking.overlapping ? OVERLAPPING_PATHS : PATHS_PER_THREAD;
+            int first = locking.overlapping ? 0 : locking.threadCount.getAndIncrement() * PATHS_PER_THREAD;
+            paths = new Path[count];
+            for (int i = 0; i < count; ++i) {
+                int file = first + i;
+                paths[i] = Paths.get("/srv/files/dir" + (file / PATHS_PER_THREAD), "file" + file + ".txt");
+            }
+        }
+    }
+
+    @Benchmark
+    @SuppressWarnings("try") // the lock is only held, never referenced
+    public void readOrWrite(Locking locking, ThreadPaths files) throws Exception {
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Path path = files.paths[random.nextInt(files.paths.length)];
+        boolean write = random.nextInt(100) < WRITE_PERCENTAGE;
+        try (AutoCloseable lock = write ? locking.write(path) : locking.read(path)) {
+            LockSupport.parkNanos(write ? WRITE_WORK_NANOS : READ_WORK_NANOS);
+        }
+    }
+}
@@ -0,0 +1,457 @@
+package http;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Access log written off the request path. Request threads only capture the fields of an entry
+ * and offer it to a lock-free ring buffer; a background thread drains the buffer, formats the
+ * entries and writes them in batches to a file, rotated by size, or to the standard output.
+ *
+ * A request thread never waits for the log: when the buffer is full (the disk or the console
+ * cannot keep up) the entry is dropped and counted. With a sample rate below 1, only that
+ * fraction of the successful requests is logged; 4xx and 5xx responses are always logged.
+ *
+ * Rotation renames FILE to FILE.1, FILE.1 to FILE.2 and so on, keeping maxFiles files in all.
+ *
+ * The server's verbose messages (connections, socket problems) go through the same buffer, as
+ * lines of their own, so that no request thread waits for the console either.
+ */
+public class AccessLog {
+
+    public static final int DEFAULT_CAPACITY = 8192;
+    public static final long DEFAULT_MAX_FILE_SIZE = 10L << 20;
+    public static final int DEFAULT_MAX_FILES = 5;
+
+    private static final int MAX_BATCH_SIZE = 256;
+    private static final int MAX_BATCH_BYTES = 64 * 1024;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final DateTimeFormatter COMMON_TIME = DateTimeFormatter.ofPattern("dd/MMM/yyyy:HH:mm:ss Z", Locale.ENGLISH)
+            .withZone(ZoneId.systemDefault());
+
+    private final Path file; // null for the standard output
+    private final AccessLogFormat format;
+    private final double sampleRate;
+    private final long maxFileSize;
+    private final int maxFiles;
+    private final RingBuffer<Entry> buffer;
+
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder sampledOut = new LongAdder();
+    private final LongAdder written = new LongAdder(); // entries, updated by the writer thread
+
+    /**
+     * Writer thread state
+     */
+    private WritableByteChannel out;
+    private long fileSize;
+    private final StringBuilder batch = new StringBuilder(MAX_BATCH_BYTES);
+    private volatile Thread writer;
+    private volatile boolean idle = false; // the writer thread is parked, or about to park
+    private volatile boolean closed = false;
+
+    /**
+     * What is logged of a request, captured on the request thread.
+     */
+    private static class Entry {
+        final long time; // ms since the epoch
+        final String message; // null, unless the entry is a verbose message rather than a request
+        final InetAddress client;
+        final String method; // null, and so the other request fields, if the request could not be parsed
+        final String requestURI;
+        final String httpVersion;
+        final String referer;
+        final String userAgent;
+        final int status;
+        final long bytes;
+        final long nanos;
+
+        Entry(InetAddress client, HttpRequest httpRequest, HttpResponse httpResponse, long nanos, boolean headers) {
+            this.time = System.currentTimeMillis();
+            this.message = null;
+            this.client = client;
+            this.method = (httpRequest != null) ? httpRequest.getMethod() : null;
+            this.requestURI = (httpRequest != null) ? httpRequest.getRequestURI() : null;
+            this.httpVersion = (httpRequest != null) ? httpRequest.getHttpVersion() : null;
+            this.referer = (headers && httpRequest != null) ? httpRequest.getHeader("referer") : null;
+            this.userAgent = (headers && httpRequest != null) ? httpRequest.getHeader("user-agent") : null;
+            this.status = httpResponse.getStatusCode();
+            this.bytes = httpResponse.getBytesWritten();
+            this.nanos = nanos;
+        }
+
+        Entry(String message) {
+            this.time = System.currentTimeMillis();
+            this.message = message;
+            this.client = null;
+            this.method = null;
+            this.requestURI = null;
+            this.httpVersion = null;
+            this.referer = null;
+            this.userAgent = null;
+            this.status = 0;
+            this.bytes = 0;
+            this.nanos = 0;
+        }
+    }
+
+    private AccessLog(Builder builder) throws IOException {
+        this.file = builder.file;
+        this.format = builder.format;
+        this.sampleRate = builder.sampleRate;
+        this.maxFileSize = builder.maxFileSize;
+        this.maxFiles = builder.maxFiles;
+        this.buffer = new RingBuffer<>(builder.capacity);
+        openOutput();
+    }
+
+    /**
+     * Starts the writer thread, if not started yet.
+     */
+    public synchronized void start() {
+        if (writer != null) return;
+        writer = new Thread(this::drain, "access-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "access-log-shutdown"));
+    }
+
+    /**
+     * Logs a response written to the client, unless it is sampled out or the buffer is full.
+     * Never blocks.
+     *
+     * @param httpRequest null if the request could not be parsed
+     * @param nanos from the first byte of the request to the last byte of the response
+     */
+    public void log(InetAddress client, HttpRequest httpRequest, HttpResponse httpResponse, long nanos) {
+
+        if (closed) {
+            dropped.increment();
+            return;
+        }
+        if (sampleRate < 1 && httpResponse.getStatusCode() < 400 && ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+            sampledOut.increment();
+            return;
+        }
+        offer(new Entry(client, httpRequest, httpResponse, nanos, format != AccessLogFormat.COMMON));
+    }
+
+    /**
+     * Logs a verbose message, a single line, unless the buffer is full. Never sampled out, never blocks.
+     */
+    public void message(String message) {
+        if (closed) {
+            dropped.increment();
+            return;
+        }
+        offer(new Entry(message));
+    }
+
+    /**
+     * Buffers the entry for the writer thread, waking it up if it is idle, or counts it as dropped.
+     */
+    private void offer(Entry entry) {
+        if (!buffer.offer(entry)) {
+            dropped.increment();
+        }
+        else if (idle) {
+            Thread thread = writer;
+            if (thread != null) {
+                LockSupport.unpark(thread);
+            }
+        }
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public long getSampledOut() {
+        return sampledOut.sum();
+    }
+
+    public long getWritten() {
+        return written.sum();
+    }
+
+    void writeMetrics(MetricsWriter writer) {
+        writer.counter("http_access_log_written_total", "Access log entries written.", getWritten())
+              .counter("http_access_log_dropped_total", "Access log entries dropped because the log could not keep up.", getDropped())
+              .counter("http_access_log_sampled_out_total", "Requests not logged because of sampling.", getSampledOut());
+    }
+
+    /**
+     * Writes the entries still buffered and closes the file. Entries logged afterwards are dropped.
+     */
+    public void close() {
+        if (closed) return;
+        closed = true;
+        Thread thread = writer;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            try {
+                thread.join(1000);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Writer thread: drains the buffer in batches, and parks when it is empty. A request thread
+     * only unparks it when it logs an entry while the writer is idle.
+     */
+    private void drain() {
+        try {
+            while (true) {
+                boolean stopping = closed;
+                int count = writeBatch();
+                if (count == 0) {
+                    if (stopping) break; // empty after closed was seen: nothing more will be written
+                    idle = true;
+                    // checked after idle is set: an entry offered before log() could see idle is not missed
+                    if (buffer.isEmpty() && !closed) {
+                        LockSupport.park(this);
+                    }
+                    idle = false;
+                }
+            }
+        }
+        catch (IOException e) {
+            System.err.println("Access log disabled: " + e.getMessage());
+        }
+        finally {
+            try {
+                if (file != null) out.close();
+            }
+            catch (IOException ignored) {
+            }
+        }
+    }
+
+    private int writeBatch() throws IOException {
+
+        batch.setLength(0);
+        int count = 0;
+        Entry entry;
+        while (count < MAX_BATCH_SIZE && batch.length() < MAX_BATCH_BYTES && (entry = buffer.poll()) != null) {
+            appendEntry(entry);
+            ++count;
+        }
+        if (count == 0) {
+            return 0;
+        }
+
+        ByteBuffer bytes = StandardCharsets.UTF_8.encode(batch.toString());
+        if (file != null && fileSize > 0 && fileSize + bytes.remaining() > maxFileSize) {
+            rotate();
+        }
+        fileSize += bytes.remaining();
+        while (bytes.hasRemaining()) {
+            out.write(bytes);
+        }
+        written.add(count);
+        return count;
+    }
+
+    private void appendEntry(Entry entry) {
+
+        if (entry.message != null) {
+            if (format == AccessLogFormat.JSON) {
+                batch.append("{\"time\":\"").append(Instant.ofEpochMilli(entry.time))
+                     .append("\",\"message\":").append(quote(entry.message)).append("}\n");
+            }
+            else {
+                batch.append('[').append(COMMON_TIME.format(Instant.ofEpochMilli(entry.time))).append("] ");
+                appendEscaped(entry.message);
+                batch.append('\n');
+            }
+            return;
+        }
+
+        String client = (entry.client != null) ? entry.client.getHostAddress() : "-";
+        String status = (entry.status > 0) ? Integer.toString(entry.status) : "-";
+
+        if (format == AccessLogFormat.JSON) {
+            batch.append("{\"time\":\"").append(Instant.ofEpochMilli(entry.time))
+                 .append("\",\"client\":").append(quote(client))
+                 .append(",\"method\":").append(quote(entry.method))
+                 .append(",\"uri\":").append(quote(entry.requestURI))
+                 .append(",\"version\":").append(quote(entry.httpVersion))
+                 .append(",\"status\":").append(entry.status)
+                 .append(",\"bytes\":").append(entry.bytes)
+                 .append(",\"duration_us\":").append(entry.nanos / 1000)
+                 .append(",\"referer\":").append(quote(entry.referer))
+                 .append(",\"user_agent\":").append(quote(entry.userAgent))
+                 .append("}\n");
+            return;
+        }
+
+        batch.append(client).append(" - - [").append(COMMON_TIME.format(Instant.ofEpochMilli(entry.time))).append("] \"");
+        if (entry.method != null) {
+            appendEscaped(entry.method);
+            batch.append(' ');
+            appendEscaped(entry.requestURI);
+            batch.append(' ');
+            appendEscaped(entry.httpVersion);
+        }
+        else {
+            batch.append('-');
+        }
+        batch.append("\" ").append(status).append(' ').append(entry.bytes);
+        if (format == AccessLogFormat.COMBINED) {
+            batch.append(" \"");
+            appendEscaped((entry.referer != null) ? entry.referer : "-");
+            batch.append("\" \"");
+            appendEscaped((entry.userAgent != null) ? entry.userAgent : "-");
+            batch.append('"');
+        }
+        batch.append('\n');
+    }
+
+    /**
+     * Appends a field of the common and combined formats the way Apache httpd logs it: quotes and
+     * backslashes are escaped with a backslash, and bytes other than printable ASCII as \xHH,
+     * so that a client cannot end a field or an entry early.
+     */
+    private void appendEscaped(String value) {
+        for (int i = 0; i < value.length(); ++i) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                batch.append('\\').append(c);
+            }
+            else if (c >= 0x20 && c < 0x7f) {
+                batch.append(c);
+            }
+            else if (c <= 0xff) {
+                appendHex(c); // the request is decoded as ISO-8859-1: one char per byte
+            }
+            else {
+                for (byte b : String.valueOf(c).getBytes(StandardCharsets.UTF_8)) {
+                    appendHex(b & 0xff);
+                }
+            }
+        }
+    }
+
+    private void appendHex(int b) {
+        batch.append("\\x").append(HEX_DIGITS[b >> 4]).append(HEX_DIGITS[b & 0xf]);
+    }
+
+    private static String quote(String value) {
+        if (value == null) return "null";
+        StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); ++i) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            }
+            else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            }
+            else quoted.append(c);
+        }
+        return quoted.append('"').toString();
+    }
+
+    private void openOutput() throws IOException {
+        if (file == null) {
+            out = new FileOutputStream(FileDescriptor.out).getChannel(); // unbuffered, not closed
+            return;
+        }
+        out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        fileSize = Files.size(file);
+    }
+
+    private void rotate() throws IOException {
+        out.close();
+        Files.deleteIfExists(rotated(maxFiles - 1));
+        for (int i = maxFiles - 2; i >= 1; --i) {
+            if (Files.exists(rotated(i))) {
+                Files.move(rotated(i), rotated(i + 1), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        if (maxFiles > 1) {
+            Files.move(file, rotated(1), StandardCopyOption.REPLACE_EXISTING);
+        }
+        else {
+            Files.deleteIfExists(file);
+        }
+        openOutput();
+    }
+
+    private Path rotated(int index) {
+        return file.resolveSibling(file.getFileName() + "." + index);
+    }
+
+    public static class Builder {
+        private Path file;
+        private AccessLogFormat format = AccessLogFormat.COMMON;
+        private double sampleRate = 1;
+        private int capacity = DEFAULT_CAPACITY;
+        private long maxFileSize = DEFAULT_MAX_FILE_SIZE;
+        private int maxFiles = DEFAULT_MAX_FILES;
+
+        /**
+         * @param file null to log to the standard output
+         */
+        public Builder(Path file) {
+            this.file = file;
+        }
+
+        public Builder format(AccessLogFormat format) {
+            this.format = format;
+            return this;
+        }
+
+        /**
+         * Fraction of the successful requests logged, between 0 and 1.
+         */
+        public Builder sampleRate(double rate) {
+            this.sampleRate = rate;
+            return this;
+        }
+
+        /**
+         * Number of entries buffered for the writer thread, beyond which entries are dropped.
+         */
+        public Builder capacity(int capacity) {
+            this.capacity = capacity;
+            return this;
+        }
+
+        /**
+         * Size at which the file is rotated, and number of files kept, the current one included.
+         */
+        public Builder rotation(long maxFileSize, int maxFiles) {
+            this.maxFileSize = maxFileSize;
+            this.maxFiles = maxFiles;
+            return this;
+        }
+
+        /**
+         * Opens the file, appending to it if it exists.
+         */
+        public AccessLog build() throws IOException {
+            return new AccessLog(this);
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package http;
+
+/**
+ * Line format of the access log.
+ */
+public enum AccessLogFormat {
+
+    /**
+     * Common Log Format: client, time, request line, status and bytes sent.
+     */
+    COMMON,
+
+    /**
+     * Common Log Format followed by the Referer and User-Agent headers, as Apache's "combined".
+     */
+    COMBINED,
+
+    /**
+     * One JSON object per line, with the request duration in microseconds.
+     */
+    JSON
+}
@@ -0,0 +1,241 @@
+package http;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.Channels;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Body read from a file with an AsynchronousFileChannel while it is written, two pooled direct
+ * buffers at a time: one is written to the connection while the file is read into the other.
+ * The first read starts when the body is built, so it overlaps the handler and the header, or,
+ * for a deferred body, when it is first written.
+ *
+ * The thread writing the body never waits for the disk on a non-blocking channel: writeTo()
+ * returns false when the next buffer is not read yet, and whenReady() tells when it is. On a
+ * blocking channel or a stream, writeTo() waits for the reads instead, as a blocking write would.
+ */
+class AsyncFileBody implements ResponseBody {
+
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    private final AsynchronousFileChannel file;
+    private final long length;
+    private final long end;
+    private final BufferPool pool = BufferPool.DIRECT;
+
+    /**
+     * Writer state
+     */
+    private ByteBuffer current; // being written, in read mode; null between buffers
+    private long written = 0;
+
+    /**
+     * Read state, shared with the file channel's completion threads; guarded by this
+     */
+    private ByteBuffer next; // being read into, or read and waiting (flipped); null if none
+    private long readPosition;
+    private boolean reading = false;
+    private IOException failure;
+    private Runnable readyCallback;
+    private boolean started = false; // first read
+    private boolean closed = false;
+
+    private final CompletionHandler<Integer, Void> readHandler = new CompletionHandler<>() {
+
+        @Override
+        public void completed(Integer count, Void attachment) {
+            Runnable callback;
+            synchronized (AsyncFileBody.this) {
+                if (closed) {
+                    releaseNext();
+                    return;
+                }
+                if (count < 0) {
+                    failure = new EOFException("File shrank while being sent");
+                }
+                else {
+                    readPosition += count;
+                    if (next.hasRemaining()) {
+                        file.read(next, readPosition, null, this); // short read: fill the buffer
+                        return;
+                    }
+                    next.flip();
+                }
+                callback = readDone();
+            }
+            if (callback != null) callback.run();
+        }
+
+        @Override
+        public void failed(Throwable e, Void attachment) {
+            Runnable callback;
+            synchronized (AsyncFileBody.this) {
+                if (closed) {
+                    releaseNext();
+                    return;
+                }
+                failure = (e instanceof IOException) ? (IOException) e : new IOException(e);
+                callback = readDone();
+            }
+            if (callback != null) callback.run();
+        }
+    };
+
+    /**
+     * @param deferred whether the first read waits for the body to be written, rather than starting at once
+     */
+    AsyncFileBody(AsynchronousFileChannel file, long position, long count, boolean deferred) {
+        this.file = file;
+        this.readPosition = position;
+        this.end = position + count;
+        this.length = count;
+        if (!deferred) {
+            synchronized (this) {
+                startRead();
+            }
+        }
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public boolean writeTo(WritableByteChannel channel) throws IOException {
+
+        boolean blocking = !(channel instanceof SelectableChannel) || ((SelectableChannel) channel).isBlocking();
+        while (true) {
+            if (current == null) {
+                if (written == length) {
+                    return true;
+                }
+                synchronized (this) {
+                    if (!started) {
+                        startRead();
+                    }
+                    if (blocking) {
+                        awaitRead();
+                    }
+                    if (failure != null) {
+                        throw failure;
+                    }
+                    if (reading || next == null) {
+                        return false; // the disk is behind the connection, see whenReady()
+                    }
+                    current = next;
+                    next = null;
+                    startRead(); // the following buffer, while this one is written
+                }
+            }
+            while (current.hasRemaining()) {
+                int count = channel.write(current);
+                if (count == 0) {
+                    return false;
+                }
+                written += count;
+            }
+            pool.release(current);
+            current = null;
+        }
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        WritableByteChannel channel = Channels.newChannel(out);
+        while (!writeTo(channel)) {
+        }
+    }
+
+    /**
+     * Calls back, from a file channel thread or at once, when the next buffer is read, if writeTo()
+     * returned false because of the disk. Returns false if it returned false because of the channel.
+     */
+    @Override
+    public boolean whenReady(Runnable callback) {
+        synchronized (this) {
+            if (current != null) {
+                return false;
+            }
+            if (!started) {
+                startRead();
+            }
+            if (reading) {
+                readyCallback = callback;
+                return true;
+            }
+        }
+        callback.run(); // read, or failed, meanwhile
+        return true;
+    }
+
+    /**
+     * Stops the reads and closes the file; a read in progress gives its buffer back when it ends.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            if (current != null) {
+                pool.release(current);
+                current = null;
+            }
+            if (!reading) {
+                releaseNext();
+            }
+        }
+        file.close();
+    }
+
+    /**
+     * Reads the next part of the file, if any. Called holding the lock.
+     */
+    private void startRead() {
+        started = true;
+        if (readPosition >= end || closed) {
+            return;
+        }
+        next = pool.acquire(BUFFER_SIZE);
+        next.limit((int) Math.min(next.capacity(), end - readPosition));
+        reading = true;
+        file.read(next, readPosition, null, readHandler);
+    }
+
+    /**
+     * Ends a read, returning the callback to run once the lock is released. Called holding the lock.
+     */
+    private Runnable readDone() {
+        reading = false;
+        notifyAll();
+        Runnable callback = readyCallback;
+        readyCallback = null;
+        return callback;
+    }
+
+    private void awaitRead() throws IOException {
+        try {
+            while (reading) {
+                wait();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading the file");
+        }
+    }
+
+    private void releaseNext() {
+        if (next != null) {
+            pool.release(next);
+            next = null;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package http;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+
+/**
+ * Request handler that answers later: the server does not wait on a thread of its own for the
+ * response, it writes it when the stage completes. A stage completing exceptionally is answered
+ * like a handler throwing the exception.
+ *
+ * handleRequestAsync() is called on a connection thread, an event loop thread with the NIO
+ * engine, so it must return quickly and do its work elsewhere. The request body, if any, may be
+ * read until the stage completes; the server releases it afterwards.
+ *
+ * When the server has a request timeout, a stage that has not completed by then is answered
+ * 504, or 503 if a handler adapted with of(handler, executor) has not even started, in which case
+ * it never runs. A handler that has started is not interrupted: its response, when it comes, is
+ * discarded, and the body is released only then.
+ */
+public interface AsyncHttpRequestHandler {
+
+    CompletionStage<HttpResponse> handleRequestAsync(HttpRequest httpRequest);
+
+    /**
+     * Adapts a synchronous handler, called on the connection thread: the returned stage is
+     * already complete.
+     */
+    static AsyncHttpRequestHandler of(HttpRequestHandler requestHandler) {
+        return httpRequest -> {
+            try {
+                return CompletableFuture.completedFuture(requestHandler.handleRequest(httpRequest));
+            }
+            catch (Exception e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        };
+    }
+
+    /**
+     * Adapts a synchronous handler, called on the given executor, e.g. a pool sized for blocking
+     * disk I/O. A request the executor rejects is answered 503 at once.
+     */
+    static AsyncHttpRequestHandler of(HttpRequestHandler requestHandler, Executor executor) {
+        return httpRequest -> SyncHandlerTask.submit(requestHandler, httpRequest, executor);
+    }
+}
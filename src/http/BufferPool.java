@@ -0,0 +1,326 @@
+package http;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Byte buffers in size classes from 4 KB to 64 KB, recycled rather than allocated for each
+ * connection or request: the connections' read buffers, the request bodies staged in memory, the
+ * upload buffers and the file read buffers. At high request rates these allocations are most of
+ * the garbage collector's work, and a direct buffer is costly to allocate and slow to be freed.
+ *
+ * Each thread keeps a couple of buffers per class for itself, taken and given back without any
+ * synchronization; beyond those, buffers go to a free list per class shared by all threads and
+ * bounded in bytes, past which they are left to the garbage collector. Virtual threads, too many
+ * and too short-lived to keep buffers, only use the shared lists. A buffer larger than the largest
+ * class is allocated, and dropped when released.
+ *
+ * A buffer must be released exactly once, and not used afterwards. In debug mode
+ * (-Dhttpfs.bufferPool.debug=true) every buffer handed out is tracked: one collected without
+ * having been released is reported as a leak with the stack of its acquisition, and one released
+ * twice is reported and not pooled again.
+ */
+public class BufferPool implements BufferPoolMBean {
+
+    public static final BufferPool HEAP = new BufferPool("heap", false);
+    public static final BufferPool DIRECT = new BufferPool("direct", true);
+
+    static final boolean DEBUG = Boolean.getBoolean("httpfs.bufferPool.debug");
+
+    private static final int MIN_SIZE_SHIFT = 12; // 4 KB
+    private static final int MAX_SIZE_SHIFT = 16; // 64 KB
+    private static final int CLASS_COUNT = MAX_SIZE_SHIFT - MIN_SIZE_SHIFT + 1;
+    private static final int THREAD_CACHE_SIZE = 2; // buffers per class and thread
+    private static final long MAX_POOLED_BYTES_PER_CLASS = 4L << 20;
+    private static final MethodHandle IS_VIRTUAL = findIsVirtual();
+
+    private final String name;
+    private final boolean direct;
+    private final SizeClass[] classes = new SizeClass[CLASS_COUNT];
+    private final ThreadLocal<ByteBuffer[][]> threadCaches = ThreadLocal.withInitial(() -> new ByteBuffer[CLASS_COUNT][THREAD_CACHE_SIZE]);
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder discarded = new LongAdder();
+    private final LongAdder acquired = new LongAdder();
+    private final LongAdder released = new LongAdder();
+    private final LongAdder leaks = new LongAdder();
+
+    /**
+     * Debug mode: buffers handed out, with the stack of their acquisition
+     */
+    private final ConcurrentHashMap<TrackedBuffer, Throwable> outstanding = new ConcurrentHashMap<>();
+    private final ReferenceQueue<ByteBuffer> collected = new ReferenceQueue<>();
+
+    /**
+     * Free buffers of one size, shared by the threads
+     */
+    private static class SizeClass {
+        final int size;
+        final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+        final AtomicLong pooledBytes = new AtomicLong();
+
+        SizeClass(int size) {
+            this.size = size;
+        }
+    }
+
+    /**
+     * Weak identity key of a buffer handed out in debug mode (ByteBuffer.equals compares contents).
+     */
+    private static class TrackedBuffer extends WeakReference<ByteBuffer> {
+        private final int hash;
+
+        TrackedBuffer(ByteBuffer buffer, ReferenceQueue<ByteBuffer> queue) {
+            super(buffer, queue);
+            this.hash = System.identityHashCode(buffer);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) return true;
+            ByteBuffer buffer = get();
+            return buffer != null && other instanceof TrackedBuffer && ((TrackedBuffer) other).get() == buffer;
+        }
+    }
+
+    private BufferPool(String name, boolean direct) {
+        this.name = name;
+        this.direct = direct;
+        for (int i = 0; i < CLASS_COUNT; ++i) {
+            classes[i] = new SizeClass(1 << (MIN_SIZE_SHIFT + i));
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns a cleared buffer of at least the given capacity, to be given back with release().
+     * Its capacity is that of its size class, and its limit too.
+     */
+    public ByteBuffer acquire(int size) {
+
+        if (DEBUG) reportLeaks();
+        acquired.increment();
+
+        int index = classIndex(size);
+        if (index < 0) {
+            misses.increment();
+            return track(allocate(size));
+        }
+
+        ByteBuffer buffer = null;
+        ByteBuffer[] cache = threadCache(index);
+        if (cache != null) {
+            for (int i = 0; i < cache.length && buffer == null; ++i) {
+                buffer = cache[i];
+                cache[i] = null;
+            }
+        }
+        if (buffer == null) {
+            SizeClass sizeClass = classes[index];
+            buffer = sizeClass.free.poll();
+            if (buffer != null) {
+                sizeClass.pooledBytes.addAndGet(-sizeClass.size);
+            }
+        }
+
+        if (buffer != null) {
+            hits.increment();
+            buffer.clear();
+        }
+        else {
+            misses.increment();
+            buffer = allocate(classes[index].size);
+        }
+        return track(buffer);
+    }
+
+    /**
+     * Gives back a buffer obtained from acquire(). Null is ignored.
+     */
+    public void release(ByteBuffer buffer) {
+
+        if (buffer == null) return;
+        if (DEBUG) {
+            reportLeaks();
+            if (outstanding.remove(new TrackedBuffer(buffer, null)) == null) {
+                System.err.println("Buffer of " + buffer.capacity() + " bytes released twice, or not from the " + name + " pool:");
+                new IllegalStateException("released here").printStackTrace();
+                return;
+            }
+        }
+        released.increment();
+
+        int index = classIndex(buffer.capacity());
+        if (index < 0 || classes[index].size != buffer.capacity() || buffer.isDirect() != direct) {
+            discarded.increment(); // larger than the largest class
+            return;
+        }
+
+        ByteBuffer[] cache = threadCache(index);
+        if (cache != null) {
+            for (int i = 0; i < cache.length; ++i) {
+                if (cache[i] == null) {
+                    cache[i] = buffer;
+                    return;
+                }
+            }
+        }
+        SizeClass sizeClass = classes[index];
+        if (sizeClass.pooledBytes.addAndGet(sizeClass.size) <= MAX_POOLED_BYTES_PER_CLASS) {
+            sizeClass.free.offer(buffer);
+        }
+        else {
+            sizeClass.pooledBytes.addAndGet(-sizeClass.size);
+            discarded.increment();
+        }
+    }
+
+    /**
+     * Writes the statistics of both pools, labelled pool="heap" and pool="direct".
+     */
+    static void writeMetrics(MetricsWriter writer) {
+
+        BufferPool[] pools = { HEAP, DIRECT };
+        writer.metric("http_buffer_pool_hits_total", "counter", "Buffers reused from the pool.");
+        for (BufferPool pool : pools) writer.sample("http_buffer_pool_hits_total", pool.label(), pool.getHits());
+        writer.metric("http_buffer_pool_misses_total", "counter", "Buffers allocated because the pool had none of the size.");
+        for (BufferPool pool : pools) writer.sample("http_buffer_pool_misses_total", pool.label(), pool.getMisses());
+        writer.metric("http_buffer_pool_discarded_total", "counter", "Released buffers left to the garbage collector because the pool was full.");
+        for (BufferPool pool : pools) writer.sample("http_buffer_pool_discarded_total", pool.label(), pool.getDiscarded());
+        writer.metric("http_buffer_pool_outstanding", "gauge", "Buffers acquired and not released yet.");
+        for (BufferPool pool : pools) writer.sample("http_buffer_pool_outstanding", pool.label(), pool.getOutstanding());
+        writer.metric("http_buffer_pool_pooled_bytes", "gauge", "Bytes of the buffers in the shared free lists.");
+        for (BufferPool pool : pools) writer.sample("http_buffer_pool_pooled_bytes", pool.label(), pool.getPooledBytes());
+        if (DEBUG) {
+            writer.metric("http_buffer_pool_leaks_total", "counter", "Buffers collected without having been released (debug mode).");
+            for (BufferPool pool : pools) writer.sample("http_buffer_pool_leaks_total", pool.label(), pool.getLeaks());
+        }
+    }
+
+    private String label() {
+        return "pool=\"" + name + "\"";
+    }
+
+    @Override
+    public long getHits() {
+        return hits.sum();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public long getDiscarded() {
+        return discarded.sum();
+    }
+
+    @Override
+    public long getOutstanding() {
+        // released is read first: a buffer released between both reads is not counted as released only
+        long releasedCount = released.sum();
+        return Math.max(0, acquired.sum() - releasedCount);
+    }
+
+    @Override
+    public long getPooledBytes() {
+        long bytes = 0;
+        for (SizeClass sizeClass : classes) {
+            bytes += sizeClass.pooledBytes.get();
+        }
+        return bytes;
+    }
+
+    @Override
+    public long getLeaks() {
+        if (DEBUG) reportLeaks();
+        return leaks.sum();
+    }
+
+    /**
+     * Returns the index of the smallest class holding the size, or -1 if it is larger than the largest.
+     */
+    private static int classIndex(int size) {
+        if (size > 1 << MAX_SIZE_SHIFT) {
+            return -1;
+        }
+        int shift = Math.max(MIN_SIZE_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1));
+        return shift - MIN_SIZE_SHIFT;
+    }
+
+    /**
+     * Returns the current thread's cache for the class, or null on a virtual thread.
+     */
+    private ByteBuffer[] threadCache(int index) {
+        return isVirtualThread() ? null : threadCaches.get()[index];
+    }
+
+    private ByteBuffer allocate(int size) {
+        return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    }
+
+    private ByteBuffer track(ByteBuffer buffer) {
+        if (DEBUG) {
+            outstanding.put(new TrackedBuffer(buffer, collected), new Throwable("Buffer acquired here"));
+        }
+        return buffer;
+    }
+
+    /**
+     * Debug mode: reports the buffers collected while still handed out.
+     */
+    private void reportLeaks() {
+        Object reference;
+        while ((reference = collected.poll()) != null) {
+            Throwable acquisition = outstanding.remove(reference);
+            if (acquisition != null) {
+                leaks.increment();
+                released.increment(); // no longer outstanding
+                System.err.println("Buffer leaked: collected without having been released to the " + name + " pool.");
+                acquisition.printStackTrace();
+            }
+        }
+    }
+
+    private static boolean isVirtualThread() {
+        if (IS_VIRTUAL == null) {
+            return false;
+        }
+        try {
+            return (boolean) IS_VIRTUAL.invokeExact(Thread.currentThread());
+        }
+        catch (Throwable e) {
+            return false;
+        }
+    }
+
+    /**
+     * Thread.isVirtual() is looked up reflectively, see HttpServer.createExecutor(); null before Java 21.
+     */
+    private static MethodHandle findIsVirtual() {
+        try {
+            return MethodHandles.publicLookup().findVirtual(Thread.class, "isVirtual", MethodType.methodType(boolean.class));
+        }
+        catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
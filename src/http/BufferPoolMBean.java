@@ -0,0 +1,20 @@
+package http;
+
+/**
+ * Management interface of BufferPool, registered by HttpServer as
+ * comp445.httpfs:type=BufferPool,name=heap|direct,port=PORT.
+ */
+public interface BufferPoolMBean {
+
+    long getHits();
+
+    long getMisses();
+
+    long getDiscarded();
+
+    long getOutstanding();
+
+    long getPooledBytes();
+
+    long getLeaks();
+}
@@ -0,0 +1,64 @@
+package http;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Body held in memory, in a heap, direct or mapped buffer.
+ */
+class ByteBufferBody implements ResponseBody {
+
+    private final ByteBuffer buffer;
+    private final long length;
+    private final Closeable resource; // what the buffer belongs to, or null
+
+    ByteBufferBody(ByteBuffer buffer, Closeable resource) {
+        this.buffer = buffer;
+        this.length = buffer.remaining();
+        this.resource = resource;
+    }
+
+    ByteBufferBody(ByteBuffer buffer) {
+        this(buffer, null);
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public boolean writeTo(WritableByteChannel channel) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.write(buffer) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        if (buffer.hasArray()) {
+            out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            buffer.position(buffer.limit());
+            return;
+        }
+        byte[] chunk = new byte[Math.min(buffer.remaining(), 8192)];
+        while (buffer.hasRemaining()) {
+            int count = Math.min(chunk.length, buffer.remaining());
+            buffer.get(chunk, 0, count);
+            out.write(chunk, 0, count);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (resource != null) {
+            resource.close();
+        }
+    }
+}
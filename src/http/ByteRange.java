@@ -0,0 +1,133 @@
+package http;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Byte range of a Range request header (RFC 7233), resolved against the length of the content:
+ * first and last are positions of bytes in the content, both included.
+ */
+public class ByteRange {
+
+    private final long first;
+    private final long last;
+
+    public ByteRange(long first, long last) {
+        this.first = first;
+        this.last = last;
+    }
+
+    public long getFirst() {
+        return first;
+    }
+
+    public long getLast() {
+        return last;
+    }
+
+    public long length() {
+        return last - first + 1;
+    }
+
+    /**
+     * Value of the Content-Range header of the part of the response carrying this range.
+     */
+    public String toContentRange(long contentLength) {
+        return "bytes " + first + "-" + last + "/" + contentLength;
+    }
+
+    /**
+     * Value of the Content-Range header of a 416 response.
+     */
+    public static String unsatisfiedContentRange(long contentLength) {
+        return "bytes */" + contentLength;
+    }
+
+    /**
+     * Parses a Range header value such as "bytes=0-99,200-,-50" for content of the given length.
+     *
+     * Returns null if the header is not a valid byte ranges specifier, or if its ranges add up to
+     * more than the content (the request is then served as if it had none), an empty list if no
+     * range overlaps the content (416), or the satisfiable ranges truncated to the content. Several
+     * ranges are sorted, and those that overlap or are adjacent merged, so that no byte is sent twice.
+     */
+    public static List<ByteRange> parse(String header, long contentLength) {
+
+        String value = header.trim();
+        if (!value.regionMatches(true, 0, "bytes=", 0, 6)) {
+            return null;
+        }
+
+        List<ByteRange> ranges = new ArrayList<>();
+        for (String spec : value.substring(6).split(",")) {
+            spec = spec.trim();
+            if (spec.isEmpty()) continue; // tolerated, as in "bytes=0-1,,5-6"
+
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            long first;
+            long last;
+            try {
+                if (dash == 0) {
+                    // suffix: the last n bytes
+                    long suffixLength = parsePosition(spec.substring(1));
+                    if (suffixLength == 0) continue;
+                    first = Math.max(0, contentLength - suffixLength);
+                    last = contentLength - 1;
+                }
+                else {
+                    first = parsePosition(spec.substring(0, dash));
+                    last = (dash == spec.length() - 1) ? Long.MAX_VALUE : parsePosition(spec.substring(dash + 1));
+                    if (last < first) {
+                        return null; // "5-2" is invalid, not just unsatisfiable
+                    }
+                    last = Math.min(last, contentLength - 1);
+                }
+            }
+            catch (NumberFormatException e) {
+                return null;
+            }
+
+            if (first < contentLength && first <= last) {
+                ranges.add(new ByteRange(first, last));
+            }
+        }
+
+        long total = 0;
+        for (ByteRange range : ranges) {
+            total += range.length();
+        }
+        if (total > contentLength) {
+            return null; // e.g. "bytes=0-,0-,0-": sending the whole content is cheaper
+        }
+        return (ranges.size() > 1) ? coalesce(ranges) : ranges;
+    }
+
+    private static List<ByteRange> coalesce(List<ByteRange> ranges) {
+
+        ranges.sort(Comparator.comparingLong(ByteRange::getFirst));
+        List<ByteRange> coalesced = new ArrayList<>(ranges.size());
+        ByteRange current = ranges.get(0);
+        for (ByteRange next : ranges.subList(1, ranges.size())) {
+            if (next.first <= current.last + 1) {
+                current = new ByteRange(current.first, Math.max(current.last, next.last));
+            }
+            else {
+                coalesced.add(current);
+                current = next;
+            }
+        }
+        coalesced.add(current);
+        return coalesced;
+    }
+
+    private static long parsePosition(String digits) {
+        if (digits.isEmpty() || !digits.chars().allMatch(c -> c >= '0' && c <= '9')) {
+            throw new NumberFormatException("Not a byte position: " + digits);
+        }
+        return Long.parseLong(digits);
+    }
+}
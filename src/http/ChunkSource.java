@@ -0,0 +1,26 @@
+package http;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Produces a response body piece by piece while it is being written, for bodies whose length
+ * is not known when the response is built (see ResponseBody.chunked). Called on the thread
+ * writing the response, once the previous piece has been handed to the connection.
+ */
+public interface ChunkSource extends Closeable {
+
+    /**
+     * Returns the next piece of the body, or null once the body is complete.
+     * The buffer is only read until the next call.
+     */
+    ByteBuffer nextChunk() throws IOException;
+
+    /**
+     * Releases what the body is produced from. Does nothing by default.
+     */
+    @Override
+    default void close() throws IOException {
+    }
+}
@@ -0,0 +1,110 @@
+package http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Body of unknown length, pulled from a ChunkSource as the connection accepts it.
+ *
+ * For HTTP/1.1 clients each piece is framed as a chunk of the chunked transfer coding, ending with
+ * the zero-length chunk. HTTP/1.0 clients get the bytes as they are, and the end of the body is
+ * the end of the connection. The server chooses, see HttpResponse.setChunked().
+ */
+class ChunkedBody implements ResponseBody {
+
+    private static final byte[] CRLF = { '\r', '\n' };
+    private static final ByteBuffer LAST_CHUNK = ByteBuffer.wrap("0\r\n\r\n".getBytes(StandardCharsets.US_ASCII)).asReadOnlyBuffer();
+    private static final int MAX_FRAMING_LENGTH = 16 + 2 * CRLF.length; // hex size of an int, and two CRLFs
+
+    private final ChunkSource source;
+    private boolean encodeChunks = true;
+
+    /**
+     * Write state
+     */
+    private ByteBuffer frame; // what remains to be written of the current piece
+    private ByteBuffer frameBuffer; // reused to frame the chunks
+    private boolean lastFrame = false;
+    private long bytesWritten = 0; // chunk framing included
+
+    ChunkedBody(ChunkSource source) {
+        this.source = source;
+    }
+
+    void setEncodeChunks(boolean encodeChunks) {
+        this.encodeChunks = encodeChunks;
+    }
+
+    @Override
+    public long length() {
+        return UNKNOWN_LENGTH;
+    }
+
+    @Override
+    public boolean writeTo(WritableByteChannel channel) throws IOException {
+        while (true) {
+            if (frame == null || !frame.hasRemaining()) {
+                if (lastFrame) {
+                    return true;
+                }
+                frame = nextFrame();
+            }
+            while (frame.hasRemaining()) {
+                int count = channel.write(frame);
+                if (count == 0) {
+                    return false;
+                }
+                bytesWritten += count;
+            }
+        }
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        WritableByteChannel channel = Channels.newChannel(out);
+        while (!writeTo(channel)) {
+        }
+    }
+
+    long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    @Override
+    public void close() throws IOException {
+        source.close();
+    }
+
+    /**
+     * Pulls the next non-empty piece and frames it as a chunk if needed: size line, data and CRLF
+     * are copied into one buffer, so each chunk goes out in one write.
+     */
+    private ByteBuffer nextFrame() throws IOException {
+
+        ByteBuffer chunk;
+        do {
+            chunk = source.nextChunk();
+        } while (chunk != null && !chunk.hasRemaining());
+
+        if (chunk == null) {
+            lastFrame = true;
+            return encodeChunks ? LAST_CHUNK.duplicate() : ByteBuffer.allocate(0);
+        }
+        if (!encodeChunks) {
+            return chunk;
+        }
+
+        int size = chunk.remaining();
+        if (frameBuffer == null || frameBuffer.capacity() < size + MAX_FRAMING_LENGTH) {
+            frameBuffer = ByteBuffer.allocate(size + MAX_FRAMING_LENGTH);
+        }
+        frameBuffer.clear();
+        frameBuffer.put(Integer.toHexString(size).getBytes(StandardCharsets.US_ASCII)).put(CRLF);
+        frameBuffer.put(chunk).put(CRLF);
+        return frameBuffer.flip();
+    }
+}
@@ -0,0 +1,76 @@
+package http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+
+/**
+ * Body made of other bodies written one after the other, e.g. the parts of a multipart response.
+ */
+class CompositeBody implements ResponseBody {
+
+    private final List<ResponseBody> parts;
+    private final long length;
+    private int current = 0; // first part not completely written
+
+    CompositeBody(List<ResponseBody> parts) {
+        this.parts = parts;
+        long total = 0;
+        for (ResponseBody part : parts) {
+            if (part.length() == UNKNOWN_LENGTH) {
+                total = UNKNOWN_LENGTH;
+                break;
+            }
+            total += part.length();
+        }
+        this.length = total;
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public boolean writeTo(WritableByteChannel channel) throws IOException {
+        while (current < parts.size()) {
+            if (!parts.get(current).writeTo(channel)) {
+                return false;
+            }
+            ++current;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean whenReady(Runnable callback) {
+        return current < parts.size() && parts.get(current).whenReady(callback);
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        while (current < parts.size()) {
+            parts.get(current++).writeTo(out);
+        }
+    }
+
+    /**
+     * Closes every part, even if closing one of them fails.
+     */
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (ResponseBody part : parts) {
+            try {
+                part.close();
+            }
+            catch (IOException e) {
+                if (failure == null) failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
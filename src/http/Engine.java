@@ -0,0 +1,17 @@
+package http;
+
+/**
+ * Network engines the server can run on.
+ */
+public enum Engine {
+
+    /**
+     * Blocking sockets, one connection task per thread (see ExecutionMode).
+     */
+    BLOCKING,
+
+    /**
+     * Non-blocking channels multiplexed by one or more selector-based event loops.
+     */
+    NIO
+}
@@ -0,0 +1,18 @@
+package http;
+
+/**
+ * Strategies used by the blocking engine to run the per-connection tasks.
+ */
+public enum ExecutionMode {
+
+    /**
+     * Connections are handed to a fixed-size pool of platform threads backed by a bounded queue.
+     */
+    POOL,
+
+    /**
+     * Every connection gets its own virtual thread (requires a Java runtime with virtual threads);
+     * the pool size still bounds how many are handled at a time.
+     */
+    VIRTUAL_THREADS
+}
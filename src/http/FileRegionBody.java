@@ -0,0 +1,60 @@
+package http;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Body sent straight from a file with transferTo, so it is never copied through the heap
+ * when the target is a socket channel (sendfile).
+ */
+class FileRegionBody implements ResponseBody {
+
+    private final FileChannel file;
+    private final long end;
+    private final long length;
+    private long position;
+
+    FileRegionBody(FileChannel file, long position, long count) {
+        this.file = file;
+        this.position = position;
+        this.end = position + count;
+        this.length = count;
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public boolean writeTo(WritableByteChannel channel) throws IOException {
+        while (position < end) {
+            long count = file.transferTo(position, end - position, channel);
+            if (count == 0) {
+                // either the socket is full, or the file shrank since the response was built
+                if (position >= file.size()) {
+                    throw new EOFException("File shrank while being sent");
+                }
+                return false;
+            }
+            position += count;
+        }
+        return true;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        WritableByteChannel channel = Channels.newChannel(out);
+        while (!writeTo(channel)) {
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
@@ -0,0 +1,159 @@
+package http;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+
+/**
+ * Calls the request handler for both engines, and enforces the request timeout: a handler that
+ * has not answered in time is answered for, 503 if it was still waiting for a thread (the server
+ * is overloaded), 504 otherwise. One timer thread serves all the pending deadlines; a handler
+ * answering in time cancels its deadline, and one answering synchronously never schedules it.
+ */
+class HandlerInvoker {
+
+    private static final String TIMED_OUT = "The request could not be handled in time.\n";
+
+    private final AsyncHttpRequestHandler requestHandler;
+    private final long timeout; // ms, 0 for none
+    private final ServerMetrics metrics;
+    private final ScheduledThreadPoolExecutor timer; // null without timeout
+
+    /**
+     * @param timeout ms, 0 to wait for the handler however long it takes
+     */
+    HandlerInvoker(AsyncHttpRequestHandler requestHandler, int timeout, ServerMetrics metrics) {
+        this.requestHandler = requestHandler;
+        this.timeout = timeout;
+        this.metrics = metrics;
+        if (timeout > 0) {
+            timer = new ScheduledThreadPoolExecutor(1, task -> {
+                Thread thread = new Thread(task, "http-request-timer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            timer.setRemoveOnCancelPolicy(true);
+        }
+        else {
+            timer = null;
+        }
+    }
+
+    /**
+     * Calls the handler. The future completes with its response, with the response to the
+     * exception it failed with, or with the timeout response; it never completes exceptionally.
+     *
+     * After a timeout the request is abandoned: the handler may still be reading its body, which
+     * is released once the handler's stage completes (or at once if the handler will never run).
+     * Otherwise the body is left to the caller.
+     */
+    CompletableFuture<HttpResponse> invoke(HttpRequest httpRequest) {
+
+        long start = System.nanoTime();
+        CompletionStage<HttpResponse> stage;
+        try {
+            stage = requestHandler.handleRequestAsync(httpRequest);
+        }
+        catch (Exception e) {
+            metrics.handleTime.record(System.nanoTime() - start);
+            return CompletableFuture.completedFuture(HttpServer.getErrorResponse(e));
+        }
+
+        Call call = new Call(httpRequest, stage, start);
+        stage.whenComplete(call);
+        if (timer != null && !call.answered.get()) {
+            call.deadline = timer.schedule(call, timeout, TimeUnit.MILLISECONDS);
+        }
+        return call.result;
+    }
+
+    /**
+     * Race between the handler's answer and the deadline; the first one answers.
+     */
+    private class Call implements BiConsumer<HttpResponse, Throwable>, Runnable {
+
+        final HttpRequest httpRequest;
+        final CompletionStage<HttpResponse> stage;
+        final long start; // System.nanoTime()
+        final CompletableFuture<HttpResponse> result = new CompletableFuture<>();
+        final AtomicBoolean answered = new AtomicBoolean(false);
+        final AtomicBoolean bodyReleased = new AtomicBoolean(false);
+        volatile ScheduledFuture<?> deadline;
+
+        Call(HttpRequest httpRequest, CompletionStage<HttpResponse> stage, long start) {
+            this.httpRequest = httpRequest;
+            this.stage = stage;
+            this.start = start;
+        }
+
+        /**
+         * The handler completed.
+         */
+        @Override
+        public void accept(HttpResponse httpResponse, Throwable failure) {
+
+            if (!answered.compareAndSet(false, true)) {
+                // too late: nobody will read the response
+                if (httpResponse != null) httpResponse.close();
+                if (!(stage instanceof SyncHandlerTask && failure instanceof CancellationException)) {
+                    releaseBody(); // the stage completed: the handler is done with the body
+                }
+                return; // a task cancelled by run() never ran, and run() releases its body
+            }
+            ScheduledFuture<?> deadline = this.deadline;
+            if (deadline != null) {
+                deadline.cancel(false);
+            }
+            metrics.handleTime.record(System.nanoTime() - start);
+            result.complete((failure != null) ? getErrorResponse(failure) : httpResponse);
+        }
+
+        /**
+         * The deadline passed.
+         */
+        @Override
+        public void run() {
+
+            if (!answered.compareAndSet(false, true)) return;
+
+            httpRequest.abandon();
+            // a handler that has started is left running: cancelling its stage would not stop it reading the body
+            boolean queued = stage instanceof SyncHandlerTask && ((SyncHandlerTask) stage).cancelIfNotStarted();
+            if (queued) {
+                releaseBody(); // the handler will never run
+            }
+            metrics.requestTimedOut();
+            metrics.handleTime.record(System.nanoTime() - start);
+            result.complete(queued ? SyncHandlerTask.getServiceUnavailableResponse()
+                                   : HttpServer.getErrorResponse(HttpResponse.GATEWAY_TIMEOUT_504, TIMED_OUT));
+        }
+
+        /**
+         * Releases the body of an abandoned request, once nothing can read it any more.
+         */
+        private void releaseBody() {
+            if (bodyReleased.compareAndSet(false, true)) {
+                httpRequest.closeBody();
+            }
+        }
+    }
+
+    private static HttpResponse getErrorResponse(Throwable failure) {
+        if (failure instanceof CompletionException && failure.getCause() != null) {
+            failure = failure.getCause();
+        }
+        if (failure instanceof CancellationException) {
+            return SyncHandlerTask.getServiceUnavailableResponse();
+        }
+        if (failure instanceof Exception) {
+            return HttpServer.getErrorResponse((Exception) failure);
+        }
+        return HttpServer.getErrorResponse(HttpResponse.INTERNAL_SERVER_ERROR_500, "Problem handling the request.\n");
+    }
+}
@@ -0,0 +1,59 @@
+package http;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Distribution of durations over fixed buckets, as exposed by a Prometheus histogram.
+ * Recording only increments LongAdders: threads recording concurrently do not wait for each
+ * other, and readers get a view that may be a few increments behind.
+ */
+class Histogram {
+
+    /**
+     * Upper bounds of the buckets in ns, 100 us to 10 s; longer durations fall in the last, unbounded one.
+     */
+    static final long[] BOUNDS = {
+            100_000, 250_000, 500_000,
+            1_000_000, 2_500_000, 5_000_000,
+            10_000_000, 25_000_000, 50_000_000,
+            100_000_000, 250_000_000, 500_000_000,
+            1_000_000_000, 2_500_000_000L, 5_000_000_000L, 10_000_000_000L
+    };
+
+    private final LongAdder[] counts = new LongAdder[BOUNDS.length + 1];
+    private final LongAdder sum = new LongAdder(); // ns
+
+    Histogram() {
+        for (int i = 0; i < counts.length; ++i) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    void record(long nanos) {
+        int bucket = 0;
+        while (bucket < BOUNDS.length && nanos > BOUNDS[bucket]) {
+            ++bucket;
+        }
+        counts[bucket].increment();
+        sum.add(nanos);
+    }
+
+    /**
+     * Number of durations recorded in the bucket, not including the lower ones.
+     */
+    long getCount(int bucket) {
+        return counts[bucket].sum();
+    }
+
+    long getCount() {
+        long count = 0;
+        for (LongAdder bucketCount : counts) {
+            count += bucketCount.sum();
+        }
+        return count;
+    }
+
+    long getSum() {
+        return sum.sum();
+    }
+}
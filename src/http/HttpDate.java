@@ -0,0 +1,91 @@
+package http;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+
+/**
+ * HTTP dates (IMF-fixdate, RFC 7231 section 7.1.1.1), e.g. "Sun, 06 Nov 1994 08:49:37 GMT".
+ *
+ * The current date, for the Date header of every response, is formatted at most once per second
+ * and shared: a response only reads a volatile field, whatever the request rate.
+ */
+public final class HttpDate {
+
+    private static final DateTimeFormatter FORMATTER =
+            DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+    /**
+     * The current date, formatted and encoded as a header line. Replaced, never modified.
+     */
+    private static final class Tick {
+        final long second;
+        final String value;
+        final byte[] headerLine; // "Date: ...\r\n"
+
+        Tick(long second) {
+            this.second = second;
+            this.value = FORMATTER.format(Instant.ofEpochSecond(second));
+            this.headerLine = ("Date: " + value + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    private static volatile Tick current = new Tick(System.currentTimeMillis() / 1000);
+
+    private HttpDate() {
+    }
+
+    /**
+     * Returns the current date. Two calls within the same second return the same instance.
+     */
+    public static String now() {
+        return currentTick().value;
+    }
+
+    /**
+     * Formats a date, e.g. the modification time of a file for Last-Modified.
+     */
+    public static String format(Instant instant) {
+        return FORMATTER.format(instant);
+    }
+
+    /**
+     * Parses a date in the format of format(), or the equivalent RFC 1123 forms, to seconds since
+     * the epoch. Returns -1 if the date cannot be parsed.
+     */
+    public static long parse(String date) {
+        try {
+            return ZonedDateTime.parse(date.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toEpochSecond();
+        }
+        catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Returns the encoded "Date: ...\r\n" line for a date returned by now(), without encoding it
+     * again if it is still the current one.
+     */
+    static byte[] headerLine(String date) {
+        Tick tick = current;
+        if (tick.value == date) {
+            return tick.headerLine;
+        }
+        return ("Date: " + date + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static Tick currentTick() {
+        long second = System.currentTimeMillis() / 1000;
+        Tick tick = current;
+        if (tick.second != second) {
+            // racing threads may both format the new second, which is harmless
+            tick = new Tick(second);
+            current = tick;
+        }
+        return tick;
+    }
+}
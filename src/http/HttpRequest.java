@@ -1,5 +1,16 @@
 package http;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
 /**
  * Encapsulate fields of an Http Request. Uses the builder pattern
  * to construct an object of this class.
@@ -14,16 +25,30 @@ public class HttpRequest {
      */
     private String method;
     private String requestURI;
+    private String path; // requestURI without the query
+    private String query; // after '?', null if none
     private String httpVersion;
-    private int contentLength; // if there is a body. POST must have a content-length, even if it is 0
+    private long contentLength; // if there is a body. POST must have a content-length, even if it is 0
+    private Map<String, String> headers; // header lines, by lower case name
     private String entityBody;
+    private InputStream bodyStream; // body not read yet, limited to contentLength bytes
+    private final RequestBodyInputStream connectionBody; // if the body is read from a blocking connection, even once read
+    private volatile boolean abandoned = false; // answered without waiting for the handler, see HandlerInvoker
 
     private HttpRequest(Builder builder) {
         this.method = builder.method;
         this.requestURI = builder.requestURI;
+        if (requestURI != null) {
+            int queryStart = requestURI.indexOf('?');
+            this.path = (queryStart < 0) ? requestURI : requestURI.substring(0, queryStart);
+            this.query = (queryStart < 0) ? null : requestURI.substring(queryStart + 1);
+        }
         this.httpVersion = builder.httpVersion;
         this.contentLength = builder.contentLength; // if and only if there is a body
+        this.headers = builder.headers;
         this.entityBody = builder.entityBody;
+        this.bodyStream = builder.bodyStream;
+        this.connectionBody = (bodyStream instanceof RequestBodyInputStream) ? (RequestBodyInputStream) bodyStream : null;
     }
 
     public String getMethod() {
@@ -34,18 +59,175 @@ public class HttpRequest {
         return requestURI;
     }
 
+    /**
+     * Returns the path of the request URI, without the query.
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Returns the query of the request URI (after '?'), or null if there is none.
+     */
+    public String getQuery() {
+        return query;
+    }
+
+    /**
+     * Returns the URL-decoded value of the first query parameter with this name, "" if it has no value,
+     * or null if it is absent. Ill-formed parameters are ignored.
+     */
+    public String getQueryParameter(String name) {
+        if (query == null) return null;
+        for (String parameter : query.split("&")) {
+            int equals = parameter.indexOf('=');
+            try {
+                String key = URLDecoder.decode((equals < 0) ? parameter : parameter.substring(0, equals), StandardCharsets.UTF_8);
+                if (key.equals(name)) {
+                    return (equals < 0) ? "" : URLDecoder.decode(parameter.substring(equals + 1), StandardCharsets.UTF_8);
+                }
+            }
+            catch (IllegalArgumentException ignored) {
+            }
+        }
+        return null;
+    }
+
     public String getHttpVersion() {
         return httpVersion;
     }
 
-    public int getContentLength() {
+    public long getContentLength() {
         return contentLength;
     }
 
+    /**
+     * Returns the value of a header line (repeated lines joined with ", "), or null if absent.
+     * Names are case insensitive.
+     */
+    public String getHeader(String name) {
+        return headers.get(name.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Returns all the header lines, by lower case name.
+     */
+    public Map<String, String> getHeaders() {
+        return Collections.unmodifiableMap(headers);
+    }
+
+    /**
+     * Returns true if the client asks to keep the connection open after the response:
+     * HTTP/1.1 connections are persistent unless it sends "Connection: close",
+     * HTTP/1.0 ones only if it sends "Connection: keep-alive".
+     */
+    public boolean isKeepAlive() {
+        if (httpVersion.equalsIgnoreCase(HttpServer.VERSION_1_1)) {
+            return !hasConnectionOption("close");
+        }
+        return hasConnectionOption("keep-alive");
+    }
+
+    private boolean hasConnectionOption(String option) {
+        String connection = getHeader("Connection");
+        if (connection == null) return false;
+        for (String token : connection.split(",")) {
+            if (token.trim().equalsIgnoreCase(option)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if the client waits for a 100 Continue interim response before sending the body.
+     */
+    public boolean expectsContinue() {
+        return expectsContinue(httpVersion, getHeader("Expect"));
+    }
+
+    static boolean expectsContinue(String httpVersion, String expect) {
+        // HTTP/1.0 clients do not know interim responses
+        return "100-continue".equalsIgnoreCase(expect) && httpVersion.equalsIgnoreCase(HttpServer.VERSION_1_1);
+    }
+
+    /**
+     * Returns the entity body as a String, reading the whole body stream in memory if needed.
+     * Prefer getBodyStream() for bodies that may be large.
+     */
     public String getEntityBody() {
+        if (entityBody == null && bodyStream != null) {
+            try (InputStream in = bodyStream) {
+                entityBody = new String(in.readAllBytes());
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            bodyStream = null;
+        }
         return entityBody;
     }
 
+    /**
+     * Returns the entity body as a stream that ends after contentLength bytes.
+     * The body can only be read once.
+     */
+    public InputStream getBodyStream() {
+        if (bodyStream != null) {
+            return bodyStream;
+        }
+        return new ByteArrayInputStream((entityBody != null) ? entityBody.getBytes() : new byte[0]);
+    }
+
+    /**
+     * Reads and drops what the handler left unread of a body coming from the connection, so that
+     * the next request can be read from it. Returns false if more than maxBytes were left or the
+     * body could not be read, in which case the connection must be closed instead. Called by the server.
+     */
+    boolean skipBody(long maxBytes) {
+        if (!(bodyStream instanceof RequestBodyInputStream)) {
+            return true; // no body, already read, or fully received before the request was handled
+        }
+        try {
+            return ((RequestBodyInputStream) bodyStream).skipRemaining(maxBytes);
+        }
+        catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns true if the body coming from the connection was not received within the time limits,
+     * see RequestLimits. Called by the server.
+     */
+    boolean bodyTimedOut() {
+        return connectionBody != null && connectionBody.hasTimedOut();
+    }
+
+    /**
+     * Releases what backs a body stream that the handler did not consume. Called by the server.
+     */
+    void closeBody() {
+        if (bodyStream == null) return;
+        try {
+            bodyStream.close();
+        }
+        catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Marks the request as answered while its handler may still be running, and using its body.
+     */
+    void abandon() {
+        abandoned = true;
+    }
+
+    boolean isAbandoned() {
+        return abandoned;
+    }
+
+    /**
+     * A body that is still a stream is not included.
+     */
     @Override
     public String toString() {
 
@@ -59,8 +241,10 @@ public class HttpRequest {
         String method;
         String requestURI;
         String httpVersion;
-        int contentLength; // if and only if there is a body
+        long contentLength; // if and only if there is a body
+        Map<String, String> headers = new LinkedHashMap<>();
         String entityBody;
+        InputStream bodyStream;
 
         public Builder(String method) {
             this.method = method;
@@ -76,16 +260,34 @@ public class HttpRequest {
             return this;
         }
 
-        public Builder contentLength(int length) {
+        public Builder contentLength(long length) {
             this.contentLength = length;
             return this;
         }
 
+        public Builder header(String name, String value) {
+            this.headers.put(name.toLowerCase(Locale.ROOT), value);
+            return this;
+        }
+
+        /**
+         * Sets all the header lines; the names must be lower case.
+         */
+        public Builder headers(Map<String, String> headers) {
+            this.headers = headers;
+            return this;
+        }
+
         public Builder entityBody(String body) {
             this.entityBody = body;
             return this;
         }
 
+        public Builder bodyStream(InputStream bodyStream) {
+            this.bodyStream = bodyStream;
+            return this;
+        }
+
         public HttpRequest build() {
             return new HttpRequest(this);
         }
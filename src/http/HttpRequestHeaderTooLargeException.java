@@ -0,0 +1,10 @@
+package http;
+
+/**
+ * The request line and header lines exceed the header size or header count limit: answered 431.
+ */
+public class HttpRequestHeaderTooLargeException extends HttpRequestTooLargeException {
+    public HttpRequestHeaderTooLargeException(String message) {
+        super(message);
+    }
+}
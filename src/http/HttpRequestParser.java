@@ -0,0 +1,413 @@
+package http;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Incremental HTTP request parser working directly on bytes.
+ *
+ * The parser is a state machine fed with whatever bytes are available: parse() can be called
+ * again with more input after a partial read, and resumes where it stopped. Only the three
+ * request line tokens, header names and header values are turned into Strings; lines are
+ * split byte by byte (no per-line String, no regex). Header lines are kept in a map keyed by
+ * lower case name, repeated headers being joined with ", ".
+ *
+ * Parsing stops at the end of the header: the entity body, if any, is left in the buffer and
+ * on the connection, for the server to hand it to the handler as a stream (see getRequest(InputStream)).
+ *
+ * The header is limited in bytes (request line and header lines, line ends included) and in
+ * number of header lines: a client cannot make the parser buffer an unbounded header.
+ *
+ * A parser instance serves one connection at a time; call reset() before parsing the next request.
+ */
+public class HttpRequestParser {
+
+    private static final byte[] CONTENT_LENGTH = "content-length".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TRANSFER_ENCODING = "transfer-encoding".getBytes(StandardCharsets.US_ASCII);
+    private static final int MAX_CONTENT_LENGTH_DIGITS = 18; // fits in a long
+
+    private enum State {
+        REQUEST_LINE_START, METHOD, AFTER_METHOD, URI, AFTER_URI, VERSION, AFTER_VERSION,
+        HEADER_LINE_START, HEADER_NAME, HEADER_VALUE, HEADER_TEXT_VALUE, HEADER_IGNORED, HEADER_END, DONE
+    }
+
+    private State state;
+    private long maxBodySize;
+    private int maxHeaderSize;
+    private int maxHeaderCount;
+    private long startTime; // System.nanoTime() when the first byte of the request was parsed
+    private int headerSize; // bytes of the current request parsed so far
+    private int headerCount;
+
+    /**
+     * Request line
+     */
+    private byte[] token = new byte[64]; // bytes of the request line token being read
+    private int tokenLength;
+    private String method;
+    private String requestURI;
+    private String httpVersion;
+
+    /**
+     * Header lines
+     */
+    private byte[] headerName = new byte[32]; // lower case
+    private int headerNameLength;
+    private Map<String, String> headers;
+    private boolean contentLengthIsSet;
+    private boolean contentLengthIsValid;
+    private long contentLength;
+    private int contentLengthDigits;
+    private boolean contentLengthEnded; // whitespace seen after the digits
+
+    public HttpRequestParser() {
+        this(Long.MAX_VALUE);
+    }
+
+    /**
+     * Requests announcing a longer entity body are rejected as soon as their header is parsed.
+     * The header limits are the server defaults.
+     */
+    public HttpRequestParser(long maxBodySize) {
+        this(maxBodySize, HttpServer.DEFAULT_MAX_HEADER_SIZE, HttpServer.DEFAULT_MAX_HEADER_COUNT);
+    }
+
+    /**
+     * Requests whose header exceeds maxHeaderSize bytes or maxHeaderCount lines are rejected
+     * as soon as the limit is crossed, without reading the rest of the header.
+     */
+    public HttpRequestParser(long maxBodySize, int maxHeaderSize, int maxHeaderCount) {
+        this.maxBodySize = maxBodySize;
+        this.maxHeaderSize = maxHeaderSize;
+        this.maxHeaderCount = maxHeaderCount;
+        reset();
+    }
+
+    /**
+     * Forgets the request being parsed, to reuse the parser for the next one.
+     */
+    public void reset() {
+        state = State.REQUEST_LINE_START;
+        tokenLength = 0;
+        method = null;
+        requestURI = null;
+        httpVersion = null;
+        contentLengthIsSet = false;
+        contentLength = 0;
+        headerSize = 0;
+        headerCount = 0;
+        headers = new LinkedHashMap<>();
+    }
+
+    public boolean parse(byte[] bytes, int offset, int length) throws HttpRequestFormatException, HttpRequestUnsupportedVersionException, HttpRequestTooLargeException {
+        return parse(ByteBuffer.wrap(bytes, offset, length));
+    }
+
+    /**
+     * Consumes bytes from the buffer until the header is complete or the buffer is exhausted.
+     * Returns true once the header is complete, see getRequest().
+     */
+    public boolean parse(ByteBuffer buffer) throws HttpRequestFormatException, HttpRequestUnsupportedVersionException, HttpRequestTooLargeException {
+
+        if (state == State.REQUEST_LINE_START && buffer.hasRemaining()) {
+            startTime = System.nanoTime();
+        }
+
+        while (state != State.DONE && buffer.hasRemaining()) {
+
+            byte b = buffer.get();
+            if (++headerSize > maxHeaderSize) {
+                throw new HttpRequestHeaderTooLargeException("Request header is too large (maximum is " + maxHeaderSize + " bytes).\n");
+            }
+
+            switch (state) {
+
+                case REQUEST_LINE_START:
+                    // empty lines before the request line are ignored
+                    if (b == '\r' || b == '\n') break;
+                    if (b == ' ' || b == '\t') throw new HttpRequestFormatException("Request line is ill-formed (leading whitespace)\n");
+                    state = State.METHOD;
+                    appendToken(b);
+                    break;
+
+                case METHOD:
+                    if (b == ' ' || b == '\t') {
+                        method = takeToken();
+                        state = State.AFTER_METHOD;
+                    }
+                    else if (b == '\r' || b == '\n') {
+                        throw requestLineError();
+                    }
+                    else appendToken(b);
+                    break;
+
+                case AFTER_METHOD:
+                case AFTER_URI:
+                    if (b == ' ' || b == '\t') break;
+                    if (b == '\r' || b == '\n') throw requestLineError();
+                    state = (state == State.AFTER_METHOD) ? State.URI : State.VERSION;
+                    appendToken(b);
+                    break;
+
+                case URI:
+                    if (b == ' ' || b == '\t') {
+                        requestURI = takeToken();
+                        state = State.AFTER_URI;
+                    }
+                    else if (b == '\r' || b == '\n') {
+                        throw requestLineError();
+                    }
+                    else appendToken(b);
+                    break;
+
+                case VERSION:
+                    if (b == ' ' || b == '\t' || b == '\r' || b == '\n') {
+                        httpVersion = takeToken();
+                        state = State.AFTER_VERSION;
+                        if (b == '\n') endRequestLine();
+                    }
+                    else appendToken(b);
+                    break;
+
+                case AFTER_VERSION:
+                    if (b == '\n') endRequestLine();
+                    else if (b != ' ' && b != '\t' && b != '\r') throw requestLineError();
+                    break;
+
+                case HEADER_LINE_START:
+                    if (b == '\r') {
+                        state = State.HEADER_END;
+                    }
+                    else if (b == '\n') {
+                        endHeader();
+                    }
+                    else {
+                        if (++headerCount > maxHeaderCount) {
+                            throw new HttpRequestHeaderTooLargeException("Too many header lines (maximum is " + maxHeaderCount + ").\n");
+                        }
+                        headerNameLength = 0;
+                        state = State.HEADER_NAME;
+                        appendHeaderName(b);
+                    }
+                    break;
+
+                case HEADER_NAME:
+                    if (b == ':') {
+                        startHeaderValue();
+                    }
+                    else if (b == '\n') {
+                        state = State.HEADER_LINE_START; // line without a colon: ignored
+                    }
+                    else appendHeaderName(b);
+                    break;
+
+                case HEADER_VALUE:
+                    // Content-Length value: digits surrounded by optional whitespace
+                    if (b == '\n') {
+                        endContentLength();
+                    }
+                    else if (b >= '0' && b <= '9') {
+                        if (contentLengthEnded || ++contentLengthDigits > MAX_CONTENT_LENGTH_DIGITS) {
+                            contentLengthIsValid = false;
+                        }
+                        else contentLength = contentLength * 10 + (b - '0');
+                    }
+                    else if (b == ' ' || b == '\t' || b == '\r') {
+                        if (contentLengthDigits > 0) contentLengthEnded = true;
+                    }
+                    else contentLengthIsValid = false;
+                    break;
+
+                case HEADER_TEXT_VALUE:
+                    if (b == '\n') {
+                        endTextValue();
+                    }
+                    else appendToken(b);
+                    break;
+
+                case HEADER_IGNORED:
+                    if (b == '\n') state = State.HEADER_LINE_START;
+                    break;
+
+                case HEADER_END:
+                    if (b == '\n') {
+                        endHeader();
+                    }
+                    else if (b != '\r') {
+                        // a lone CR at the start of a header line: treat the line as an ignored header
+                        state = State.HEADER_IGNORED;
+                    }
+                    break;
+
+                default:
+                    break;
+            }
+        }
+
+        return state == State.DONE;
+    }
+
+    /**
+     * Returns the parsed request without an entity body, or null if the header is not complete yet.
+     */
+    public HttpRequest getRequest() {
+        return getRequest(null);
+    }
+
+    /**
+     * Returns the parsed request, whose entity body is read from the stream, or null if the header is not complete yet.
+     */
+    public HttpRequest getRequest(InputStream bodyStream) {
+
+        if (state != State.DONE) return null;
+
+        return new HttpRequest.Builder(method)
+                .requestURI(requestURI)
+                .httpVersion(httpVersion)
+                .contentLength(contentLength)
+                .headers(headers)
+                .bodyStream(bodyStream)
+                .build();
+    }
+
+    /**
+     * Length of the entity body following the header, once the header is complete.
+     */
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    /**
+     * Returns true if the client waits for a 100 Continue interim response before sending the body.
+     */
+    public boolean expectsContinue() {
+        return state == State.DONE && HttpRequest.expectsContinue(httpVersion, headers.get("expect"));
+    }
+
+    public boolean isComplete() {
+        return state == State.DONE;
+    }
+
+    /**
+     * Returns the System.nanoTime() at which the bytes of the current request started to be parsed.
+     */
+    long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * Returns true once some bytes of the current request have been consumed.
+     */
+    public boolean hasStarted() {
+        return state != State.REQUEST_LINE_START;
+    }
+
+    private void appendHeaderName(byte b) {
+        if (headerNameLength == headerName.length) {
+            headerName = Arrays.copyOf(headerName, headerName.length * 2);
+        }
+        headerName[headerNameLength++] = toLowerCase(b);
+    }
+
+    private boolean headerNameIs(byte[] name) {
+        return headerNameLength == name.length && Arrays.equals(headerName, 0, name.length, name, 0, name.length);
+    }
+
+    /**
+     * Chooses how to read the value of the header line whose name just ended.
+     */
+    private void startHeaderValue() throws HttpRequestFormatException {
+
+        if (headerNameIs(CONTENT_LENGTH)) {
+            contentLengthIsSet = true;
+            contentLengthIsValid = true;
+            contentLength = 0;
+            contentLengthDigits = 0;
+            contentLengthEnded = false;
+            state = State.HEADER_VALUE;
+        }
+        else if (headerNameIs(TRANSFER_ENCODING)) {
+            // the body could not be delimited, and guessing would desynchronize a persistent connection
+            throw new HttpRequestFormatException("Transfer-Encoding is not supported for requests, use Content-Length.\n");
+        }
+        else {
+            tokenLength = 0;
+            state = State.HEADER_TEXT_VALUE;
+        }
+    }
+
+    private void endTextValue() {
+
+        String name = new String(headerName, 0, headerNameLength, StandardCharsets.ISO_8859_1);
+        headers.merge(name, takeToken().trim(), (first, next) -> first + ", " + next);
+        state = State.HEADER_LINE_START;
+    }
+
+    private static byte toLowerCase(byte b) {
+        return (b >= 'A' && b <= 'Z') ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+    private void appendToken(byte b) {
+        if (tokenLength == token.length) {
+            token = Arrays.copyOf(token, token.length * 2);
+        }
+        token[tokenLength++] = b;
+    }
+
+    private String takeToken() {
+        String value = new String(token, 0, tokenLength, StandardCharsets.ISO_8859_1);
+        tokenLength = 0;
+        return value;
+    }
+
+    private HttpRequestFormatException requestLineError() {
+        return new HttpRequestFormatException("Request line is ill-formed (three tokens are needed)\n");
+    }
+
+    /**
+     * Validates the request line, with the same rules as before the header lines are read.
+     */
+    private void endRequestLine() throws HttpRequestFormatException, HttpRequestUnsupportedVersionException {
+
+        if (!method.equalsIgnoreCase(HttpRequest.GET) && !method.equalsIgnoreCase(HttpRequest.POST)) {
+            throw new HttpRequestFormatException("Wrong method: " + method + "\n");
+        }
+        if (requestURI.charAt(0) != '/') {
+            throw new HttpRequestFormatException("Wrong format for URI path: " + requestURI + "\n");
+        }
+        if (!httpVersion.equalsIgnoreCase(HttpServer.VERSION_1_0) && !httpVersion.equalsIgnoreCase(HttpServer.VERSION_1_1)) {
+            throw new HttpRequestUnsupportedVersionException("Unsupported version: " + httpVersion + "\n");
+        }
+
+        state = State.HEADER_LINE_START;
+    }
+
+    private void endContentLength() throws HttpRequestFormatException {
+
+        if (!contentLengthIsValid || contentLengthDigits == 0) {
+            throw new HttpRequestFormatException("Invalid Content-Length header.\n");
+        }
+        String previous = headers.put("content-length", Long.toString(contentLength));
+        if (previous != null && !previous.equals(Long.toString(contentLength))) {
+            // which one delimits the body is ambiguous: a proxy may have picked the other one
+            throw new HttpRequestFormatException("Conflicting Content-Length headers.\n");
+        }
+        state = State.HEADER_LINE_START;
+    }
+
+    private void endHeader() throws HttpRequestFormatException, HttpRequestTooLargeException {
+
+        if (!contentLengthIsSet && method.equalsIgnoreCase(HttpRequest.POST)) {
+            throw new HttpRequestFormatException("No content length for a POST request.\n");
+        }
+        if (contentLength > maxBodySize) {
+            throw new HttpRequestTooLargeException("Entity body is too large: " + contentLength + " bytes (maximum is " + maxBodySize + ").\n");
+        }
+
+        state = State.DONE;
+    }
+}
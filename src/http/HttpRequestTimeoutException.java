@@ -0,0 +1,7 @@
+package http;
+
+public class HttpRequestTimeoutException extends Exception {
+    public HttpRequestTimeoutException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,7 @@
+package http;
+
+public class HttpRequestTooLargeException extends Exception {
+    public HttpRequestTooLargeException(String message) {
+        super(message);
+    }
+}
@@ -1,14 +1,30 @@
 package http;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 public class HttpResponse {
 
     public static final String OK_200 = "200 OK";
     public static final String CREATED_201 = "201 Created";
+    public static final String PARTIAL_CONTENT_206 = "206 Partial Content";
+    public static final String NOT_MODIFIED_304 = "304 Not Modified";
     public static final String BAD_REQUEST_400 = "400 Bad Request";
     public static final String NOT_FOUND_404 = "404 Not Found";
     public static final String FORBIDDEN_403 = "403 Forbidden";
+    public static final String REQUEST_TIMEOUT_408 = "408 Request Timeout";
+    public static final String PAYLOAD_TOO_LARGE_413 = "413 Payload Too Large";
+    public static final String RANGE_NOT_SATISFIABLE_416 = "416 Range Not Satisfiable";
+    public static final String REQUEST_HEADER_FIELDS_TOO_LARGE_431 = "431 Request Header Fields Too Large";
 
     public static final String INTERNAL_SERVER_ERROR_500 = "500 Internal Server Error";
+    public static final String SERVICE_UNAVAILABLE_503 = "503 Service Unavailable";
+    public static final String GATEWAY_TIMEOUT_504 = "504 Gateway Timeout";
     public static final String UNSPPORTED_VERSION_505 = "505 Version Not Supported";
 
     public static final String contentTypePlainText = "text/plain";
@@ -17,20 +33,34 @@ public class HttpResponse {
     public static final String contentTypeXml = "text/xml";
     public static final String contentTypePng = "image/png";
 
+    private static final byte[] CONTENT_LENGTH = "Content-Length: ".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] EMPTY = new byte[0];
+
     /**
      *  Status line
      */
     private String httpVersion;
     private String statusCodeAndReasonPhrase;
     private String date; // optional
-    private int contentLength; // If no body, then must be defined as 0.
+    private long contentLength; // If no body, then must be defined as 0. ResponseBody.UNKNOWN_LENGTH if produced while written
+    private boolean chunked; // Transfer-Encoding: chunked, for bodies of unknown length
     private String contentType; // optional, text/plain
     private String contentDisposition;
+    private Map<String, String> headers; // other header lines, in insertion order
 
     /**
      * Entity Body
      */
     private String entityBody; //when applicable
+    private ResponseBody body; // what is actually written, built from entityBody when it is a String
+
+    /**
+     * Serialization state
+     */
+    private ByteBuffer encodedHeader; // encoded once, on first use
+    private ByteBuffer headerToWrite; // what remains to be written of it
+    private ResponseTemplate template; // while the status and fixed header lines are the template's, or null
+    private long bytesWritten; // header bytes so far, and body bytes once it is complete
 
 
     private HttpResponse(Builder builder) {
@@ -40,7 +70,14 @@ public class HttpResponse {
         this.contentLength = builder.contentLength;
         this.contentType = builder.contentType;
         this.contentDisposition = builder.contentDisposition;
+        this.headers = new LinkedHashMap<>(builder.headers);
         this.entityBody = builder.entityBody;
+        this.body = builder.body;
+        this.template = builder.template;
+
+        if (body == null && entityBody != null && contentLength > 0) {
+            body = ResponseBody.of(entityBody.getBytes(StandardCharsets.UTF_8));
+        }
     }
 
     public String getHttpVersion() {
@@ -51,11 +88,26 @@ public class HttpResponse {
         return statusCodeAndReasonPhrase;
     }
 
+    /**
+     * Returns the three digits the status line starts with, or 0 if it does not.
+     */
+    public int getStatusCode() {
+        String status = statusCodeAndReasonPhrase;
+        if (status == null || status.length() < 3) return 0;
+        int code = 0;
+        for (int i = 0; i < 3; ++i) {
+            char c = status.charAt(i);
+            if (c < '0' || c > '9') return 0;
+            code = code * 10 + (c - '0');
+        }
+        return (status.length() == 3 || status.charAt(3) == ' ') ? code : 0;
+    }
+
     public String getDate() {
         return date;
     }
 
-    public int getContentLength() {
+    public long getContentLength() {
         return contentLength;
     }
 
@@ -67,8 +119,59 @@ public class HttpResponse {
         return entityBody;
     }
 
+    /**
+     * Body to write after the header, or null if there is none.
+     */
+    public ResponseBody getBody() {
+        return body;
+    }
+
+    /**
+     * Returns the value of a header line set with header() or setHeader(), or null.
+     */
+    public String getHeaderValue(String name) {
+        return headers.get(name);
+    }
+
     public void setContentType(String contentType) {
         this.contentType = contentType;
+        template = null;
+        encodedHeader = null;
+    }
+
+    public boolean isChunked() {
+        return chunked;
+    }
+
+    /**
+     * Used by the server for a body of unknown length: true sends it with the chunked transfer coding
+     * (HTTP/1.1), false sends it as it is, the end of the connection marking the end of the body.
+     */
+    public void setChunked(boolean chunked) {
+        this.chunked = chunked;
+        if (chunked) {
+            template = null;
+        }
+        if (body instanceof ChunkedBody) {
+            ((ChunkedBody) body).setEncodeChunks(chunked);
+        }
+        encodedHeader = null;
+    }
+
+    /**
+     * Used by the server to answer in the version of the request.
+     */
+    public void setHttpVersion(String httpVersion) {
+        this.httpVersion = httpVersion;
+        encodedHeader = null;
+    }
+
+    /**
+     * Adds a header line, or replaces the value of the one with that name.
+     */
+    public void setHeader(String name, String value) {
+        headers.put(name, value);
+        encodedHeader = null;
     }
 
     public static String getExtensionString(String ext) {
@@ -81,26 +184,180 @@ public class HttpResponse {
         return null;
     }
 
-    @Override
-    public String toString() {
+    /**
+     * Returns the status line and header lines, including the empty line ending the header.
+     */
+    public String getHeader() {
 
         return httpVersion + " " + statusCodeAndReasonPhrase + "\r\n" +
                 ((date != null) ? "Date: " + date + "\r\n" : "") +
-                "Content-Length: " + contentLength + "\r\n" +
+                ((contentLength >= 0) ? "Content-Length: " + contentLength + "\r\n" : "") +
+                (chunked ? "Transfer-Encoding: chunked\r\n" : "") +
                 ((contentType != null)? "Content-Type: " + contentType + "\r\n" : "") +
                 ((contentDisposition != null) ? "Content-Disposition: " + contentDisposition + "\r\n" : "") +
-                "\r\n" + // end of header
-                ((contentLength > 0 && entityBody != null)? entityBody : "" );
+                getOtherHeaderLines() +
+                "\r\n"; // end of header
+    }
+
+    private String getOtherHeaderLines() {
+        if (headers.isEmpty()) return "";
+        StringBuilder lines = new StringBuilder();
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            lines.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        return lines.toString();
+    }
+
+    /**
+     * Returns the header encoded as bytes. Encoded only once; the buffer is shared, use a duplicate to read it.
+     */
+    public ByteBuffer getHeaderBytes() {
+        if (encodedHeader == null) {
+            byte[] header = (template != null) ? encodeFromTemplate() : getHeader().getBytes(StandardCharsets.ISO_8859_1);
+            encodedHeader = ByteBuffer.wrap(header).asReadOnlyBuffer();
+        }
+        return encodedHeader;
+    }
+
+    /**
+     * Same bytes as getHeader(), copied from the template's encoded lines into one array:
+     * only the Content-Length digits and the headers set on this response are encoded.
+     */
+    private byte[] encodeFromTemplate() {
+
+        byte[] statusLine = template.getStatusLine(httpVersion);
+        byte[] dateLine = (date != null) ? HttpDate.headerLine(date) : EMPTY;
+        byte[] fixedLines = template.getFixedHeaderLines();
+        byte[] otherLines = headers.isEmpty() ? EMPTY : getOtherHeaderLines().getBytes(StandardCharsets.ISO_8859_1);
+        int lengthDigits = 1;
+        for (long value = contentLength; value >= 10; value /= 10) {
+            ++lengthDigits;
+        }
+        int lengthLine = (contentLength >= 0) ? CONTENT_LENGTH.length + lengthDigits + 2 : 0;
+
+        byte[] header = new byte[statusLine.length + dateLine.length + lengthLine + fixedLines.length + otherLines.length + 2];
+        int position = append(header, 0, statusLine);
+        position = append(header, position, dateLine);
+        if (contentLength >= 0) {
+            position = append(header, position, CONTENT_LENGTH);
+            long value = contentLength;
+            for (int i = position + lengthDigits - 1; i >= position; --i) {
+                header[i] = (byte) ('0' + value % 10);
+                value /= 10;
+            }
+            position += lengthDigits;
+            header[position++] = '\r';
+            header[position++] = '\n';
+        }
+        position = append(header, position, fixedLines);
+        position = append(header, position, otherLines);
+        header[position++] = '\r';
+        header[position] = '\n';
+        return header;
+    }
+
+    private static int append(byte[] target, int position, byte[] bytes) {
+        System.arraycopy(bytes, 0, target, position, bytes.length);
+        return position + bytes.length;
+    }
+
+    /**
+     * Writes as much of the response as the channel accepts, resuming where the previous call stopped.
+     * Returns true once the whole response is written; a blocking channel writes it in one call.
+     */
+    public boolean writeTo(WritableByteChannel channel) throws IOException {
+
+        if (headerToWrite == null) {
+            headerToWrite = getHeaderBytes().duplicate();
+        }
+        while (headerToWrite.hasRemaining()) {
+            int count = channel.write(headerToWrite);
+            if (count == 0) {
+                return false;
+            }
+            bytesWritten += count;
+        }
+
+        if (body == null) {
+            return true;
+        }
+        if (!body.writeTo(channel)) {
+            return false;
+        }
+        bytesWritten += getBodyBytesWritten();
+        return true;
+    }
+
+    /**
+     * After writeTo() returned false: returns true if the body is waiting for its own data rather
+     * than for the channel, and will call back when it has more, see ResponseBody.whenReady().
+     */
+    public boolean whenBodyReady(Runnable callback) {
+        return headerToWrite != null && !headerToWrite.hasRemaining() && body != null && body.whenReady(callback);
+    }
+
+    /**
+     * Writes the whole response to the stream.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+
+        ByteBuffer header = getHeaderBytes().duplicate();
+        byte[] headerBytes = new byte[header.remaining()];
+        header.get(headerBytes);
+        out.write(headerBytes);
+        bytesWritten += headerBytes.length;
+
+        if (body != null) {
+            body.writeTo(out);
+            bytesWritten += getBodyBytesWritten();
+        }
+        out.flush();
+    }
+
+    private long getBodyBytesWritten() {
+        return (body instanceof ChunkedBody) ? ((ChunkedBody) body).getBytesWritten() : body.length();
+    }
+
+    /**
+     * Returns the number of bytes of the response written so far: the header as it is written,
+     * the body once it is written completely.
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * Releases what backs the body, e.g. an open file. Called by the server once the response is written or dropped.
+     */
+    public void close() {
+        if (body == null) return;
+        try {
+            body.close();
+        }
+        catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Returns the response as sent on the wire. Only String bodies are included.
+     */
+    @Override
+    public String toString() {
+
+        return getHeader() + ((contentLength > 0 && entityBody != null)? entityBody : "" );
     }
 
     public static class Builder {
         private String httpVersion;
         private String statusCodeAndReasonPhrase;
         private String date;
-        private int contentLength;
+        private long contentLength;
         private String contentType;
         private String contentDisposition;
+        private Map<String, String> headers = new LinkedHashMap<>();
         private String entityBody;
+        private ResponseBody body;
+        private ResponseTemplate template;
 
         public Builder(String version) {
             this.httpVersion = version;
@@ -116,7 +373,7 @@ public class HttpResponse {
             return this;
         }
 
-        public Builder contentLength(int length) {
+        public Builder contentLength(long length) {
             this.contentLength = length;
             return this;
         }
@@ -131,11 +388,39 @@ public class HttpResponse {
             return this;
         }
 
+        /**
+         * Adds a header line that has no dedicated builder method.
+         */
+        public Builder header(String name, String value) {
+            this.headers.put(name, value);
+            return this;
+        }
+
+        /**
+         * Body sent as UTF-8 when no ResponseBody is given; the content length must be its length in UTF-8.
+         */
         public Builder entityBody(String entityBody) {
             this.entityBody = entityBody;
             return this;
         }
 
+        /**
+         * Sets a body that is not a String (bytes, file region, chunks...). Also sets the content length.
+         */
+        public Builder body(ResponseBody body) {
+            this.body = body;
+            this.contentLength = body.length();
+            return this;
+        }
+
+        /**
+         * Used by ResponseTemplate: the status and fixed header lines are the template's.
+         */
+        Builder template(ResponseTemplate template) {
+            this.template = template;
+            return this;
+        }
+
         public HttpResponse build() {
             return new HttpResponse(this);
         }
@@ -2,11 +2,32 @@ package http;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
-import java.net.ServerSocket;
-import java.time.ZonedDateTime;
-import java.time.format.DateTimeFormatter;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 public class HttpServer {
 
@@ -14,30 +35,119 @@ public class HttpServer {
      * public constants
      */
     public static final String VERSION_1_0 = "HTTP/1.0";
+    public static final String VERSION_1_1 = "HTTP/1.1";
+    public static final int DEFAULT_POOL_SIZE = 50;
+    public static final int DEFAULT_QUEUE_CAPACITY = 100;
+    public static final int DEFAULT_EVENT_LOOPS = Runtime.getRuntime().availableProcessors();
+    public static final long DEFAULT_MAX_BODY_SIZE = 1L << 30; // 1 GB
+    public static final int DEFAULT_MAX_HEADER_SIZE = 16 * 1024;
+    public static final int DEFAULT_MAX_HEADER_COUNT = 100;
+    public static final int DEFAULT_READ_TIMEOUT = 30_000; // ms
+    public static final int DEFAULT_HEADER_TIMEOUT = 10_000; // ms
+    public static final int DEFAULT_BODY_TIMEOUT = 0; // ms, none: the read timeout still applies
+    public static final int DEFAULT_KEEP_ALIVE_TIMEOUT = 5000; // ms
+    public static final int DEFAULT_MAX_REQUESTS_PER_CONNECTION = 100;
+    public static final int DEFAULT_REQUEST_TIMEOUT = 0; // ms, none
+    public static final String MBEAN_DOMAIN = "comp445.httpfs";
 
 
     static final String CLIENT_SOCKET_PROBLEM = "Problem creating socket for client connection";
+    static final String HEADER_TIMEOUT_MESSAGE = "Request header not received in time.\n";
+    static final String BODY_TIMEOUT_MESSAGE = "Entity body not received in time.\n";
     private static final String WAITING_FOR_CONNECTION_PROBLEM = "Problem while waiting for client connection";
     private boolean verbose; // to comply with the assignment command line option
     private int portNumber;
-    private HttpRequestHandler requestHandler;
-    private final Object verboseOutputLock  = new Object();
+    private HttpRequestHandler requestHandler; // null if the handler is asynchronous
+    private AsyncHttpRequestHandler asyncRequestHandler; // null if the handler is synchronous
+
+    /**
+     * Execution of the connection tasks
+     */
+    private Engine engine;
+    private int eventLoops;
+    private int handlerThreads;
+    private ExecutionMode executionMode;
+    private int poolSize;
+    private int queueCapacity;
+    private RejectionPolicy rejectionPolicy;
+
+    /**
+     * Limits
+     */
+    private RequestLimits limits;
+    private int keepAliveTimeout;
+    private int maxRequestsPerConnection;
+    private int requestTimeout;
+
+    /**
+     * Instrumentation
+     */
+    private final ServerMetrics metrics = new ServerMetrics();
+    private String metricsPath;
+    private AccessLog accessLog; // null if none
 
     public HttpServer(int portNumber, HttpRequestHandler requestHandler) {
-        this.portNumber = portNumber;
-        this.requestHandler = requestHandler;
-        verbose = false;
+        this(new Builder(portNumber, requestHandler));
     }
 
     public HttpServer(int portNumber, HttpRequestHandler requestHandler, boolean verbose) {
-        this.portNumber = portNumber;
-        this.requestHandler = requestHandler;
-        this.verbose = verbose;
+        this(new Builder(portNumber, requestHandler).verbose(verbose));
+    }
+
+    private HttpServer(Builder builder) {
+        this.portNumber = builder.portNumber;
+        this.requestHandler = builder.requestHandler;
+        this.asyncRequestHandler = builder.asyncRequestHandler;
+        this.verbose = builder.verbose;
+        this.engine = builder.engine;
+        this.eventLoops = builder.eventLoops;
+        this.handlerThreads = builder.handlerThreads;
+        this.executionMode = builder.executionMode;
+        this.poolSize = builder.poolSize;
+        this.queueCapacity = builder.queueCapacity;
+        this.rejectionPolicy = builder.rejectionPolicy;
+        this.limits = new RequestLimits(builder.maxBodySize, builder.maxHeaderSize, builder.maxHeaderCount,
+                builder.readTimeout, builder.headerTimeout, builder.bodyTimeout);
+        this.keepAliveTimeout = builder.keepAliveTimeout;
+        this.maxRequestsPerConnection = builder.maxRequestsPerConnection;
+        this.requestTimeout = builder.requestTimeout;
+        this.metricsPath = builder.metricsPath;
+        this.accessLog = builder.accessLog;
+    }
+
+    /**
+     * Returns the counters and latency histograms of the server.
+     */
+    public ServerMetrics getMetrics() {
+        return metrics;
     }
 
     public void run() throws IOException {
 
-        ServerSocket serverSocket = new ServerSocket(portNumber);
+        if (verbose && accessLog == null) {
+            // verbose messages, and a line per request, are written to the console by the log's thread
+            accessLog = new AccessLog.Builder(null).build();
+        }
+        registerMBeans();
+        AsyncHttpRequestHandler requestHandler = createAsyncHandler();
+        if (metricsPath != null) {
+            requestHandler = new MetricsEndpoint(metricsPath, metrics, accessLog, getMetricsSource(), requestHandler);
+        }
+        HandlerInvoker handlerInvoker = new HandlerInvoker(requestHandler, requestTimeout, metrics);
+        if (accessLog != null) {
+            accessLog.start();
+        }
+
+        if (engine == Engine.NIO) {
+            new NioServer(portNumber, handlerInvoker, verbose, eventLoops,
+                    limits, keepAliveTimeout, maxRequestsPerConnection, metrics, accessLog).run();
+            return;
+        }
+
+        ExecutorService executor = createExecutor();
+        // Sockets are obtained from a channel so that file bodies can be sent with transferTo (sendfile)
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(portNumber));
 
         if (verbose) System.out.println("\nServer is running...\n");
 
@@ -45,20 +155,202 @@ public class HttpServer {
 
             try {
 
-                new HttpServerThread(serverSocket.accept(), requestHandler, verbose, verboseOutputLock).start();
+                executor.execute(new HttpServerThread(serverChannel.accept().socket(), handlerInvoker, verbose,
+                        limits, keepAliveTimeout, maxRequestsPerConnection, metrics, accessLog));
 
             }
+            catch (RejectedExecutionException ree) {
+                if (verbose) {
+                    accessLog.message(CLIENT_SOCKET_PROBLEM + ": " + ree.getMessage());
+                }
+            }
             catch (IOException ioe) {
                 if (verbose) {
-                    System.out.println("\n" + WAITING_FOR_CONNECTION_PROBLEM + " :\n" + ioe.getMessage() + "\n");
+                    accessLog.message(WAITING_FOR_CONNECTION_PROBLEM + ": " + ioe.getMessage());
                 }
             }
             catch (Exception e) {
                 if(verbose) {
-                    System.out.println("\n" + CLIENT_SOCKET_PROBLEM + " :\n" + e.getMessage() + "\n");
+                    accessLog.message(CLIENT_SOCKET_PROBLEM + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Registers the metrics, those of the buffer pools, and those of the handler if it is a
+     * MetricsSource, with the platform MBean server, named after the port so that servers in the
+     * same JVM do not collide.
+     */
+    private void registerMBeans() {
+
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        try {
+            mBeanServer.registerMBean(metrics, new ObjectName(MBEAN_DOMAIN + ":type=HttpServer,port=" + portNumber));
+            for (BufferPool pool : new BufferPool[] { BufferPool.HEAP, BufferPool.DIRECT }) {
+                mBeanServer.registerMBean(pool, new ObjectName(MBEAN_DOMAIN + ":type=BufferPool,name=" + pool.getName() + ",port=" + portNumber));
+            }
+            MetricsSource metricsSource = getMetricsSource();
+            if (metricsSource != null) {
+                for (Map.Entry<String, Object> mBean : metricsSource.getMBeans().entrySet()) {
+                    mBeanServer.registerMBean(mBean.getValue(), new ObjectName(MBEAN_DOMAIN + ":" + mBean.getKey() + ",port=" + portNumber));
                 }
             }
         }
+        catch (JMException e) {
+            if (verbose) System.out.println("\nProblem registering the server MBeans:\n" + e.getMessage() + "\n");
+        }
+    }
+
+    /**
+     * Returns the request handler if it publishes metrics of its own, null otherwise.
+     */
+    private MetricsSource getMetricsSource() {
+        Object handler = (requestHandler != null) ? requestHandler : asyncRequestHandler;
+        return (handler instanceof MetricsSource) ? (MetricsSource) handler : null;
+    }
+
+    /**
+     * Adapts a synchronous request handler: it runs on the connection thread, except with the NIO
+     * engine and handler threads, where it runs on a pool so that it may block without stalling
+     * an event loop.
+     */
+    private AsyncHttpRequestHandler createAsyncHandler() {
+
+        if (asyncRequestHandler != null) {
+            return asyncRequestHandler;
+        }
+        if (engine == Engine.NIO && handlerThreads > 0) {
+            ExecutorService handlerPool = new ThreadPoolExecutor(handlerThreads, handlerThreads, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(queueCapacity),
+                    new WorkerThreadFactory("http-handler-"), new ThreadPoolExecutor.AbortPolicy());
+            return AsyncHttpRequestHandler.of(requestHandler, handlerPool);
+        }
+        return AsyncHttpRequestHandler.of(requestHandler);
+    }
+
+    /**
+     * Creates the executor running the connection tasks, according to the execution mode.
+     */
+    private ExecutorService createExecutor() {
+
+        if (executionMode == ExecutionMode.VIRTUAL_THREADS) {
+            ExecutorService virtualThreads;
+            try {
+                // looked up reflectively so that the server still compiles and runs on runtimes without virtual threads
+                virtualThreads = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            }
+            catch (ReflectiveOperationException e) {
+                throw new UnsupportedOperationException("Virtual threads are not supported by this Java runtime: " + System.getProperty("java.version"), e);
+            }
+            return new BoundedExecutor(virtualThreads, poolSize, queueCapacity, rejectionPolicy);
+        }
+
+        RejectedExecutionHandler rejectionHandler;
+        if (rejectionPolicy == RejectionPolicy.CALLER_RUNS) {
+            rejectionHandler = new ThreadPoolExecutor.CallerRunsPolicy();
+        }
+        else {
+            // the pool and its queue are full: answer 503 from the accepting thread and drop the connection
+            rejectionHandler = (task, pool) -> ((HttpServerThread) task).reject();
+        }
+
+        return new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), new WorkerThreadFactory("http-worker-"), rejectionHandler);
+    }
+
+    /**
+     * Runs the connections on a thread per task executor (virtual threads), at most poolSize at a
+     * time, so that a burst of connections cannot exhaust memory or file descriptors: up to
+     * queueCapacity more wait for their turn, blocked on their own thread as they would be in the
+     * pool's queue, and further connections get the rejection policy, as with the pool.
+     */
+    static class BoundedExecutor extends AbstractExecutorService {
+
+        private final ExecutorService executor;
+        private final Semaphore running;
+        private final Semaphore admitted; // running or waiting
+        private final RejectionPolicy rejectionPolicy;
+
+        BoundedExecutor(ExecutorService executor, int maxRunning, int maxWaiting, RejectionPolicy rejectionPolicy) {
+            this.executor = executor;
+            this.running = new Semaphore(maxRunning);
+            this.admitted = new Semaphore(maxRunning + maxWaiting);
+            this.rejectionPolicy = rejectionPolicy;
+        }
+
+        @Override
+        public void execute(Runnable task) {
+
+            if (!admitted.tryAcquire()) {
+                if (rejectionPolicy == RejectionPolicy.CALLER_RUNS) {
+                    task.run();
+                }
+                else {
+                    ((HttpServerThread) task).reject();
+                }
+                return;
+            }
+            try {
+                executor.execute(() -> {
+                    running.acquireUninterruptibly();
+                    try {
+                        task.run();
+                    }
+                    finally {
+                        running.release();
+                        admitted.release();
+                    }
+                });
+            }
+            catch (RejectedExecutionException e) {
+                admitted.release();
+                throw e;
+            }
+        }
+
+        @Override
+        public void shutdown() {
+            executor.shutdown();
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return executor.shutdownNow();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return executor.isShutdown();
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return executor.isTerminated();
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            return executor.awaitTermination(timeout, unit);
+        }
+    }
+
+    /**
+     * Names the pool threads, which helps when looking at thread dumps.
+     */
+    static class WorkerThreadFactory implements ThreadFactory {
+
+        private final String prefix;
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        WorkerThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable task) {
+            return new Thread(task, prefix + threadCount.incrementAndGet());
+        }
     }
 
     /** * * * * * * * * * * * * * * *
@@ -67,29 +359,154 @@ public class HttpServer {
 
     public static HttpResponse getErrorResponse(String statusAndReason, String message) {
 
-        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss O");
-        int contentLength = message.getBytes().length;
-
-        return new HttpResponse.Builder(VERSION_1_0)
-                .statusCodeAndReasonPhrase(statusAndReason)
-                .date(formatter.format(ZonedDateTime.now()))
-                .contentLength(contentLength)
-                .entityBody(message)
-                .build();
+        return ResponseTemplate.forError(statusAndReason).newResponse(message);
     }
 
     public static HttpResponse getErrorResponse(String statusAndReason) {
         return getErrorResponse(statusAndReason, "");
     }
 
+    /**
+     * Maps an exception thrown while extracting or handling a request to the response sent to the client.
+     */
+    static HttpResponse getErrorResponse(Exception e) {
+
+        if (e instanceof HeaderIOException) {
+            return getErrorResponse(HttpResponse.INTERNAL_SERVER_ERROR_500, e.getMessage());
+        }
+        else if (e instanceof HttpRequestFormatException) {
+            return getErrorResponse(HttpResponse.BAD_REQUEST_400, e.getMessage());
+        }
+        else if (e instanceof HttpRequestTimeoutException) {
+            return getErrorResponse(HttpResponse.REQUEST_TIMEOUT_408, e.getMessage());
+        }
+        else if (e instanceof HttpRequestHeaderTooLargeException) {
+            return getErrorResponse(HttpResponse.REQUEST_HEADER_FIELDS_TOO_LARGE_431, e.getMessage());
+        }
+        else if (e instanceof HttpRequestTooLargeException) {
+            return getErrorResponse(HttpResponse.PAYLOAD_TOO_LARGE_413, e.getMessage());
+        }
+        else if (e instanceof HttpRequestUnsupportedVersionException) {
+            return getErrorResponse(HttpResponse.UNSPPORTED_VERSION_505, e.getMessage());
+        }
+        else if (e instanceof SecurityException) {
+            String message = "Access to directory was denied.";
+            return getErrorResponse(message, e.getMessage());
+        }
+
+        String message = "Problem handling the request.";
+        return getErrorResponse(message, e.getMessage());
+    }
+
+    /**
+     * Answers in the version of the request, frames a body of unknown length, and tells the client
+     * whether the connection stays open. Returns true if it does: the server must allow it, the client
+     * must ask for it, and the end of the body must not be marked by closing the connection.
+     * A request that could not be parsed (null) always closes the connection.
+     */
+    static boolean prepareResponse(HttpRequest httpRequest, HttpResponse httpResponse, boolean serverKeepsAlive) {
+
+        if (httpRequest == null) return false;
+
+        boolean http11 = httpRequest.getHttpVersion().equalsIgnoreCase(VERSION_1_1);
+        // a response without a body (304) ends with its header, whatever length it announces
+        boolean unknownLength = httpResponse.getContentLength() == ResponseBody.UNKNOWN_LENGTH && httpResponse.getBody() != null;
+        boolean keepAlive = serverKeepsAlive && httpRequest.isKeepAlive() && (http11 || !unknownLength);
+
+        if (http11) {
+            httpResponse.setHttpVersion(VERSION_1_1);
+        }
+        if (unknownLength) {
+            httpResponse.setChunked(http11); // HTTP/1.0 clients do not know chunks: read until the connection closes
+        }
+        if (keepAlive && !http11) {
+            httpResponse.setHeader("Connection", "keep-alive");
+        }
+        else if (!keepAlive && (http11 || httpRequest.isKeepAlive())) {
+            httpResponse.setHeader("Connection", "close");
+        }
+        return keepAlive;
+    }
+
     /** * * * * * * * * * *
      * instance methods
      * * * * * * * * * * */
 
+    /**
+     * Reads the next request from a raw byte stream with the incremental byte parser.
+     *
+     * The buffer is in read mode (flipped) between calls and keeps the bytes received past
+     * the end of the header. The entity body is not read: the request gets a stream over the
+     * rest of it, to be consumed by the handler before the next request is extracted.
+     */
+    static HttpRequest extractRequest(InputStream in, ByteBuffer buffer, HttpRequestParser parser) throws HeaderIOException, HttpRequestFormatException, HttpRequestUnsupportedVersionException, HttpRequestTooLargeException, HttpRequestTimeoutException {
+        return extractRequest(in, buffer, parser, null, null);
+    }
+
+    /**
+     * Same, reading from the socket's stream with the time limits: once the request has started,
+     * each read waits at most the read timeout, and no longer than the header timeout allows
+     * (HttpRequestTimeoutException). Until then, the socket timeout set by the caller applies,
+     * and its expiry is a HeaderIOException. The body stream applies the body limits.
+     */
+    static HttpRequest extractRequest(InputStream in, ByteBuffer buffer, HttpRequestParser parser, Socket socket, RequestLimits limits) throws HeaderIOException, HttpRequestFormatException, HttpRequestUnsupportedVersionException, HttpRequestTooLargeException, HttpRequestTimeoutException {
+
+        parser.reset();
+
+        while (!parser.parse(buffer)) {
+
+            if (socket != null && parser.hasStarted()) {
+                int timeout = limits.nextReadTimeout(RequestLimits.deadline(parser.getStartTime(), limits.headerTimeout));
+                if (timeout < 0) {
+                    throw new HttpRequestTimeoutException(HEADER_TIMEOUT_MESSAGE);
+                }
+                try {
+                    socket.setSoTimeout(timeout);
+                }
+                catch (SocketException e) {
+                    throw new HeaderIOException("Problem extracting HTTP header");
+                }
+            }
+
+            buffer.compact();
+            int count;
+            try {
+                count = in.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            }
+            catch (SocketTimeoutException e) {
+                if (parser.hasStarted()) {
+                    throw new HttpRequestTimeoutException(HEADER_TIMEOUT_MESSAGE);
+                }
+                throw new HeaderIOException("No request received in time.\n");
+            }
+            catch (IOException e) {
+                throw new HeaderIOException("Problem extracting HTTP header");
+            }
+            finally {
+                buffer.flip();
+            }
+
+            if (count == -1) {
+                throw new HeaderIOException(parser.hasStarted() ? "Connection closed before the request was complete.\n"
+                                                                : "Request Header is ill-formed\n");
+            }
+            buffer.limit(buffer.limit() + count);
+        }
+
+        if (parser.getContentLength() > 0) {
+            return parser.getRequest(new RequestBodyInputStream(buffer, in, parser.getContentLength(), socket, limits));
+        }
+        return parser.getRequest();
+    }
+
     /**
      * Parses a raw HTTP request character stream  and returns the corresponding HttpRequest object.
+     *
+     * @deprecated superseded by the byte parser, see HttpRequestParser. Only kept to compare both
+     * in the RequestParsingBenchmark of the benchmarks module.
      */
-    static HttpRequest extractRequest(BufferedReader in) throws HeaderIOException, HttpRequestFormatException, HttpRequestUnsupportedVersionException {
+    @Deprecated
+    public static HttpRequest extractRequest(BufferedReader in) throws HeaderIOException, HttpRequestFormatException, HttpRequestUnsupportedVersionException {
 
         // Get the header lines
         ArrayList<String> headerLines;
@@ -124,7 +541,7 @@ public class HttpServer {
         }
 
         // parse the header lines
-        int contentLength = 0;
+        long contentLength = 0;
         boolean contentLengthIsSet = false;
 
         for (String line : headerLines) {
@@ -145,7 +562,7 @@ public class HttpServer {
          */
         if (contentLength > 0) {
             try {
-                entityBody = getBody(in, contentLength);
+                entityBody = getBody(in, (int) contentLength);
             }
             catch (IOException e) {
                 throw new HeaderIOException("Problem reading the entity body.\n");
@@ -246,4 +663,198 @@ public class HttpServer {
         System.out.println();
     }
 
+    public static class Builder {
+        private int portNumber;
+        private HttpRequestHandler requestHandler;
+        private AsyncHttpRequestHandler asyncRequestHandler;
+        private boolean verbose;
+        private Engine engine = Engine.BLOCKING;
+        private int eventLoops = DEFAULT_EVENT_LOOPS;
+        private int handlerThreads = 0;
+        private ExecutionMode executionMode = ExecutionMode.POOL;
+        private int poolSize = DEFAULT_POOL_SIZE;
+        private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+        private RejectionPolicy rejectionPolicy = RejectionPolicy.SERVICE_UNAVAILABLE;
+        private long maxBodySize = DEFAULT_MAX_BODY_SIZE;
+        private int maxHeaderSize = DEFAULT_MAX_HEADER_SIZE;
+        private int maxHeaderCount = DEFAULT_MAX_HEADER_COUNT;
+        private int readTimeout = DEFAULT_READ_TIMEOUT;
+        private int headerTimeout = DEFAULT_HEADER_TIMEOUT;
+        private int bodyTimeout = DEFAULT_BODY_TIMEOUT;
+        private int keepAliveTimeout = DEFAULT_KEEP_ALIVE_TIMEOUT;
+        private int maxRequestsPerConnection = DEFAULT_MAX_REQUESTS_PER_CONNECTION;
+        private int requestTimeout = DEFAULT_REQUEST_TIMEOUT;
+        private String metricsPath; // off by default
+        private AccessLog accessLog;
+
+        public Builder(int portNumber, HttpRequestHandler requestHandler) {
+            this.portNumber = portNumber;
+            this.requestHandler = requestHandler;
+        }
+
+        /**
+         * Server writing each response when the handler's stage completes, see AsyncHttpRequestHandler.
+         */
+        public Builder(int portNumber, AsyncHttpRequestHandler requestHandler) {
+            this.portNumber = portNumber;
+            this.asyncRequestHandler = requestHandler;
+        }
+
+        /**
+         * Logs connections and socket problems through the access log, which defaults to the
+         * standard output in verbose mode.
+         */
+        public Builder verbose(boolean verbose) {
+            this.verbose = verbose;
+            return this;
+        }
+
+        public Builder engine(Engine engine) {
+            this.engine = engine;
+            return this;
+        }
+
+        /**
+         * Number of selector threads, NIO engine only.
+         */
+        public Builder eventLoops(int count) {
+            this.eventLoops = count;
+            return this;
+        }
+
+        /**
+         * Size of the pool running a synchronous request handler, NIO engine only. 0 runs it on the event loop.
+         */
+        public Builder handlerThreads(int count) {
+            this.handlerThreads = count;
+            return this;
+        }
+
+        public Builder executionMode(ExecutionMode mode) {
+            this.executionMode = mode;
+            return this;
+        }
+
+        /**
+         * Threads of the pool, or connections handled at a time on virtual threads.
+         */
+        public Builder poolSize(int size) {
+            this.poolSize = size;
+            return this;
+        }
+
+        /**
+         * Connections that can wait for a pool thread, or for their turn on virtual threads; with the
+         * NIO engine, requests that can wait for a handler thread.
+         */
+        public Builder queueCapacity(int capacity) {
+            this.queueCapacity = capacity;
+            return this;
+        }
+
+        public Builder rejectionPolicy(RejectionPolicy policy) {
+            this.rejectionPolicy = policy;
+            return this;
+        }
+
+        /**
+         * Requests announcing a longer entity body are answered with 413 without reading the body.
+         */
+        public Builder maxBodySize(long size) {
+            this.maxBodySize = size;
+            return this;
+        }
+
+        /**
+         * Requests whose request line and header lines exceed the size in bytes, or the number of
+         * header lines, are answered with 431 as soon as the limit is crossed.
+         */
+        public Builder maxHeader(int size, int count) {
+            this.maxHeaderSize = size;
+            this.maxHeaderCount = count;
+            return this;
+        }
+
+        /**
+         * How long the server waits for the next bytes of a request that has started, in ms;
+         * 0 waits indefinitely. A request that stalls longer is answered with 408.
+         */
+        public Builder readTimeout(int millis) {
+            this.readTimeout = millis;
+            return this;
+        }
+
+        /**
+         * How long a client has to send a complete header, in ms, from its first byte; a new
+         * connection has as long to start its first request. 0 for no limit. A request whose header
+         * is late is answered with 408, a connection that sent nothing is closed.
+         */
+        public Builder headerTimeout(int millis) {
+            this.headerTimeout = millis;
+            return this;
+        }
+
+        /**
+         * How long a client has to send the entity body, in ms, from the end of the header; 0, the
+         * default, for no limit other than the read timeout. A late body is answered with 408.
+         */
+        public Builder bodyTimeout(int millis) {
+            this.bodyTimeout = millis;
+            return this;
+        }
+
+        /**
+         * How long a persistent connection may wait for its next request, in ms. 0 disables persistent
+         * connections: every response closes its connection, as in plain HTTP/1.0.
+         */
+        public Builder keepAliveTimeout(int millis) {
+            this.keepAliveTimeout = millis;
+            return this;
+        }
+
+        /**
+         * Number of requests after which a persistent connection is closed.
+         */
+        public Builder maxRequestsPerConnection(int count) {
+            this.maxRequestsPerConnection = count;
+            return this;
+        }
+
+        /**
+         * How long the request handler has to answer, in ms, from the complete request to its response
+         * (the body of the response may take longer to write). A request still waiting for a handler
+         * thread by then is answered 503, one still being handled 504, and the connection closed if
+         * the handler may still be reading the body from it. 0, the default, waits for the handler.
+         * Only applies to handlers that do not answer on the connection thread: asynchronous handlers,
+         * and synchronous ones on the NIO handler pool.
+         */
+        public Builder requestTimeout(int millis) {
+            this.requestTimeout = millis;
+            return this;
+        }
+
+        /**
+         * Path answered with the server metrics in the Prometheus text format instead of being passed
+         * to the request handler, e.g. "/metrics"; null, the default, passes every request to the handler.
+         * The path takes precedence over a file of the same name, and the metrics describe the server's
+         * internals (pools, queues, caches): only enable it where clients may see them.
+         */
+        public Builder metricsPath(String path) {
+            this.metricsPath = path;
+            return this;
+        }
+
+        /**
+         * Log of the requests served, written by its own thread; none by default.
+         */
+        public Builder accessLog(AccessLog accessLog) {
+            this.accessLog = accessLog;
+            return this;
+        }
+
+        public HttpServer build() {
+            return new HttpServer(this);
+        }
+    }
+
 }
@@ -1,74 +1,230 @@
 package http;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 
+/**
+ * Task handling a single client connection. Runs on whatever thread the server's
+ * execution mode provides (pool thread or virtual thread).
+ *
+ * Persistent connections are served in a loop, one request after the other: pipelined requests
+ * wait in the read buffer (or the socket) while the previous one is handled, so their responses
+ * are written in order. The thread stays with the connection while it is idle, for at most the
+ * keep-alive timeout. The thread also waits for the response of an asynchronous handler, up to
+ * the request timeout.
+ *
+ * Socket timeouts bound the time a client can hold the thread while sending a request, see RequestLimits.
+ */
+public class HttpServerThread implements Runnable {
 
-public class HttpServerThread extends Thread {
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final long MAX_UNREAD_BODY_TO_SKIP = 64 * 1024; // beyond, closing is cheaper than reading it
+    private static final byte[] CONTINUE_RESPONSE = (HttpServer.VERSION_1_1 + " 100 Continue\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
 
     private Socket clientSocket;
-    private HttpRequestHandler requestHandler;
-    private boolean verbose;
-    private Object verboseOutputLock = null;
+    private HandlerInvoker handlerInvoker;
+    private boolean verbose; // messages go to the access log
+    private RequestLimits limits;
+    private int keepAliveTimeout;
+    private int maxRequestsPerConnection;
+    private ServerMetrics metrics;
+    private AccessLog accessLog; // null if none
+    private long acceptTime; // System.nanoTime()
+    private ByteBuffer readBuffer; // borrowed from the buffer pool while the connection is served
+    private boolean abandoned = false; // a handler may still read a request body from the read buffer
 
-    public HttpServerThread(Socket clientSocket, HttpRequestHandler requestHandler, boolean verbose, Object verboseOutputLock) {
+    HttpServerThread(Socket clientSocket, HandlerInvoker handlerInvoker, boolean verbose,
+                     RequestLimits limits, int keepAliveTimeout, int maxRequestsPerConnection, ServerMetrics metrics,
+                     AccessLog accessLog) {
+        this.acceptTime = System.nanoTime();
         this.clientSocket = clientSocket;
-        this.requestHandler = requestHandler;
+        this.handlerInvoker = handlerInvoker;
         this.verbose = verbose;
-        this.verboseOutputLock = verboseOutputLock;
+        this.limits = limits;
+        this.keepAliveTimeout = keepAliveTimeout;
+        this.maxRequestsPerConnection = maxRequestsPerConnection;
+        this.metrics = metrics;
+        this.accessLog = accessLog;
+        metrics.connectionAccepted();
     }
 
+    /**
+     * Without an access log, verbose messages are not written anywhere.
+     */
     public HttpServerThread(Socket clientSocket, HttpRequestHandler requestHandler, boolean verbose) {
-        this(clientSocket, requestHandler, verbose, null);
+        this(clientSocket, requestHandler, verbose, new ServerMetrics());
     }
 
+    private HttpServerThread(Socket clientSocket, HttpRequestHandler requestHandler, boolean verbose, ServerMetrics metrics) {
+        this(clientSocket, new HandlerInvoker(AsyncHttpRequestHandler.of(requestHandler), HttpServer.DEFAULT_REQUEST_TIMEOUT, metrics),
+                verbose, RequestLimits.DEFAULT, HttpServer.DEFAULT_KEEP_ALIVE_TIMEOUT,
+                HttpServer.DEFAULT_MAX_REQUESTS_PER_CONNECTION, metrics, null);
+    }
+
+    @Override
     public void run() {
-        try (PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true);
-             BufferedReader in = new BufferedReader( new InputStreamReader(clientSocket.getInputStream()))) {
+        metrics.acceptTime.record(System.nanoTime() - acceptTime);
+        try (OutputStream out = clientSocket.getOutputStream();
+             InputStream in = new CountingInputStream(clientSocket.getInputStream(), metrics)) {
 
-            if (verbose) threadSafeOutput("Server contacted by " + clientSocket.getInetAddress() + "\n");
+            if (verbose) verboseOutput("Server contacted by " + clientSocket.getInetAddress());
 
-            HttpRequest httpRequest = null;
-            HttpResponse httpResponse = null;
-            try {
-                httpRequest = HttpServer.extractRequest(in);
-                if (verbose) threadSafeOutput("Request:\n" + httpRequest + "\n");
-                httpResponse = requestHandler.handleRequest(httpRequest);
-                if (verbose) threadSafeOutput("Response:\n" + httpResponse + "\n");
+            // the header and the body are separate writes: without this, Nagle's algorithm holds the body
+            // back until the client acknowledges the header, which a persistent connection pays on every response
+            clientSocket.setTcpNoDelay(true);
+
+            readBuffer = BufferPool.HEAP.acquire(READ_BUFFER_SIZE).flip();
+            HttpRequestParser parser = limits.newParser();
+            boolean keepAlive = true;
+
+            for (int requestCount = 1; keepAlive; ++requestCount) {
+
+                HttpRequest httpRequest = null;
+                HttpResponse httpResponse = null;
+                keepAlive = false;
+                try {
+                    // until the request starts: idle timeout, or for the first request the header timeout
+                    clientSocket.setSoTimeout((requestCount > 1) ? keepAliveTimeout : limits.headerTimeout);
+                    httpRequest = HttpServer.extractRequest(in, readBuffer, parser, clientSocket, limits);
+                    long parsed = System.nanoTime();
+                    metrics.parseTime.record(parsed - parser.getStartTime());
+
+                    if (httpRequest.expectsContinue() && httpRequest.getContentLength() > 0) {
+                        out.write(CONTINUE_RESPONSE);
+                        out.flush();
+                    }
+                    httpResponse = handlerInvoker.invoke(httpRequest).join(); // waits for an asynchronous handler
+                    if (httpRequest.bodyTimedOut()) {
+                        // whatever the handler answered, it did not get the whole body
+                        httpResponse.close();
+                        httpResponse = HttpServer.getErrorResponse(HttpResponse.REQUEST_TIMEOUT_408, HttpServer.BODY_TIMEOUT_MESSAGE);
+                        metrics.bodyTimedOut();
+                    }
+                }
+                catch (HeaderIOException e) {
+                    if (!parser.hasStarted()) {
+                        return; // closed or timed out between requests: nothing to answer
+                    }
+                    httpResponse = HttpServer.getErrorResponse(e);
+                }
+                catch (Exception e) {
+                    metrics.requestRejected(e);
+                    httpResponse = HttpServer.getErrorResponse(e);
+                }
+                finally {
+                    if (httpRequest != null && httpRequest.isAbandoned()) {
+                        abandoned = true;
+                        keepAlive = false; // the handler may still be reading the body from the connection
+                    }
+                    else if (httpRequest != null) {
+                        // the next request can only be read once this one's body is out of the way
+                        keepAlive = keepAliveTimeout > 0 && requestCount < maxRequestsPerConnection
+                                && httpRequest.skipBody(MAX_UNREAD_BODY_TO_SKIP);
+                        httpRequest.closeBody();
+                    }
+                }
+
+                keepAlive = HttpServer.prepareResponse(httpRequest, httpResponse, keepAlive);
+                long responseReady = System.nanoTime();
+                writeResponse(httpResponse, out);
+                long written = System.nanoTime();
+                metrics.writeTime.record(written - responseReady);
+                metrics.requestCompleted((httpRequest != null) ? httpRequest.getMethod() : null, httpResponse,
+                        written - parser.getStartTime());
+                if (accessLog != null) {
+                    accessLog.log(clientSocket.getInetAddress(), httpRequest, httpResponse, written - parser.getStartTime());
+                }
             }
-            catch (HeaderIOException e) {
-                httpResponse = HttpServer.getErrorResponse(HttpResponse.INTERNAL_SERVER_ERROR_500, e.getMessage());
+        }
+        catch (Exception e) {
+            verboseOutput(HttpServer.CLIENT_SOCKET_PROBLEM + ": " + e.getMessage());
+        }
+        finally {
+            metrics.connectionClosed();
+            if (!abandoned) {
+                BufferPool.HEAP.release(readBuffer);
             }
-            catch (HttpRequestFormatException e) {
-                httpResponse = HttpServer.getErrorResponse(HttpResponse.BAD_REQUEST_400, e.getMessage());
+        }
+    }
+
+    /**
+     * Called instead of run() when the server is saturated: answers 503 and closes the connection.
+     */
+    void reject() {
+        metrics.connectionRejected();
+        try (OutputStream out = clientSocket.getOutputStream()) {
+            String message = "Server is too busy to handle the request.\n";
+            writeResponse(HttpServer.getErrorResponse(HttpResponse.SERVICE_UNAVAILABLE_503, message), out);
+        }
+        catch (Exception e) {
+            verboseOutput(HttpServer.CLIENT_SOCKET_PROBLEM + ": " + e.getMessage());
+        }
+        finally {
+            metrics.connectionClosed();
+            try {
+                clientSocket.close();
             }
-            catch (HttpRequestUnsupportedVersionException e) {
-                httpResponse = HttpServer.getErrorResponse(HttpResponse.UNSPPORTED_VERSION_505, e.getMessage());
+            catch (IOException ignored) {
             }
-            catch (SecurityException e) {
-                String message = "Access to directory was denied.";
-                httpResponse = HttpServer.getErrorResponse(message, e.getMessage());
+        }
+    }
+
+    /**
+     * Writes the response through the socket channel when there is one, so that file bodies
+     * are transferred without copying them through the heap.
+     */
+    private void writeResponse(HttpResponse httpResponse, OutputStream out) throws IOException {
+        try {
+            if (clientSocket.getChannel() != null) {
+                httpResponse.writeTo(clientSocket.getChannel()); // blocking: writes everything
             }
-            catch (Exception e) {
-                String message = "Problem handling the request.";
-                httpResponse = HttpServer.getErrorResponse(message, e.getMessage());
+            else {
+                httpResponse.writeTo(out);
             }
+        }
+        finally {
+            httpResponse.close();
+        }
+    }
 
-            out.print(httpResponse.toString());
-            out.flush();
+    /**
+     * Counts the bytes read from the connection, header and body alike.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+
+        private final ServerMetrics metrics;
+
+        CountingInputStream(InputStream in, ServerMetrics metrics) {
+            super(in);
+            this.metrics = metrics;
         }
-        catch (Exception e) {
-            if(verbose) {
-                threadSafeOutput("\n" + HttpServer.CLIENT_SOCKET_PROBLEM + " :\n" + e.getMessage() + "\n");
-            }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b != -1) metrics.bytesReceived(1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            int count = in.read(bytes, offset, length);
+            if (count > 0) metrics.bytesReceived(count);
+            return count;
         }
     }
 
-    public void threadSafeOutput(String message) {
-        synchronized (verboseOutputLock) {
-            System.out.println(message);
+    /**
+     * Verbose messages are written by the access log's thread: the connection never waits for the console.
+     */
+    private void verboseOutput(String message) {
+        if (verbose && accessLog != null) {
+            accessLog.message(message);
         }
     }
 }
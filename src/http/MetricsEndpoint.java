@@ -0,0 +1,57 @@
+package http;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Request handler answering GETs of the metrics path with the server's metrics and those of the
+ * buffer pools, followed by the handler's own when it is a MetricsSource, and passing every other request to the handler.
+ */
+class MetricsEndpoint implements AsyncHttpRequestHandler {
+
+    private final String path;
+    private final ServerMetrics metrics;
+    private final AccessLog accessLog; // null if none
+    private final MetricsSource metricsSource; // null if none
+    private final AsyncHttpRequestHandler requestHandler;
+
+    MetricsEndpoint(String path, ServerMetrics metrics, AccessLog accessLog, MetricsSource metricsSource,
+                    AsyncHttpRequestHandler requestHandler) {
+        this.path = path;
+        this.metrics = metrics;
+        this.accessLog = accessLog;
+        this.metricsSource = metricsSource;
+        this.requestHandler = requestHandler;
+    }
+
+    /**
+     * The metrics are answered at once, on the calling thread.
+     */
+    @Override
+    public CompletionStage<HttpResponse> handleRequestAsync(HttpRequest httpRequest) {
+
+        if (!httpRequest.getPath().equals(path) || !httpRequest.getMethod().equalsIgnoreCase(HttpRequest.GET)) {
+            return requestHandler.handleRequestAsync(httpRequest);
+        }
+
+        MetricsWriter writer = new MetricsWriter();
+        metrics.writeMetrics(writer);
+        BufferPool.writeMetrics(writer);
+        if (accessLog != null) {
+            accessLog.writeMetrics(writer);
+        }
+        if (metricsSource != null) {
+            metricsSource.writeMetrics(writer);
+        }
+        byte[] text = writer.toString().getBytes(StandardCharsets.UTF_8);
+
+        return CompletableFuture.completedFuture(new HttpResponse.Builder(HttpServer.VERSION_1_0)
+                .statusCodeAndReasonPhrase(HttpResponse.OK_200)
+                .date(HttpDate.now())
+                .contentType(MetricsWriter.CONTENT_TYPE)
+                .header("Cache-Control", "no-store")
+                .body(ResponseBody.of(text))
+                .build());
+    }
+}
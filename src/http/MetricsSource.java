@@ -0,0 +1,23 @@
+package http;
+
+import java.util.Map;
+
+/**
+ * Implemented by request handlers that have metrics of their own, e.g. cache statistics:
+ * the server adds them to its /metrics page and registers their MBeans next to its own.
+ */
+public interface MetricsSource {
+
+    /**
+     * Writes the handler's metrics, called on each request of the metrics page.
+     */
+    void writeMetrics(MetricsWriter writer);
+
+    /**
+     * Returns the handler's MBeans, keyed by the properties naming them besides the server's
+     * port, e.g. "type=FileContentCache,name=content".
+     */
+    default Map<String, Object> getMBeans() {
+        return Map.of();
+    }
+}
@@ -0,0 +1,78 @@
+package http;
+
+import java.math.BigDecimal;
+
+/**
+ * Builds the Prometheus text exposition format (version 0.0.4): for each metric a HELP and a
+ * TYPE line, then its samples, one per set of labels.
+ *
+ * Labels are passed already formatted, e.g. method="GET",code="2xx", or null for none.
+ */
+public class MetricsWriter {
+
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final StringBuilder text = new StringBuilder(8192);
+
+    /**
+     * Starts a metric; type is counter, gauge or histogram.
+     */
+    public MetricsWriter metric(String name, String type, String help) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        return this;
+    }
+
+    public MetricsWriter sample(String name, String labels, long value) {
+        appendName(name, labels).append(' ').append(value).append('\n');
+        return this;
+    }
+
+    public MetricsWriter sample(String name, String labels, double value) {
+        appendName(name, labels).append(' ').append(formatDouble(value)).append('\n');
+        return this;
+    }
+
+    public MetricsWriter counter(String name, String help, long value) {
+        return metric(name, "counter", help).sample(name, null, value);
+    }
+
+    public MetricsWriter gauge(String name, String help, long value) {
+        return metric(name, "gauge", help).sample(name, null, value);
+    }
+
+    /**
+     * Writes the cumulative buckets, sum (in seconds) and count of a histogram started with metric().
+     */
+    MetricsWriter histogram(String name, String labels, Histogram histogram) {
+        String prefix = (labels == null) ? "" : labels + ",";
+        long cumulative = 0;
+        for (int i = 0; i <= Histogram.BOUNDS.length; ++i) {
+            cumulative += histogram.getCount(i);
+            String bound = (i < Histogram.BOUNDS.length) ? formatDouble(Histogram.BOUNDS[i] / 1e9) : "+Inf";
+            sample(name + "_bucket", prefix + "le=\"" + bound + "\"", cumulative);
+        }
+        sample(name + "_sum", labels, histogram.getSum() / 1e9);
+        sample(name + "_count", labels, cumulative);
+        return this;
+    }
+
+    private StringBuilder appendName(String name, String labels) {
+        text.append(name);
+        if (labels != null) {
+            text.append('{').append(labels).append('}');
+        }
+        return text;
+    }
+
+    private static String formatDouble(double value) {
+        return (value == Math.rint(value) && Math.abs(value) < 1e15)
+                ? Long.toString((long) value)
+                : BigDecimal.valueOf(value).stripTrailingZeros().toPlainString();
+    }
+
+    @Override
+    public String toString() {
+        return text.toString();
+    }
+}
@@ -0,0 +1,295 @@
+package http;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+
+/**
+ * One client connection of the NIO engine. Feeds the bytes of each read to an incremental
+ * parser until the request is complete, and queues the response bytes until the socket
+ * accepts them. Only used from its event loop thread.
+ *
+ * On a persistent connection requests are handled one at a time: reading stops while a request
+ * is in flight, and bytes of pipelined requests stay in the read buffer until its response is
+ * written, so responses go out in request order.
+ *
+ * The event loop checks the connection's timeouts periodically, see checkTimeouts().
+ */
+class NioConnection {
+
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final ByteBuffer CONTINUE_RESPONSE = ByteBuffer.wrap(
+            (HttpServer.VERSION_1_1 + " 100 Continue\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1)).asReadOnlyBuffer();
+
+    private final NioServer server;
+    private final NioEventLoop eventLoop;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+
+    /**
+     * Incremental read state
+     */
+    private final ByteBuffer readBuffer = BufferPool.HEAP.acquire(READ_BUFFER_SIZE).flip(); // in read mode between reads; pooled
+    private final HttpRequestParser parser;
+    private RequestBodyBuffer body; // while the entity body is being received
+    private long bodyStart; // System.currentTimeMillis() at the end of its header
+
+    /**
+     * Request being handled, and what is known of the connection
+     */
+    private HttpRequest currentRequest; // null once answered, or when the request could not be parsed
+    private boolean inFlight = false; // from a complete request until its response is written
+    private boolean processing = false; // inside processInput(), see onWritable()
+    private int requestCount = 0;
+    private long lastActivity = System.currentTimeMillis();
+    private HttpRequest loggedRequest; // request in flight, for the metrics and access log; null if it could not be parsed
+    private long requestStart; // System.nanoTime() of its first byte
+    private long responseReady; // and of its response given to send()
+    private boolean closed = false;
+
+    /**
+     * Responses waiting for the socket to accept them, in order
+     */
+    private final ArrayDeque<HttpResponse> writeQueue = new ArrayDeque<>();
+    private boolean closeAfterWrite = false;
+
+    NioConnection(NioServer server, NioEventLoop eventLoop, SocketChannel channel, SelectionKey key) {
+        this.server = server;
+        this.eventLoop = eventLoop;
+        this.channel = channel;
+        this.key = key;
+        this.parser = server.getLimits().newParser();
+    }
+
+    NioEventLoop getEventLoop() {
+        return eventLoop;
+    }
+
+    void onReadable() throws IOException {
+
+        readBuffer.compact();
+        int count;
+        try {
+            count = channel.read(readBuffer);
+        }
+        finally {
+            readBuffer.flip();
+        }
+        if (count == -1) {
+            close();
+            return;
+        }
+        server.getMetrics().bytesReceived(count);
+        lastActivity = System.currentTimeMillis();
+
+        processInput();
+    }
+
+    /**
+     * Parses the buffered bytes and dispatches each complete request, until the buffer is
+     * exhausted or a request is in flight.
+     */
+    private void processInput() {
+
+        processing = true;
+        try {
+            while (!inFlight && channel.isOpen() && (readBuffer.hasRemaining() || body != null)) {
+                if (body == null) {
+                    if (!parser.parse(readBuffer)) {
+                        return; // wait for the rest of the header
+                    }
+                    if (parser.getContentLength() > 0) {
+                        body = new RequestBodyBuffer(parser.getContentLength());
+                        bodyStart = System.currentTimeMillis();
+                        if (parser.expectsContinue() && !readBuffer.hasRemaining()) {
+                            // a few bytes on an idle socket: written at once in practice, and a client
+                            // that misses it sends the body anyway after a delay
+                            channel.write(CONTINUE_RESPONSE.duplicate());
+                        }
+                    }
+                }
+                if (body != null && !body.append(readBuffer)) {
+                    RequestBodyBuffer waiting = body;
+                    if (body.whenWritten(() -> eventLoop.execute(() -> resumeBody(waiting)))) {
+                        key.interestOps(0); // the disk is behind the connection, resume when the body is written
+                    }
+                    return; // wait for the rest of the body
+                }
+
+                // stop reading until the response is written, the next requests wait in the buffer
+                ++requestCount;
+                inFlight = true;
+                key.interestOps(0);
+                requestStart = parser.getStartTime();
+                server.getMetrics().parseTime.record(System.nanoTime() - requestStart);
+                currentRequest = (body != null) ? parser.getRequest(body.openStream()) : parser.getRequest();
+                loggedRequest = currentRequest;
+                body = null;
+                server.dispatch(this, currentRequest);
+            }
+        }
+        catch (Exception e) {
+            server.getMetrics().requestRejected(e);
+            reject(HttpServer.getErrorResponse(e));
+        }
+        finally {
+            processing = false;
+        }
+    }
+
+    /**
+     * Answers a request that could not be received, and closes the connection after the response:
+     * the rest of the input cannot be delimited.
+     */
+    private void reject(HttpResponse httpResponse) {
+        if (body != null) {
+            body.discard();
+            body = null;
+        }
+        inFlight = true;
+        currentRequest = null;
+        loggedRequest = null;
+        requestStart = parser.getStartTime();
+        key.interestOps(0);
+        send(httpResponse);
+    }
+
+    /**
+     * Queues the response and starts writing it. Must be called on the event loop thread.
+     */
+    void send(HttpResponse httpResponse) {
+
+        if (!channel.isOpen()) {
+            httpResponse.close();
+            return;
+        }
+
+        boolean keepAlive = HttpServer.prepareResponse(currentRequest, httpResponse, server.allowsKeepAlive(requestCount));
+        closeAfterWrite = !keepAlive;
+        currentRequest = null;
+        responseReady = System.nanoTime();
+        writeQueue.add(httpResponse);
+
+        try {
+            onWritable();
+        }
+        catch (IOException e) {
+            close();
+        }
+    }
+
+    void onWritable() throws IOException {
+
+        while (!writeQueue.isEmpty()) {
+            if (!writeQueue.peek().writeTo(channel)) {
+                if (writeQueue.peek().whenBodyReady(() -> eventLoop.execute(this::resumeWriting))) {
+                    key.interestOps(0); // the body is reading its data, resume when it has it
+                }
+                else {
+                    key.interestOps(SelectionKey.OP_WRITE); // socket buffer is full, resume when writable
+                }
+                return;
+            }
+            HttpResponse written = writeQueue.poll();
+            written.close();
+            long now = System.nanoTime();
+            server.getMetrics().writeTime.record(now - responseReady);
+            server.getMetrics().requestCompleted((loggedRequest != null) ? loggedRequest.getMethod() : null, written, now - requestStart);
+            if (server.getAccessLog() != null) {
+                server.getAccessLog().log(channel.socket().getInetAddress(), loggedRequest, written, now - requestStart);
+            }
+            loggedRequest = null;
+        }
+
+        if (closeAfterWrite) {
+            close();
+            return;
+        }
+
+        // ready for the next request, which may already be buffered
+        inFlight = false;
+        parser.reset();
+        lastActivity = System.currentTimeMillis();
+        key.interestOps(SelectionKey.OP_READ);
+        if (!processing) {
+            processInput(); // otherwise the running processInput() loop picks it up
+        }
+    }
+
+    private void resumeBody(RequestBodyBuffer waiting) {
+        if (closed || body != waiting) return;
+        lastActivity = System.currentTimeMillis(); // the connection was not read meanwhile
+        key.interestOps(SelectionKey.OP_READ);
+        processInput();
+    }
+
+    private void resumeWriting() {
+        if (closed) return;
+        try {
+            onWritable();
+        }
+        catch (IOException | RuntimeException e) {
+            close();
+        }
+    }
+
+    /**
+     * Answers 408 to a request that is taking too long to arrive (read, header or body timeout),
+     * and closes the connection if it has been waiting for its next request for longer than the
+     * keep-alive timeout, or for its first request for longer than the header timeout.
+     * A request in flight is left to the request timeout.
+     *
+     * @param now System.currentTimeMillis()
+     */
+    void checkTimeouts(long now) {
+
+        if (inFlight) return;
+
+        RequestLimits limits = server.getLimits();
+        boolean stalled = limits.readTimeout > 0 && now - lastActivity > limits.readTimeout;
+
+        if (body != null) {
+            if (stalled || (limits.bodyTimeout > 0 && now - bodyStart > limits.bodyTimeout)) {
+                server.getMetrics().bodyTimedOut();
+                reject(HttpServer.getErrorResponse(HttpResponse.REQUEST_TIMEOUT_408, HttpServer.BODY_TIMEOUT_MESSAGE));
+            }
+        }
+        else if (parser.hasStarted()) {
+            if (stalled || (limits.headerTimeout > 0 && System.nanoTime() - parser.getStartTime() > limits.headerTimeout * 1_000_000L)) {
+                HttpRequestTimeoutException e = new HttpRequestTimeoutException(HttpServer.HEADER_TIMEOUT_MESSAGE);
+                server.getMetrics().requestRejected(e);
+                reject(HttpServer.getErrorResponse(e));
+            }
+        }
+        else if (requestCount == 0) {
+            if (limits.headerTimeout > 0 && now - lastActivity > limits.headerTimeout) {
+                close();
+            }
+        }
+        else if (server.getKeepAliveTimeout() > 0 && now - lastActivity > server.getKeepAliveTimeout()) {
+            close();
+        }
+    }
+
+    void close() {
+        if (!closed) {
+            closed = true;
+            server.getMetrics().connectionClosed();
+        }
+        if (body != null) {
+            body.discard();
+            body = null;
+        }
+        key.cancel();
+        if (channel.isOpen()) {
+            NioEventLoop.closeQuietly(channel);
+            BufferPool.HEAP.release(readBuffer); // only read while the channel is open
+        }
+        while (!writeQueue.isEmpty()) {
+            writeQueue.poll().close();
+        }
+    }
+}
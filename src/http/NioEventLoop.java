@@ -0,0 +1,132 @@
+package http;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Selector loop serving a subset of the connections of a NioServer.
+ * All the state of its connections is only touched from the loop's own thread;
+ * other threads submit work through execute().
+ */
+class NioEventLoop implements Runnable {
+
+    private static final int MAX_TIMEOUT_CHECK_INTERVAL = 1000; // ms
+
+    private final NioServer server;
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    NioEventLoop(NioServer server) throws IOException {
+        this.server = server;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Runs the task on the event loop thread, waking up the selector if needed.
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * @param acceptTime System.nanoTime() when the connection was accepted
+     */
+    void register(SocketChannel clientChannel, long acceptTime) {
+        execute(() -> {
+            server.getMetrics().acceptTime.record(System.nanoTime() - acceptTime);
+            try {
+                clientChannel.configureBlocking(false);
+                clientChannel.socket().setTcpNoDelay(true); // see HttpServerThread.run()
+                SelectionKey key = clientChannel.register(selector, SelectionKey.OP_READ);
+                key.attach(new NioConnection(server, this, clientChannel, key));
+                if (server.isVerbose()) server.output("Server contacted by " + clientChannel.socket().getInetAddress());
+            }
+            catch (IOException e) {
+                closeQuietly(clientChannel);
+                server.getMetrics().connectionClosed();
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+
+        RequestLimits limits = server.getLimits();
+        long timeoutCheckInterval = shortestTimeout(MAX_TIMEOUT_CHECK_INTERVAL, server.getKeepAliveTimeout(),
+                limits.readTimeout, limits.headerTimeout, limits.bodyTimeout);
+        long nextTimeoutCheck = System.currentTimeMillis() + timeoutCheckInterval;
+
+        while (true) {
+            try {
+                selector.select(timeoutCheckInterval); // 0 (no timeouts) waits for events only
+            }
+            catch (IOException e) {
+                server.output("Event loop selector problem: " + e.getMessage());
+                continue;
+            }
+
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+
+            Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+            while (selectedKeys.hasNext()) {
+                SelectionKey key = selectedKeys.next();
+                selectedKeys.remove();
+
+                NioConnection connection = (NioConnection) key.attachment();
+                try {
+                    if (key.isValid() && key.isReadable()) {
+                        connection.onReadable();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.onWritable();
+                    }
+                }
+                catch (IOException | RuntimeException e) {
+                    server.output(HttpServer.CLIENT_SOCKET_PROBLEM + ": " + e.getMessage());
+                    connection.close();
+                }
+            }
+
+            if (timeoutCheckInterval > 0 && System.currentTimeMillis() >= nextTimeoutCheck) {
+                long now = System.currentTimeMillis();
+                for (SelectionKey key : selector.keys()) {
+                    // cancelled keys only leave the key set on the next select, so closing here is safe
+                    if (key.isValid()) {
+                        ((NioConnection) key.attachment()).checkTimeouts(now);
+                    }
+                }
+                nextTimeoutCheck = now + timeoutCheckInterval;
+            }
+        }
+    }
+
+    /**
+     * Returns the shortest of the timeouts that are set, at most max, or 0 if none is set.
+     */
+    private static long shortestTimeout(int max, int... timeouts) {
+        int shortest = 0;
+        for (int timeout : timeouts) {
+            if (timeout > 0 && (shortest == 0 || timeout < shortest)) {
+                shortest = timeout;
+            }
+        }
+        return (shortest > 0) ? Math.min(shortest, max) : 0;
+    }
+
+    static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        }
+        catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package http;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Non-blocking engine. The calling thread accepts connections and hands them out, round-robin,
+ * to a fixed set of event loops. Each event loop multiplexes its connections with a Selector.
+ *
+ * Requests are handed to the request handler on the event loop thread; the response is sent
+ * from the event loop when the handler's stage completes, at once for a handler answering
+ * synchronously. A synchronous handler that may block (e.g. on disk I/O) runs on a handler pool,
+ * see HttpServer.Builder.handlerThreads().
+ *
+ * Idle persistent connections cost no thread: they stay registered with their event loop,
+ * which closes them once they exceed the keep-alive timeout, and answers 408 to requests
+ * that take too long to arrive, see RequestLimits.
+ */
+class NioServer {
+
+    private int portNumber;
+    private final HandlerInvoker handlerInvoker;
+    private boolean verbose; // messages go to the access log
+    private NioEventLoop[] eventLoops;
+    private RequestLimits limits;
+    private int keepAliveTimeout;
+    private int maxRequestsPerConnection;
+    private final ServerMetrics metrics;
+    private final AccessLog accessLog; // null if none
+
+    NioServer(int portNumber, HandlerInvoker handlerInvoker, boolean verbose, int eventLoopCount,
+              RequestLimits limits, int keepAliveTimeout, int maxRequestsPerConnection, ServerMetrics metrics,
+              AccessLog accessLog) {
+        this.portNumber = portNumber;
+        this.handlerInvoker = handlerInvoker;
+        this.verbose = verbose;
+        this.eventLoops = new NioEventLoop[eventLoopCount];
+        this.limits = limits;
+        this.keepAliveTimeout = keepAliveTimeout;
+        this.maxRequestsPerConnection = maxRequestsPerConnection;
+        this.metrics = metrics;
+        this.accessLog = accessLog;
+    }
+
+    void run() throws IOException {
+
+        for (int i = 0; i < eventLoops.length; ++i) {
+            eventLoops[i] = new NioEventLoop(this);
+            new Thread(eventLoops[i], "http-event-loop-" + (i + 1)).start();
+        }
+
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(portNumber));
+
+        if (verbose) System.out.println("\nServer is running (NIO, " + eventLoops.length + " event loop(s))...\n");
+
+        int next = 0;
+        while (true) {
+            try {
+                SocketChannel clientChannel = serverChannel.accept();
+                metrics.connectionAccepted();
+                eventLoops[next].register(clientChannel, System.nanoTime());
+                next = (next + 1) % eventLoops.length;
+            }
+            catch (IOException ioe) {
+                output(HttpServer.CLIENT_SOCKET_PROBLEM + ": " + ioe.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Passes a complete request to the handler, and its response to the connection's event loop.
+     * Called on the event loop thread.
+     */
+    void dispatch(NioConnection connection, HttpRequest httpRequest) {
+
+        CompletableFuture<HttpResponse> response = handlerInvoker.invoke(httpRequest);
+        if (response.isDone()) {
+            send(connection, httpRequest, response.join()); // answered synchronously, still on the event loop
+            return;
+        }
+        response.thenAccept(httpResponse -> connection.getEventLoop().execute(() -> send(connection, httpRequest, httpResponse)));
+    }
+
+    private void send(NioConnection connection, HttpRequest httpRequest, HttpResponse httpResponse) {
+        if (!httpRequest.isAbandoned()) {
+            httpRequest.closeBody(); // otherwise released when the handler completes, see HandlerInvoker
+        }
+        connection.send(httpResponse);
+    }
+
+    ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns null if there is no access log.
+     */
+    AccessLog getAccessLog() {
+        return accessLog;
+    }
+
+    RequestLimits getLimits() {
+        return limits;
+    }
+
+    /**
+     * In ms, 0 when connections are not persistent.
+     */
+    int getKeepAliveTimeout() {
+        return keepAliveTimeout;
+    }
+
+    /**
+     * Returns true if a connection may stay open after its requestCount-th request.
+     */
+    boolean allowsKeepAlive(int requestCount) {
+        return keepAliveTimeout > 0 && requestCount < maxRequestsPerConnection;
+    }
+
+    boolean isVerbose() {
+        return verbose;
+    }
+
+    /**
+     * Writes a verbose message through the access log's thread; the event loops never wait for the console.
+     */
+    void output(String message) {
+        if (verbose && accessLog != null) {
+            accessLog.message(message);
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package http;
+
+/**
+ * What the server does with a new connection when the worker pool and its queue are full.
+ */
+public enum RejectionPolicy {
+
+    /**
+     * Answer the client right away with a 503 and close the connection.
+     */
+    SERVICE_UNAVAILABLE,
+
+    /**
+     * Handle the connection on the accepting thread, which slows down accepting new connections.
+     */
+    CALLER_RUNS
+}
@@ -0,0 +1,265 @@
+package http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Collects the entity body of a request for the NIO engine, as it arrives across reads.
+ * Small bodies stay in memory, in a buffer borrowed from the pool until the body stream is
+ * closed; once a body exceeds the memory threshold it is spilled to a temporary file, so the
+ * memory used per connection stays bounded whatever the body size.
+ *
+ * A spilled body is written with an AsynchronousFileChannel, from two pooled direct buffers: one
+ * is written to the file while the next one is filled from the connection. The event loop never
+ * waits for the disk: when both buffers are busy, append() takes no more bytes, and whenWritten()
+ * tells when it can go on.
+ */
+class RequestBodyBuffer {
+
+    static final int MEMORY_THRESHOLD = 64 * 1024;
+    private static final int SPILL_BUFFER_SIZE = 64 * 1024;
+
+    private final long length;
+    private long received = 0;
+
+    private ByteBuffer memory; // while the body fits under the threshold; pooled
+    private Path spillPath; // beyond it
+    private AsynchronousFileChannel spillChannel;
+    private ByteBuffer filling; // being filled from the connection; pooled, null if none
+
+    /**
+     * Write state, shared with the file channel's completion threads; guarded by this
+     */
+    private ByteBuffer writing; // being written to the file; pooled, null if none
+    private long writePosition = 0;
+    private IOException failure;
+    private boolean waitingForDisk = false; // append() stopped because both buffers were busy
+    private Runnable writtenCallback;
+    private boolean discarded = false;
+
+    private final CompletionHandler<Integer, Void> writeHandler = new CompletionHandler<>() {
+
+        @Override
+        public void completed(Integer count, Void attachment) {
+            Runnable callback;
+            synchronized (RequestBodyBuffer.this) {
+                writePosition += count;
+                if (writing.hasRemaining() && !discarded) {
+                    spillChannel.write(writing, writePosition, null, this); // short write: finish the buffer
+                    return;
+                }
+                callback = writeDone();
+            }
+            if (callback != null) callback.run();
+        }
+
+        @Override
+        public void failed(Throwable e, Void attachment) {
+            Runnable callback;
+            synchronized (RequestBodyBuffer.this) {
+                failure = (e instanceof IOException) ? (IOException) e : new IOException(e);
+                callback = writeDone();
+            }
+            if (callback != null) callback.run();
+        }
+    };
+
+    RequestBodyBuffer(long length) {
+        this.length = length;
+        if (length <= MEMORY_THRESHOLD) {
+            memory = BufferPool.HEAP.acquire((int) length);
+        }
+    }
+
+    /**
+     * Takes the body bytes available in the buffer, leaving the bytes that follow the body, as
+     * long as a spilled body has a buffer to take them in. Returns true once the whole body is
+     * received, and written to the file if it is spilled.
+     */
+    boolean append(ByteBuffer buffer) throws IOException {
+
+        if (memory != null) {
+            int count = (int) Math.min(buffer.remaining(), length - received);
+            buffer.get(memory.array(), memory.arrayOffset() + (int) received, count);
+            received += count;
+            return received == length;
+        }
+
+        if (spillChannel == null) {
+            spillPath = Files.createTempFile("http-body-", ".tmp");
+            spillChannel = AsynchronousFileChannel.open(spillPath, StandardOpenOption.WRITE);
+        }
+        synchronized (this) {
+            waitingForDisk = false;
+            while (true) {
+                if (failure != null) {
+                    throw failure;
+                }
+                if (filling != null && (!filling.hasRemaining() || received == length)) {
+                    if (writing != null) {
+                        waitingForDisk = true; // both buffers are busy
+                        return false;
+                    }
+                    startWrite();
+                }
+                if (received == length) {
+                    waitingForDisk = (writing != null); // for the last write
+                    return !waitingForDisk;
+                }
+                if (!buffer.hasRemaining()) {
+                    return false; // wait for more of the body
+                }
+                if (filling == null) {
+                    filling = BufferPool.DIRECT.acquire(SPILL_BUFFER_SIZE);
+                    filling.limit((int) Math.min(filling.capacity(), length - received));
+                }
+                ByteBuffer slice = buffer.duplicate();
+                slice.limit(slice.position() + Math.min(buffer.remaining(), filling.remaining()));
+                int count = slice.remaining();
+                filling.put(slice);
+                buffer.position(buffer.position() + count);
+                received += count;
+            }
+        }
+    }
+
+    /**
+     * After append() returned false: returns true if the body is waiting for the disk rather than
+     * for the connection, in which case the callback is called once append() can go on, possibly
+     * on another thread or before this method returns.
+     */
+    boolean whenWritten(Runnable callback) {
+        synchronized (this) {
+            if (!waitingForDisk) {
+                return false;
+            }
+            if (writing != null) {
+                writtenCallback = callback;
+                return true;
+            }
+        }
+        callback.run(); // written meanwhile
+        return true;
+    }
+
+    /**
+     * Returns the complete body as a stream. Closing it gives the buffer of a body in memory back
+     * to the pool, and deletes the file of a spilled body.
+     */
+    InputStream openStream() throws IOException {
+        if (memory != null) {
+            InputStream in = new PooledBodyStream(memory.limit((int) length));
+            memory = null; // now the stream's
+            return in;
+        }
+        spillChannel.close();
+        return Files.newInputStream(spillPath, StandardOpenOption.DELETE_ON_CLOSE);
+    }
+
+    /**
+     * Deletes the spill file of a body that will not be used, e.g. when the connection drops.
+     * A write in progress gives its buffer back when it ends.
+     */
+    void discard() {
+        if (memory != null) {
+            BufferPool.HEAP.release(memory);
+            memory = null;
+        }
+        if (spillPath == null) return;
+        synchronized (this) {
+            discarded = true;
+            BufferPool.DIRECT.release(filling);
+            filling = null;
+            writtenCallback = null;
+        }
+        try {
+            spillChannel.close();
+            Files.deleteIfExists(spillPath);
+        }
+        catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Writes the filled buffer to the file. Called holding the lock.
+     */
+    private void startWrite() {
+        writing = filling.flip();
+        filling = null;
+        spillChannel.write(writing, writePosition, null, writeHandler);
+    }
+
+    /**
+     * Ends a write, returning the callback to run once the lock is released. Called holding the lock.
+     */
+    private Runnable writeDone() {
+        BufferPool.DIRECT.release(writing);
+        writing = null;
+        Runnable callback = writtenCallback;
+        writtenCallback = null;
+        return callback;
+    }
+
+    /**
+     * Stream over a body held in a pooled buffer, which it gives back when closed. It cannot be
+     * read afterwards, nor while it is being closed: the buffer may already be someone else's.
+     */
+    private static class PooledBodyStream extends InputStream {
+
+        private ByteBuffer content; // null once closed
+
+        PooledBodyStream(ByteBuffer content) {
+            this.content = content;
+        }
+
+        @Override
+        public synchronized int read() throws IOException {
+            ByteBuffer content = open();
+            return content.hasRemaining() ? (content.get() & 0xff) : -1;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            ByteBuffer content = open();
+            if (len == 0) return 0;
+            if (!content.hasRemaining()) return -1;
+            int count = Math.min(len, content.remaining());
+            content.get(b, off, count);
+            return count;
+        }
+
+        @Override
+        public synchronized long skip(long n) throws IOException {
+            ByteBuffer content = open();
+            int count = (int) Math.max(0, Math.min(n, content.remaining()));
+            content.position(content.position() + count);
+            return count;
+        }
+
+        @Override
+        public synchronized int available() throws IOException {
+            return open().remaining();
+        }
+
+        @Override
+        public synchronized void close() {
+            if (content != null) {
+                BufferPool.HEAP.release(content);
+                content = null;
+            }
+        }
+
+        private ByteBuffer open() throws IOException {
+            if (content == null) {
+                throw new IOException("Stream closed");
+            }
+            return content;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package http;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+
+/**
+ * Entity body of a request read from a connection: first the bytes already buffered past the
+ * header, then the socket stream, never more than the announced content length. Closing it
+ * does not close the connection.
+ *
+ * With a socket, each read from it waits at most the read timeout, and the whole body must
+ * arrive within the body timeout; past either, reads throw SocketTimeoutException and the
+ * server answers 408 whatever the handler made of it, see hasTimedOut().
+ */
+class RequestBodyInputStream extends InputStream {
+
+    private final ByteBuffer buffered; // connection read buffer, in read mode
+    private final InputStream in;
+    private long remaining;
+    private final Socket socket; // null if there are no time limits
+    private final RequestLimits limits;
+    private final long deadline; // System.nanoTime(), 0 if none
+    private boolean timedOut = false;
+
+    RequestBodyInputStream(ByteBuffer buffered, InputStream in, long contentLength) {
+        this(buffered, in, contentLength, null, null);
+    }
+
+    RequestBodyInputStream(ByteBuffer buffered, InputStream in, long contentLength, Socket socket, RequestLimits limits) {
+        this.buffered = buffered;
+        this.in = in;
+        this.remaining = contentLength;
+        this.socket = socket;
+        this.limits = limits;
+        this.deadline = (socket != null) ? RequestLimits.deadline(System.nanoTime(), limits.bodyTimeout) : 0;
+    }
+
+    /**
+     * Returns true if the body did not arrive within the time limits.
+     */
+    boolean hasTimedOut() {
+        return timedOut;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        return (read(single, 0, 1) == -1) ? -1 : (single[0] & 0xff);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+
+        if (remaining == 0) return -1;
+        if (len == 0) return 0;
+
+        int count;
+        if (buffered.hasRemaining()) {
+            count = (int) Math.min(Math.min(len, buffered.remaining()), remaining);
+            buffered.get(b, off, count);
+        }
+        else {
+            count = readConnection(b, off, (int) Math.min(len, remaining));
+            if (count == -1) {
+                throw new EOFException("Connection closed before the entity body was complete (" + remaining + " bytes missing).");
+            }
+        }
+
+        remaining -= count;
+        return count;
+    }
+
+    /**
+     * Reads and drops the rest of the body if it is at most maxBytes long.
+     * Returns true if the whole body has been consumed.
+     */
+    boolean skipRemaining(long maxBytes) throws IOException {
+        if (timedOut || remaining > maxBytes) {
+            return false;
+        }
+        int skipped = (int) Math.min(buffered.remaining(), remaining);
+        buffered.position(buffered.position() + skipped); // no copy for what is already buffered
+        remaining -= skipped;
+        if (remaining == 0) {
+            return true;
+        }
+        ByteBuffer scrap = BufferPool.HEAP.acquire((int) Math.min(remaining, 8192));
+        try {
+            while (remaining > 0) {
+                read(scrap.array(), scrap.arrayOffset(), scrap.capacity());
+            }
+        }
+        finally {
+            BufferPool.HEAP.release(scrap);
+        }
+        return true;
+    }
+
+    private int readConnection(byte[] b, int off, int len) throws IOException {
+        if (socket != null) {
+            int timeout = timedOut ? -1 : limits.nextReadTimeout(deadline);
+            if (timeout < 0) {
+                timedOut = true;
+                throw new SocketTimeoutException(HttpServer.BODY_TIMEOUT_MESSAGE);
+            }
+            socket.setSoTimeout(timeout);
+        }
+        try {
+            return in.read(b, off, len);
+        }
+        catch (SocketTimeoutException e) {
+            timedOut = true;
+            throw e;
+        }
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(remaining, buffered.remaining() + in.available());
+    }
+}
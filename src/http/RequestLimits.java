@@ -0,0 +1,64 @@
+package http;
+
+/**
+ * Limits on the size of a request and on the time taken to receive it, applied by both engines
+ * so that a slow or malicious client cannot hold a connection, or its thread, indefinitely.
+ * Timeouts are in ms, 0 meaning none.
+ *
+ *  - readTimeout: longest wait for the next bytes of a request that has started;
+ *  - headerTimeout: from the first byte of a request to the end of its header, and from the
+ *    connection to the first byte of its first request;
+ *  - bodyTimeout: from the end of the header to the last byte of the body.
+ *
+ * A request missing a timeout is answered 408, one exceeding the header limits 431, and the
+ * connection is closed.
+ */
+class RequestLimits {
+
+    static final RequestLimits DEFAULT = new RequestLimits(HttpServer.DEFAULT_MAX_BODY_SIZE, HttpServer.DEFAULT_MAX_HEADER_SIZE,
+            HttpServer.DEFAULT_MAX_HEADER_COUNT, HttpServer.DEFAULT_READ_TIMEOUT, HttpServer.DEFAULT_HEADER_TIMEOUT,
+            HttpServer.DEFAULT_BODY_TIMEOUT);
+
+    final long maxBodySize;
+    final int maxHeaderSize; // bytes of the request line and header lines
+    final int maxHeaderCount;
+    final int readTimeout;
+    final int headerTimeout;
+    final int bodyTimeout;
+
+    RequestLimits(long maxBodySize, int maxHeaderSize, int maxHeaderCount, int readTimeout, int headerTimeout, int bodyTimeout) {
+        this.maxBodySize = maxBodySize;
+        this.maxHeaderSize = maxHeaderSize;
+        this.maxHeaderCount = maxHeaderCount;
+        this.readTimeout = readTimeout;
+        this.headerTimeout = headerTimeout;
+        this.bodyTimeout = bodyTimeout;
+    }
+
+    HttpRequestParser newParser() {
+        return new HttpRequestParser(maxBodySize, maxHeaderSize, maxHeaderCount);
+    }
+
+    /**
+     * Returns the socket timeout for the next read of a request: the read timeout, shortened
+     * to what is left before the deadline (System.nanoTime(), 0 if none). Returns -1 once the
+     * deadline has passed.
+     */
+    int nextReadTimeout(long deadline) {
+        if (deadline == 0) {
+            return readTimeout;
+        }
+        long left = (deadline - System.nanoTime()) / 1_000_000;
+        if (left <= 0) {
+            return -1;
+        }
+        return (readTimeout > 0 && readTimeout < left) ? readTimeout : (int) Math.min(left, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns the System.nanoTime() deadline of a timeout started at the given time, 0 if there is none.
+     */
+    static long deadline(long start, int timeout) {
+        return (timeout > 0) ? start + timeout * 1_000_000L : 0;
+    }
+}
@@ -0,0 +1,112 @@
+package http;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+
+/**
+ * Entity body of an HttpResponse, written to the client without first building the whole
+ * message in memory. A body keeps track of how much of it was written, so it is sent only once.
+ */
+public interface ResponseBody extends Closeable {
+
+    long UNKNOWN_LENGTH = -1;
+
+    /**
+     * Number of bytes of the body, or UNKNOWN_LENGTH for a body produced while it is written.
+     */
+    long length();
+
+    /**
+     * Writes as much of the rest of the body as the channel accepts.
+     * Returns true once the whole body is written; a blocking channel writes it in one call.
+     */
+    boolean writeTo(WritableByteChannel channel) throws IOException;
+
+    /**
+     * Writes the rest of the body to the stream.
+     */
+    void writeTo(OutputStream out) throws IOException;
+
+    /**
+     * After writeTo() returned false on a non-blocking channel: returns true if the body is waiting
+     * for its own data rather than for the channel, in which case the callback is called once there
+     * is more to write, possibly on another thread or before this method returns. Returns false by
+     * default: the body only waits for the channel to accept more.
+     */
+    default boolean whenReady(Runnable callback) {
+        return false;
+    }
+
+    /**
+     * Releases what backs the body (e.g. an open file). Does nothing by default.
+     */
+    @Override
+    default void close() throws IOException {
+    }
+
+    static ResponseBody of(byte[] bytes) {
+        return new ByteBufferBody(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * The body is the remaining bytes of the buffer. The buffer itself is not modified,
+     * so the same content can back several responses.
+     */
+    static ResponseBody of(ByteBuffer buffer) {
+        return new ByteBufferBody(buffer.duplicate());
+    }
+
+    /**
+     * The body is the remaining bytes of a buffer belonging to a resource, such as a memory
+     * mapping, which is closed with the body.
+     */
+    static ResponseBody of(ByteBuffer buffer, Closeable resource) {
+        return new ByteBufferBody(buffer.duplicate(), resource);
+    }
+
+    /**
+     * The body is a region of an open file, transferred with FileChannel.transferTo.
+     * The file is closed with the body.
+     */
+    static ResponseBody of(FileChannel file, long position, long count) {
+        return new FileRegionBody(file, position, count);
+    }
+
+    /**
+     * The body is a region of a file read with an AsynchronousFileChannel while it is written,
+     * into pooled direct buffers. The file is closed with the body.
+     */
+    static ResponseBody of(AsynchronousFileChannel file, long position, long count) {
+        return new AsyncFileBody(file, position, count, false);
+    }
+
+    /**
+     * Same as of(AsynchronousFileChannel, long, long), but the file is only read once the body is
+     * first written, e.g. for a part of a multipart body, which otherwise holds a buffer from the start.
+     */
+    static ResponseBody deferred(AsynchronousFileChannel file, long position, long count) {
+        return new AsyncFileBody(file, position, count, true);
+    }
+
+    /**
+     * The body is the given bodies one after the other. They are closed with it.
+     */
+    static ResponseBody concat(List<ResponseBody> parts) {
+        return new CompositeBody(parts);
+    }
+
+    /**
+     * The body is produced by the source while it is written, and its length is unknown:
+     * it is sent with the chunked transfer coding, or delimited by closing the connection.
+     * The source is closed with the body.
+     */
+    static ResponseBody chunked(ChunkSource source) {
+        return new ChunkedBody(source);
+    }
+}
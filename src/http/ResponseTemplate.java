@@ -0,0 +1,95 @@
+package http;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Status line and fixed header lines (Content-Type, Content-Disposition) of a kind of response,
+ * encoded to bytes once. Responses built from a template only get their variable parts encoded:
+ * the Date (shared per second, see HttpDate), the Content-Length, the body, and the header lines
+ * added afterwards (e.g. Connection).
+ *
+ * Templates are immutable and shared; each call of newResponse() returns a new HttpResponse.
+ */
+public class ResponseTemplate {
+
+    private static final Map<String, ResponseTemplate> ERROR_TEMPLATES = new ConcurrentHashMap<>();
+
+    private final String statusCodeAndReasonPhrase;
+    private final String contentType;
+    private final String contentDisposition;
+    private final byte[] statusLine10;
+    private final byte[] statusLine11;
+    private final byte[] fixedHeaderLines; // the lines after Content-Length
+
+    /**
+     * @param contentType null for none
+     * @param contentDisposition null for none
+     */
+    public ResponseTemplate(String statusCodeAndReasonPhrase, String contentType, String contentDisposition) {
+
+        this.statusCodeAndReasonPhrase = statusCodeAndReasonPhrase;
+        this.contentType = contentType;
+        this.contentDisposition = contentDisposition;
+        this.statusLine10 = encode(HttpServer.VERSION_1_0 + " " + statusCodeAndReasonPhrase + "\r\n");
+        this.statusLine11 = encode(HttpServer.VERSION_1_1 + " " + statusCodeAndReasonPhrase + "\r\n");
+
+        StringBuilder lines = new StringBuilder();
+        if (contentType != null) lines.append("Content-Type: ").append(contentType).append("\r\n");
+        if (contentDisposition != null) lines.append("Content-Disposition: ").append(contentDisposition).append("\r\n");
+        this.fixedHeaderLines = encode(lines.toString());
+    }
+
+    /**
+     * Template of the error responses of a status: a plain message, as HttpServer.getErrorResponse() sends.
+     */
+    public static ResponseTemplate forError(String statusCodeAndReasonPhrase) {
+        return ERROR_TEMPLATES.computeIfAbsent(statusCodeAndReasonPhrase, status -> new ResponseTemplate(status, null, null));
+    }
+
+    /**
+     * Returns a new response with the current date and the message as its body (UTF-8).
+     */
+    public HttpResponse newResponse(String message) {
+
+        byte[] body = message.getBytes(StandardCharsets.UTF_8);
+        HttpResponse.Builder builder = newBuilder()
+                .contentLength(body.length)
+                .entityBody(message);
+        if (body.length > 0) {
+            builder.body(ResponseBody.of(body));
+        }
+        return builder.build();
+    }
+
+    /**
+     * Returns a new response with the current date and the given body.
+     */
+    public HttpResponse newResponse(ResponseBody body) {
+        return newBuilder().body(body).build();
+    }
+
+    private HttpResponse.Builder newBuilder() {
+        return new HttpResponse.Builder(HttpServer.VERSION_1_0)
+                .statusCodeAndReasonPhrase(statusCodeAndReasonPhrase)
+                .date(HttpDate.now())
+                .contentType(contentType)
+                .contentDisposition(contentDisposition)
+                .template(this);
+    }
+
+    byte[] getStatusLine(String httpVersion) {
+        if (httpVersion.equals(HttpServer.VERSION_1_1)) return statusLine11;
+        if (httpVersion.equals(HttpServer.VERSION_1_0)) return statusLine10;
+        return encode(httpVersion + " " + statusCodeAndReasonPhrase + "\r\n");
+    }
+
+    byte[] getFixedHeaderLines() {
+        return fixedHeaderLines;
+    }
+
+    private static byte[] encode(String text) {
+        return text.getBytes(StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,81 @@
+package http;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded lock-free queue for many producers and a single consumer (after D. Vyukov's bounded
+ * queue). Producers claim a slot with a CAS on the tail, and publish the element by advancing
+ * the slot's sequence number; offer() fails instead of waiting when the queue is full.
+ * Only one thread may call poll().
+ */
+class RingBuffer<E> {
+
+    private final Object[] elements;
+    private final AtomicLongArray sequences; // slot i is free for position p when its sequence is p, full when p + 1
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong(); // next position to claim
+    private long head = 0; // next position to poll, consumer only
+
+    /**
+     * @param capacity rounded up to a power of two
+     */
+    RingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        elements = new Object[size];
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; ++i) {
+            sequences.set(i, i);
+        }
+        mask = size - 1;
+    }
+
+    /**
+     * Returns false if the queue is full.
+     */
+    boolean offer(E element) {
+        long position = tail.get();
+        while (true) {
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    elements[index] = element;
+                    sequences.lazySet(index, position + 1); // publishes the element
+                    return true;
+                }
+                position = tail.get();
+            }
+            else if (difference < 0) {
+                return false; // the slot still holds the element of the previous lap
+            }
+            else {
+                position = tail.get(); // claimed by another producer meanwhile
+            }
+        }
+    }
+
+    /**
+     * Returns true if no element was offered since the last poll. An element being offered counts
+     * from the moment its slot is claimed, even though poll() may not return it yet.
+     */
+    boolean isEmpty() {
+        return tail.get() == head;
+    }
+
+    /**
+     * Returns the oldest element, or null if there is none.
+     */
+    @SuppressWarnings("unchecked")
+    E poll() {
+        int index = (int) head & mask;
+        if (sequences.get(index) != head + 1) {
+            return null;
+        }
+        E element = (E) elements[index];
+        elements[index] = null;
+        sequences.lazySet(index, head + elements.length); // free for the next lap
+        ++head;
+        return element;
+    }
+}
@@ -0,0 +1,254 @@
+package http;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms of an HttpServer, updated by its engine for every connection
+ * and request, and read by the metrics page and JMX. Only LongAdders are updated on the request
+ * path: no lock, and no contended cache line between the threads serving requests.
+ *
+ * Each request goes through four phases, timed separately:
+ *  - accept: from the accepted connection to the start of its handling (pool queue, event loop registration),
+ *    once per connection;
+ *  - parse: from the first byte of the request to the complete header (and, with the NIO engine, body);
+ *  - handle: from the call of the request handler to its response, or to the request timeout;
+ *  - write: from the response to its last byte accepted by the socket.
+ * The request duration, from the first byte to the last, is kept per method and status class.
+ */
+public class ServerMetrics implements ServerMetricsMBean {
+
+    private static final String[] METHODS = { HttpRequest.GET, "HEAD", HttpRequest.POST, "other" };
+    private static final int OTHER_METHOD = METHODS.length - 1;
+    private static final int MIN_STATUS = 100;
+    private static final int MAX_STATUS = 599;
+
+    private final LongAdder connectionsAccepted = new LongAdder();
+    private final LongAdder connectionsClosed = new LongAdder();
+    private final LongAdder connectionsRejected = new LongAdder();
+    private final LongAdder requestsTimedOut = new LongAdder();
+    private final LongAdder headerTimeouts = new LongAdder();
+    private final LongAdder bodyTimeouts = new LongAdder();
+    private final LongAdder headersTooLarge = new LongAdder();
+    private final LongAdder bodiesTooLarge = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder[] responses = new LongAdder[MAX_STATUS - MIN_STATUS + 1]; // per status code
+
+    final Histogram acceptTime = new Histogram();
+    final Histogram parseTime = new Histogram();
+    final Histogram handleTime = new Histogram();
+    final Histogram writeTime = new Histogram();
+    private final Histogram[][] requestTime = new Histogram[METHODS.length][5]; // per method and status class
+
+    ServerMetrics() {
+        for (int i = 0; i < responses.length; ++i) {
+            responses[i] = new LongAdder();
+        }
+        for (Histogram[] byStatusClass : requestTime) {
+            for (int i = 0; i < byStatusClass.length; ++i) {
+                byStatusClass[i] = new Histogram();
+            }
+        }
+    }
+
+    void connectionAccepted() {
+        connectionsAccepted.increment();
+    }
+
+    void connectionClosed() {
+        connectionsClosed.increment();
+    }
+
+    /**
+     * A connection answered 503 because the server was saturated; it is closed as well.
+     */
+    void connectionRejected() {
+        connectionsRejected.increment();
+    }
+
+    /**
+     * A request answered 503 or 504 because its handler missed the request timeout.
+     */
+    void requestTimedOut() {
+        requestsTimedOut.increment();
+    }
+
+    /**
+     * Counts a request rejected while it was received, if the exception is one of the request limits,
+     * see RequestLimits: a late header (408), a header (431) or a body (413) too large.
+     */
+    void requestRejected(Exception e) {
+        if (e instanceof HttpRequestTimeoutException) {
+            headerTimeouts.increment();
+        }
+        else if (e instanceof HttpRequestHeaderTooLargeException) {
+            headersTooLarge.increment();
+        }
+        else if (e instanceof HttpRequestTooLargeException) {
+            bodiesTooLarge.increment();
+        }
+    }
+
+    /**
+     * A request answered 408 because its body was not received in time.
+     */
+    void bodyTimedOut() {
+        bodyTimeouts.increment();
+    }
+
+    void bytesReceived(long count) {
+        bytesReceived.add(count);
+    }
+
+    /**
+     * Records a response written completely.
+     *
+     * @param method of the request, null if it could not be parsed
+     * @param nanos from the first byte of the request to the last byte of the response
+     */
+    void requestCompleted(String method, HttpResponse httpResponse, long nanos) {
+
+        int status = httpResponse.getStatusCode();
+        if (status < MIN_STATUS || status > MAX_STATUS) {
+            status = 500; // a status line made of an error message, see HttpServer.getErrorResponse(Exception)
+        }
+        responses[status - MIN_STATUS].increment();
+        bytesSent.add(httpResponse.getBytesWritten());
+        requestTime[methodIndex(method)][status / 100 - 1].record(nanos);
+    }
+
+    private static int methodIndex(String method) {
+        if (method != null) {
+            for (int i = 0; i < OTHER_METHOD; ++i) {
+                if (METHODS[i].equalsIgnoreCase(method)) return i;
+            }
+        }
+        return OTHER_METHOD;
+    }
+
+    void writeMetrics(MetricsWriter writer) {
+
+        writer.gauge("http_connections_active", "Open client connections.", getActiveConnections())
+              .counter("http_connections_accepted_total", "Client connections accepted.", getConnectionsAccepted())
+              .counter("http_connections_rejected_total", "Connections answered 503 because the server was saturated.", getConnectionsRejected())
+              .counter("http_requests_timed_out_total", "Requests answered 503 or 504 because the handler missed the request timeout.", getRequestsTimedOut())
+              .counter("http_received_bytes_total", "Bytes read from client connections.", getBytesReceived())
+              .counter("http_sent_bytes_total", "Bytes of the responses written.", getBytesSent());
+
+        writer.metric("http_requests_rejected_total", "counter",
+                "Requests rejected while being received: late header or body (408), header (431) or body (413) too large.")
+              .sample("http_requests_rejected_total", "reason=\"header_timeout\"", getHeaderTimeouts())
+              .sample("http_requests_rejected_total", "reason=\"body_timeout\"", getBodyTimeouts())
+              .sample("http_requests_rejected_total", "reason=\"header_too_large\"", getHeadersTooLarge())
+              .sample("http_requests_rejected_total", "reason=\"body_too_large\"", getBodiesTooLarge());
+
+        writer.metric("http_responses_total", "counter", "Responses written, by status code.");
+        for (int i = 0; i < responses.length; ++i) {
+            long count = responses[i].sum();
+            if (count > 0) {
+                writer.sample("http_responses_total", "code=\"" + (MIN_STATUS + i) + "\"", count);
+            }
+        }
+
+        writer.metric("http_request_duration_seconds", "histogram",
+                "Time from the first byte of the request to the last byte of the response, by method and status class.");
+        for (int m = 0; m < METHODS.length; ++m) {
+            for (int c = 0; c < requestTime[m].length; ++c) {
+                if (requestTime[m][c].getCount() > 0) {
+                    writer.histogram("http_request_duration_seconds",
+                            "method=\"" + METHODS[m] + "\",code=\"" + (c + 1) + "xx\"", requestTime[m][c]);
+                }
+            }
+        }
+
+        writer.metric("http_phase_duration_seconds", "histogram",
+                "Time spent in each phase of the requests: accept (once per connection), parse, handle and write.");
+        writer.histogram("http_phase_duration_seconds", "phase=\"accept\"", acceptTime)
+              .histogram("http_phase_duration_seconds", "phase=\"parse\"", parseTime)
+              .histogram("http_phase_duration_seconds", "phase=\"handle\"", handleTime)
+              .histogram("http_phase_duration_seconds", "phase=\"write\"", writeTime);
+    }
+
+    @Override
+    public long getActiveConnections() {
+        // closed is read first: a connection closed between both reads is not counted as active twice over
+        long closed = connectionsClosed.sum();
+        return Math.max(0, connectionsAccepted.sum() - closed);
+    }
+
+    @Override
+    public long getConnectionsAccepted() {
+        return connectionsAccepted.sum();
+    }
+
+    @Override
+    public long getConnectionsRejected() {
+        return connectionsRejected.sum();
+    }
+
+    @Override
+    public long getRequestsTimedOut() {
+        return requestsTimedOut.sum();
+    }
+
+    @Override
+    public long getHeaderTimeouts() {
+        return headerTimeouts.sum();
+    }
+
+    @Override
+    public long getBodyTimeouts() {
+        return bodyTimeouts.sum();
+    }
+
+    @Override
+    public long getHeadersTooLarge() {
+        return headersTooLarge.sum();
+    }
+
+    @Override
+    public long getBodiesTooLarge() {
+        return bodiesTooLarge.sum();
+    }
+
+    @Override
+    public long getRequests() {
+        long count = 0;
+        for (LongAdder statusCount : responses) {
+            count += statusCount.sum();
+        }
+        return count;
+    }
+
+    @Override
+    public long getServerErrors() {
+        long count = 0;
+        for (int status = 500; status <= MAX_STATUS; ++status) {
+            count += responses[status - MIN_STATUS].sum();
+        }
+        return count;
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public double getMeanRequestTimeMillis() {
+        long count = 0;
+        long sum = 0;
+        for (Histogram[] byStatusClass : requestTime) {
+            for (Histogram histogram : byStatusClass) {
+                count += histogram.getCount();
+                sum += histogram.getSum();
+            }
+        }
+        return (count == 0) ? 0 : sum / 1e6 / count;
+    }
+}
@@ -0,0 +1,34 @@
+package http;
+
+/**
+ * Management interface of ServerMetrics, registered by HttpServer as
+ * comp445.httpfs:type=HttpServer,port=PORT.
+ */
+public interface ServerMetricsMBean {
+
+    long getActiveConnections();
+
+    long getConnectionsAccepted();
+
+    long getConnectionsRejected();
+
+    long getRequestsTimedOut();
+
+    long getHeaderTimeouts();
+
+    long getBodyTimeouts();
+
+    long getHeadersTooLarge();
+
+    long getBodiesTooLarge();
+
+    long getRequests();
+
+    long getServerErrors();
+
+    long getBytesReceived();
+
+    long getBytesSent();
+
+    double getMeanRequestTimeMillis();
+}
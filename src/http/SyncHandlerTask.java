@@ -0,0 +1,63 @@
+package http;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Call of a synchronous handler on an executor, completing with its response. A task cancelled
+ * before it starts does not call the handler: a request answered already costs no work, however
+ * long it waited in the executor's queue. A task that has started cannot be cancelled: it
+ * completes when the handler returns, and not before, since the handler may be reading the body.
+ */
+class SyncHandlerTask extends CompletableFuture<HttpResponse> implements Runnable {
+
+    private static final String HANDLER_POOL_FULL = "Server is too busy to handle the request.\n";
+
+    private final HttpRequestHandler requestHandler;
+    private final HttpRequest httpRequest;
+    private final AtomicBoolean started = new AtomicBoolean(false); // claimed by run() or cancelIfNotStarted()
+
+    private SyncHandlerTask(HttpRequestHandler requestHandler, HttpRequest httpRequest) {
+        this.requestHandler = requestHandler;
+        this.httpRequest = httpRequest;
+    }
+
+    static SyncHandlerTask submit(HttpRequestHandler requestHandler, HttpRequest httpRequest, Executor executor) {
+        SyncHandlerTask task = new SyncHandlerTask(requestHandler, httpRequest);
+        try {
+            executor.execute(task);
+        }
+        catch (RejectedExecutionException e) {
+            task.complete(getServiceUnavailableResponse());
+        }
+        return task;
+    }
+
+    static HttpResponse getServiceUnavailableResponse() {
+        return HttpServer.getErrorResponse(HttpResponse.SERVICE_UNAVAILABLE_503, HANDLER_POOL_FULL);
+    }
+
+    /**
+     * Cancels the task if the handler has not been called yet, in which case it never will be.
+     * Returns false if the handler has started.
+     */
+    boolean cancelIfNotStarted() {
+        return started.compareAndSet(false, true) && cancel(false);
+    }
+
+    @Override
+    public void run() {
+        if (!started.compareAndSet(false, true) || isDone()) return;
+        try {
+            HttpResponse httpResponse = requestHandler.handleRequest(httpRequest);
+            if (!complete(httpResponse) && httpResponse != null) {
+                httpResponse.close(); // answered meanwhile
+            }
+        }
+        catch (Exception e) {
+            completeExceptionally(e);
+        }
+    }
+}
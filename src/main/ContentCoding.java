@@ -0,0 +1,133 @@
+package main;
+
+import http.HttpResponse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Content codings the file server can send (RFC 7231 section 3.1.2.1), and the negotiation of
+ * Accept-Encoding. deflate is the zlib format, as the HTTP "deflate" token means.
+ */
+public enum ContentCoding {
+
+    GZIP("gzip", ".gz"),
+    DEFLATE("deflate", null),
+    IDENTITY("identity", null);
+
+    public static final int DEFAULT_LEVEL = 6;
+
+    private final String token;
+    private final String fileSuffix; // of precompressed siblings, e.g. a.txt.gz
+
+    ContentCoding(String token, String fileSuffix) {
+        this.token = token;
+        this.fileSuffix = fileSuffix;
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    /**
+     * Suffix of a precompressed sibling file in this coding, or null if such files are not looked for.
+     */
+    public String getFileSuffix() {
+        return fileSuffix;
+    }
+
+    /**
+     * Compresses the content at the given level (1 fastest ... 9 smallest).
+     */
+    public byte[] encode(byte[] content, int level) throws IOException {
+
+        if (this == IDENTITY) {
+            return content;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(content.length / 4 + 64);
+        if (this == GZIP) {
+            try (GZIPOutputStream out = new GZIPOutputStream(bytes) {{ def.setLevel(level); }}) {
+                out.write(content);
+            }
+        }
+        else {
+            Deflater deflater = new Deflater(level);
+            try (DeflaterOutputStream out = new DeflaterOutputStream(bytes, deflater)) {
+                out.write(content);
+            }
+            finally {
+                deflater.end();
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Picks the coding preferred by an Accept-Encoding header value, e.g. "gzip;q=0.8, deflate".
+     * Ties go to gzip; a missing header, or one accepting neither coding, gets identity.
+     */
+    public static ContentCoding negotiate(String acceptEncoding) {
+
+        if (acceptEncoding == null) {
+            return IDENTITY;
+        }
+
+        double gzip = 0;
+        double deflate = 0;
+        double any = 0;
+        boolean gzipListed = false;
+        boolean deflateListed = false;
+        for (String element : acceptEncoding.split(",")) {
+            String[] parameters = element.split(";");
+            String coding = parameters[0].trim().toLowerCase();
+            double quality = getQuality(parameters);
+            switch (coding) {
+                case "gzip":
+                case "x-gzip":
+                    gzip = quality;
+                    gzipListed = true;
+                    break;
+                case "deflate":
+                    deflate = quality;
+                    deflateListed = true;
+                    break;
+                case "*":
+                    any = quality;
+                    break;
+            }
+        }
+        if (!gzipListed) gzip = any;
+        if (!deflateListed) deflate = any;
+
+        if (gzip > 0 && gzip >= deflate) return GZIP;
+        if (deflate > 0) return DEFLATE;
+        return IDENTITY;
+    }
+
+    /**
+     * Whether content of this type is worth compressing: text, JSON and XML, not images.
+     */
+    public static boolean isCompressible(String contentType) {
+        return contentType.startsWith("text/")
+                || contentType.equals(HttpResponse.contentTypeJson)
+                || contentType.endsWith("+json") || contentType.endsWith("/xml") || contentType.endsWith("+xml");
+    }
+
+    private static double getQuality(String[] parameters) {
+        for (int i = 1; i < parameters.length; ++i) {
+            String parameter = parameters[i].trim();
+            if (parameter.startsWith("q=")) {
+                try {
+                    return Double.parseDouble(parameter.substring(2));
+                }
+                catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 1;
+    }
+}
@@ -0,0 +1,162 @@
+package main;
+
+import http.ChunkSource;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+
+/**
+ * Body of a directory listing, read from the directory while the response is written, a chunk
+ * at a time: neither the time to the first byte nor the memory used depend on the directory size.
+ *
+ * The text format has one entry name per line, directories ending with a separator. The JSON
+ * format is an object with the entries' name, type, size and modification time, and whether
+ * more entries follow the page:
+ *
+ *   {"path":"/docs","offset":0,"entries":[{"name":"a.txt","type":"file","size":12,"lastModified":"..."}],"more":false}
+ *
+ * Entries come in the order the file system returns them, which is stable as long as the directory
+ * is not modified; a page (offset, limit) skips the first entries without reading their attributes.
+ */
+class DirectoryListing implements ChunkSource {
+
+    enum Format { TEXT, JSON }
+
+    static final long NO_LIMIT = Long.MAX_VALUE;
+
+    private static final int CHUNK_SIZE = 8192;
+    private static final String EMPTY_DIRECTORY = "Empty directory\n";
+
+    private final DirectoryStream<Path> entries;
+    private final Iterator<Path> iterator;
+    private final String uriPath;
+    private final long offset;
+    private final Format format;
+    private final StringBuilder lines = new StringBuilder(CHUNK_SIZE);
+    private long remaining; // entries left to list in the page
+    private boolean started = false;
+    private boolean ended = false;
+    private boolean firstEntry = true;
+
+    /**
+     * Opens the directory; it is read later, by nextChunk(), and closed with the listing.
+     * Temporary files of uploads in progress are left out.
+     *
+     * @param uriPath path of the directory as requested, for the JSON output
+     */
+    DirectoryListing(Path directory, String uriPath, long offset, long limit, Format format) throws IOException {
+        this.entries = Files.newDirectoryStream(directory, entry -> !HttpFileServer.isUploadFile(entry));
+        this.iterator = entries.iterator();
+        this.uriPath = uriPath;
+        this.offset = offset;
+        this.remaining = limit;
+        this.format = format;
+    }
+
+    @Override
+    public ByteBuffer nextChunk() throws IOException {
+
+        if (ended) return null;
+
+        lines.setLength(0);
+        try {
+            if (!started) {
+                start();
+            }
+            while (lines.length() < CHUNK_SIZE && remaining > 0 && iterator.hasNext()) {
+                appendEntry(iterator.next());
+                --remaining;
+            }
+            if (lines.length() < CHUNK_SIZE) {
+                end(); // the page is complete, or the chunk would have been filled
+            }
+        }
+        catch (DirectoryIteratorException e) {
+            throw e.getCause();
+        }
+
+        return ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void close() throws IOException {
+        entries.close();
+    }
+
+    private void start() {
+        started = true;
+        for (long skipped = 0; skipped < offset && iterator.hasNext(); ++skipped) {
+            iterator.next();
+        }
+        if (format == Format.JSON) {
+            lines.append("{\"path\":").append(quote(uriPath)).append(",\"offset\":").append(offset).append(",\"entries\":[");
+        }
+        else if (offset == 0 && !iterator.hasNext()) {
+            lines.append(EMPTY_DIRECTORY);
+        }
+    }
+
+    private void end() {
+        ended = true;
+        if (format == Format.JSON) {
+            lines.append("],\"more\":").append(iterator.hasNext()).append("}\n");
+        }
+    }
+
+    /**
+     * One stat per entry gives its type, and for JSON its size and modification time as well.
+     */
+    private void appendEntry(Path entry) {
+
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(entry, BasicFileAttributes.class);
+        }
+        catch (IOException e) {
+            attributes = null; // removed meanwhile, or a broken link
+        }
+        String name = entry.getFileName().toString();
+        boolean directory = attributes != null && attributes.isDirectory();
+
+        if (format == Format.TEXT) {
+            lines.append(name).append(directory ? File.separator + "\n" : "\n");
+            return;
+        }
+
+        if (!firstEntry) {
+            lines.append(',');
+        }
+        firstEntry = false;
+        lines.append("{\"name\":").append(quote(name));
+        if (attributes == null) {
+            lines.append(",\"type\":\"other\"}");
+            return;
+        }
+        lines.append(",\"type\":\"").append(directory ? "directory" : attributes.isRegularFile() ? "file" : "other").append('"')
+             .append(",\"size\":").append(attributes.size())
+             .append(",\"lastModified\":\"").append(attributes.lastModifiedTime()).append("\"}");
+    }
+
+    private static String quote(String value) {
+        StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); ++i) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            }
+            else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            }
+            else quoted.append(c);
+        }
+        return quoted.append('"').toString();
+    }
+}
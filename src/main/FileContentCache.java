@@ -0,0 +1,295 @@
+package main;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-memory cache of file contents, keyed by normalized path, bounded by a total size in bytes.
+ *
+ * Eviction follows W-TinyLFU: new entries go through a small LRU window, and an entry leaving
+ * the window only takes the place of the main region's LRU victim if it was requested more often,
+ * according to a count-min sketch of recent request frequencies. The main region is a segmented
+ * LRU (probation + protected), so entries hit once are evicted before entries hit repeatedly.
+ * A scan of cold files therefore cannot flush the hot ones.
+ *
+ * Entries remember the size and modification time of the file they were read from; a lookup
+ * with different values is a miss and drops the entry. The same holds for content derived
+ * from a file, e.g. the compressed variants.
+ */
+public class FileContentCache implements FileContentCacheMBean {
+
+    private static final double WINDOW_RATIO = 0.01;
+    private static final double PROTECTED_RATIO = 0.8;
+
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    private final long windowMaxBytes;
+    private final long mainMaxBytes;
+    private final long protectedMaxBytes;
+
+    /**
+     * Segments, in access order (eldest first). Guarded by this.
+     */
+    private final LinkedHashMap<String, Entry> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Entry> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Entry> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+    private long windowBytes;
+    private long probationBytes;
+    private long protectedBytes;
+    private final FrequencySketch sketch;
+
+    /**
+     * Statistics
+     */
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private static class Entry {
+        final String key;
+        final ByteBuffer content; // read-only, callers get duplicates
+        final long size; // bytes held
+        final long sourceSize; // of the file, differs from size for a compressed variant
+        final long lastModified;
+
+        Entry(String key, ByteBuffer content, long sourceSize, long lastModified) {
+            this.key = key;
+            this.content = content;
+            this.size = content.remaining();
+            this.sourceSize = sourceSize;
+            this.lastModified = lastModified;
+        }
+    }
+
+    /**
+     * @param maxBytes total size of the cached contents
+     * @param maxEntryBytes files larger than this are never cached
+     */
+    public FileContentCache(long maxBytes, long maxEntryBytes) {
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = Math.min(maxEntryBytes, maxBytes);
+        this.windowMaxBytes = (long) (maxBytes * WINDOW_RATIO);
+        this.mainMaxBytes = maxBytes - windowMaxBytes;
+        this.protectedMaxBytes = (long) (mainMaxBytes * PROTECTED_RATIO);
+        // about one counter per 4 KB of budget
+        this.sketch = new FrequencySketch((int) Math.min(1 << 20, Math.max(1024, maxBytes >> 12)));
+    }
+
+    /**
+     * Returns true if content of this size can be cached at all.
+     */
+    public boolean accepts(long size) {
+        return size <= maxEntryBytes;
+    }
+
+    /**
+     * Returns the cached content of the file, or null if it is not cached or the cached copy
+     * does not match the given size and modification time.
+     */
+    public ByteBuffer get(String key, long size, long lastModified) {
+
+        Entry entry;
+        synchronized (this) {
+            sketch.increment(key);
+
+            entry = window.get(key);
+            if (entry == null) {
+                entry = protectedSegment.get(key);
+            }
+            if (entry == null) {
+                entry = probation.remove(key);
+                if (entry != null) {
+                    // second hit: promote, demoting the protected LRU entries if needed
+                    probationBytes -= entry.size;
+                    protectedSegment.put(key, entry);
+                    protectedBytes += entry.size;
+                    while (protectedBytes > protectedMaxBytes) {
+                        Entry demoted = removeEldest(protectedSegment);
+                        protectedBytes -= demoted.size;
+                        probation.put(demoted.key, demoted);
+                        probationBytes += demoted.size;
+                    }
+                }
+            }
+
+            if (entry != null && (entry.sourceSize != size || entry.lastModified != lastModified)) {
+                remove(key); // changed on disk since it was cached
+                entry = null;
+            }
+        }
+
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.content.duplicate();
+    }
+
+    /**
+     * Caches the content of a file read with the given modification time.
+     * Returns the read-only buffer to serve it from.
+     */
+    public ByteBuffer put(String key, byte[] content, long lastModified) {
+        return put(key, content, content.length, lastModified);
+    }
+
+    /**
+     * Caches content derived from a file of the given size and modification time, such as
+     * its compressed variant; get() then validates it against the file, not the content.
+     */
+    public ByteBuffer put(String key, byte[] content, long sourceSize, long lastModified) {
+
+        ByteBuffer buffer = ByteBuffer.wrap(content).asReadOnlyBuffer();
+        if (!accepts(content.length)) {
+            return buffer;
+        }
+
+        Entry entry = new Entry(key, buffer, sourceSize, lastModified);
+        synchronized (this) {
+            remove(key);
+            window.put(key, entry);
+            windowBytes += entry.size;
+
+            while (windowBytes > windowMaxBytes) {
+                Entry candidate = removeEldest(window);
+                windowBytes -= candidate.size;
+                admit(candidate);
+            }
+        }
+        return buffer.duplicate();
+    }
+
+    /**
+     * Drops the cached content of a file, e.g. because it was just overwritten.
+     */
+    public synchronized void invalidate(String key) {
+        remove(key);
+    }
+
+    @Override
+    public long getHits() {
+        return hits.sum();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public synchronized long getSize() {
+        return windowBytes + probationBytes + protectedBytes;
+    }
+
+    @Override
+    public long getMaxSize() {
+        return maxBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "FileContentCache[size=" + getSize() + "/" + maxBytes + " bytes, hits=" + getHits()
+                + ", misses=" + getMisses() + ", evictions=" + getEvictions() + "]";
+    }
+
+    /**
+     * Moves a candidate leaving the window into the main region, if it is requested more
+     * often than the entries it would evict.
+     */
+    private void admit(Entry candidate) {
+
+        while (probationBytes + protectedBytes + candidate.size > mainMaxBytes) {
+            LinkedHashMap<String, Entry> segment = !probation.isEmpty() ? probation : protectedSegment;
+            if (segment.isEmpty() || sketch.frequency(candidate.key) <= sketch.frequency(eldest(segment).key)) {
+                evictions.increment(); // the candidate loses
+                return;
+            }
+            Entry victim = removeEldest(segment);
+            if (segment == probation) probationBytes -= victim.size;
+            else protectedBytes -= victim.size;
+            evictions.increment();
+        }
+
+        probation.put(candidate.key, candidate);
+        probationBytes += candidate.size;
+    }
+
+    private void remove(String key) {
+        Entry entry;
+        if ((entry = window.remove(key)) != null) windowBytes -= entry.size;
+        else if ((entry = probation.remove(key)) != null) probationBytes -= entry.size;
+        else if ((entry = protectedSegment.remove(key)) != null) protectedBytes -= entry.size;
+    }
+
+    private static Entry eldest(LinkedHashMap<String, Entry> segment) {
+        return segment.values().iterator().next();
+    }
+
+    private static Entry removeEldest(LinkedHashMap<String, Entry> segment) {
+        Iterator<Map.Entry<String, Entry>> iterator = segment.entrySet().iterator();
+        Entry eldest = iterator.next().getValue();
+        iterator.remove();
+        return eldest;
+    }
+
+    /**
+     * Count-min sketch of 4-bit counters. All counters are halved periodically, so that
+     * frequencies reflect recent requests rather than the whole history.
+     */
+    private static class FrequencySketch {
+
+        private static final int[] SEEDS = { 0x97cb3127, 0xb2a5e5f9, 0x7f4a7c15, 0x2545f491 };
+        private static final int MAX_COUNT = 15;
+
+        private final byte[] table;
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int width) {
+            int size = Integer.highestOneBit(width - 1) << 1;
+            table = new byte[size];
+            mask = size - 1;
+            sampleSize = 10 * size;
+        }
+
+        int frequency(String key) {
+            int hash = key.hashCode();
+            int frequency = MAX_COUNT;
+            for (int seed : SEEDS) {
+                frequency = Math.min(frequency, table[index(hash, seed)]);
+            }
+            return frequency;
+        }
+
+        void increment(String key) {
+            int hash = key.hashCode();
+            for (int seed : SEEDS) {
+                int index = index(hash, seed);
+                if (table[index] < MAX_COUNT) {
+                    ++table[index];
+                }
+            }
+            if (++additions == sampleSize) {
+                for (int i = 0; i < table.length; ++i) {
+                    table[i] >>= 1;
+                }
+                additions /= 2;
+            }
+        }
+
+        private int index(int hash, int seed) {
+            int h = hash * seed;
+            return (h ^ (h >>> 16)) & mask;
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package main;
+
+/**
+ * Management interface of FileContentCache, registered by the server next to its own metrics.
+ */
+public interface FileContentCacheMBean {
+
+    long getHits();
+
+    long getMisses();
+
+    long getEvictions();
+
+    long getSize();
+
+    long getMaxSize();
+}
@@ -0,0 +1,168 @@
+package main;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * What GET needs to know of a path before reading it, kept for a short time: its attributes
+ * (type, size, modification time), or that it does not exist, and whether the server may read it.
+ * A hot file then costs no stat at all, and neither does the missing precompressed sibling
+ * looked up for each compressible file.
+ *
+ * Entries expire after the TTL, which bounds how long a change made outside the server goes
+ * unnoticed; the server invalidates the paths its own uploads change. Lookups are lock-free.
+ * When the cache is full, each new entry evicts the oldest one, which is also the first to expire:
+ * a miss costs the same however many distinct paths are requested (a 404 scan, say).
+ */
+public class FileMetadataCache implements FileMetadataCacheMBean {
+
+    public static final long DEFAULT_TTL = 1000; // ms
+    public static final int DEFAULT_MAX_ENTRIES = 16384;
+
+    private final ConcurrentHashMap<Path, Metadata> entries = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Metadata> insertionOrder = new ConcurrentLinkedQueue<>(); // every entry put, oldest first
+    private final AtomicInteger queued = new AtomicInteger(); // size of insertionOrder
+    private final long ttlNanos;
+    private final int maxEntries;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Attributes of a path when it was looked up.
+     */
+    public static class Metadata {
+
+        private final Path path;
+        private final BasicFileAttributes attributes; // null if the path did not exist
+        private final boolean readable;
+        private final long expiry; // System.nanoTime()
+
+        private Metadata(Path path, BasicFileAttributes attributes, boolean readable, long expiry) {
+            this.path = path;
+            this.attributes = attributes;
+            this.readable = readable;
+            this.expiry = expiry;
+        }
+
+        public boolean exists() {
+            return attributes != null;
+        }
+
+        public boolean isDirectory() {
+            return attributes != null && attributes.isDirectory();
+        }
+
+        public boolean isRegularFile() {
+            return attributes != null && attributes.isRegularFile();
+        }
+
+        public boolean isReadable() {
+            return readable;
+        }
+
+        /**
+         * Returns the attributes, null if the path does not exist.
+         */
+        public BasicFileAttributes getAttributes() {
+            return attributes;
+        }
+    }
+
+    public FileMetadataCache() {
+        this(DEFAULT_TTL, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * @param ttl ms an entry is used for, 0 to look up every path every time
+     */
+    public FileMetadataCache(long ttl, int maxEntries) {
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttl);
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Returns the metadata of a normalized path, looking it up if it is not cached or has expired.
+     */
+    public Metadata get(Path path) {
+
+        long now = System.nanoTime();
+        Metadata metadata = entries.get(path);
+        if (metadata != null && now - metadata.expiry < 0) {
+            hits.increment();
+            return metadata;
+        }
+        misses.increment();
+
+        metadata = lookUp(path, now + ttlNanos);
+        if (ttlNanos > 0) {
+            entries.put(path, metadata);
+            insertionOrder.add(metadata);
+            queued.incrementAndGet();
+            evict(now);
+        }
+        return metadata;
+    }
+
+    /**
+     * Removes the oldest entries while the cache is full. Entries replaced or invalidated since
+     * they were put only left their place in the queue; once they make up more than the size of
+     * the cache, the queue is trimmed too, live entries that have not expired going back at its end.
+     */
+    private void evict(long now) {
+        Metadata oldest;
+        while ((entries.size() > maxEntries || queued.get() > 2 * maxEntries) && (oldest = insertionOrder.poll()) != null) {
+            queued.decrementAndGet();
+            if (entries.size() <= maxEntries && now - oldest.expiry < 0 && entries.get(oldest.path) == oldest) {
+                insertionOrder.add(oldest);
+                queued.incrementAndGet();
+            }
+            else {
+                entries.remove(oldest.path, oldest);
+            }
+        }
+    }
+
+    /**
+     * Forgets a path, e.g. because the server just created or replaced it.
+     */
+    public void invalidate(Path path) {
+        entries.remove(path);
+    }
+
+    private static Metadata lookUp(Path path, long expiry) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            return new Metadata(path, attributes, Files.isReadable(path), expiry);
+        }
+        catch (IOException e) {
+            return new Metadata(path, null, false, expiry); // missing, or not accessible: both are treated as missing
+        }
+    }
+
+    @Override
+    public long getHits() {
+        return hits.sum();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public int getEntries() {
+        return entries.size();
+    }
+
+    @Override
+    public String toString() {
+        return "FileMetadataCache[entries=" + getEntries() + "/" + maxEntries + ", hits=" + getHits() + ", misses=" + getMisses() + "]";
+    }
+}
@@ -0,0 +1,13 @@
+package main;
+
+/**
+ * Management interface of FileMetadataCache, registered by the server next to its own metrics.
+ */
+public interface FileMetadataCacheMBean {
+
+    long getHits();
+
+    long getMisses();
+
+    int getEntries();
+}
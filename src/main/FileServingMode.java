@@ -0,0 +1,24 @@
+package main;
+
+/**
+ * How HttpFileServer sends the files too large for its content cache.
+ */
+public enum FileServingMode {
+
+    /**
+     * FileChannel.transferTo from a channel opened by each request (sendfile).
+     */
+    TRANSFER,
+
+    /**
+     * Writes from memory mappings kept in a MappedFileCache, shared by the requests.
+     */
+    MMAP,
+
+    /**
+     * Reads with an AsynchronousFileChannel into pooled direct buffers, the next one while the
+     * previous one is written, so that a slow disk does not hold the writing thread; uploads are
+     * written the same way, the next buffer being received while the previous one is written.
+     */
+    ASYNC
+}
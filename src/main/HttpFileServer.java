@@ -1,39 +1,179 @@
 package main;
 
+import http.BufferPool;
+import http.ByteRange;
+import http.HttpDate;
 import http.HttpRequest;
 import http.HttpRequestHandler;
 import http.HttpResponse;
 import http.HttpServer;
+import http.MetricsSource;
+import http.MetricsWriter;
+import http.ResponseBody;
+import http.ResponseTemplate;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.time.ZonedDateTime;
-import java.time.format.DateTimeFormatter;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Optional;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-import java.util.regex.Pattern;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 import static http.HttpServer.VERSION_1_0;
 
-public class HttpFileServer implements HttpRequestHandler {
+public class HttpFileServer implements HttpRequestHandler, MetricsSource {
 
-    private DateTimeFormatter formatter = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss O");
+    private final static Map<String, ResponseTemplate> MESSAGE_TEMPLATES = new ConcurrentHashMap<>();
     private final static String DEFAULT_CONTENT_DISPOSITION = "inline";
+    private final static String UPLOAD_SUFFIX = ".upload";
+    private final static int UPLOAD_BUFFER_SIZE = 64 * 1024;
+    public final static long DEFAULT_CACHE_SIZE = 64L << 20;
+    private final static long MAX_CACHED_FILE_SIZE = 1L << 20;
+    private final static int MAX_RANGES = 64;
+    private final static long MIN_COMPRESSED_FILE_SIZE = 1024;
+    private final static long MAX_COMPRESSED_FILE_SIZE = 8L << 20;
 
-    private final ReentrantReadWriteLock rwl = new ReentrantReadWriteLock();
-    private final Lock r = rwl.readLock();
-    private final Lock w = rwl.writeLock();
+    private final PathLockTable pathLocks = new PathLockTable();
 
     private String rootDir;
+    private final PathResolver resolver;
+    private final FileMetadataCache metadataCache = new FileMetadataCache();
+    private FileContentCache contentCache; // null when disabled
+    private FileContentCache compressedCache; // compressed variants, null when disabled
+    private MappedFileCache mappedCache; // null unless serving mode is MMAP
+    private boolean asyncIO; // serving mode is ASYNC
+    private int compressionLevel;
+
+    /**
+     * @param cacheSize bytes of file content kept in memory for GETs, 0 to disable the cache;
+     *                  compressed variants get a quarter of it on top
+     * @param compressionLevel gzip/deflate level of the files compressed on the fly, 1 to 9,
+     *                         0 to only serve precompressed .gz files
+     * @param servingMode how files too large for the cache are sent
+     */
+    public HttpFileServer(String rootDir, long cacheSize, int compressionLevel, FileServingMode servingMode) {
+        this.rootDir = rootDir;
+        this.resolver = new PathResolver(rootDir);
+        this.compressionLevel = compressionLevel;
+        if (servingMode == FileServingMode.MMAP) {
+            this.mappedCache = new MappedFileCache(MappedFileCache.DEFAULT_MAX_SIZE);
+        }
+        this.asyncIO = servingMode == FileServingMode.ASYNC;
+        if (cacheSize > 0) {
+            this.contentCache = new FileContentCache(cacheSize, Math.min(MAX_CACHED_FILE_SIZE, cacheSize / 8));
+            if (compressionLevel > 0) {
+                this.compressedCache = new FileContentCache(cacheSize / 4, Math.min(MAX_CACHED_FILE_SIZE, cacheSize / 32));
+            }
+        }
+    }
+
+    public HttpFileServer(String rootDir, long cacheSize, int compressionLevel) {
+        this(rootDir, cacheSize, compressionLevel, FileServingMode.TRANSFER);
+    }
+
+    public HttpFileServer(String rootDir, long cacheSize) {
+        this(rootDir, cacheSize, ContentCoding.DEFAULT_LEVEL);
+    }
 
     public HttpFileServer(String rootDir) {
-        this.rootDir = rootDir;
+        this(rootDir, DEFAULT_CACHE_SIZE);
     }
 
     public HttpFileServer() {
-        this.rootDir = System.getProperty("user.dir");
+        this(System.getProperty("user.dir"));
+    }
+
+    /**
+     * Returns the content cache, e.g. to read its hit/miss/eviction counters, or null if disabled.
+     */
+    public FileContentCache getContentCache() {
+        return contentCache;
+    }
+
+    /**
+     * Returns the cache of compressed variants, or null if disabled.
+     */
+    public FileContentCache getCompressedCache() {
+        return compressedCache;
+    }
+
+    /**
+     * Returns the cache of memory mappings, or null if files are not served from mappings.
+     */
+    public MappedFileCache getMappedCache() {
+        return mappedCache;
+    }
+
+    /**
+     * Returns the cache of file attributes looked up by GETs.
+     */
+    public FileMetadataCache getMetadataCache() {
+        return metadataCache;
+    }
+
+    /**
+     * Statistics of the caches in use, labelled cache="content", "compressed" or "mapped",
+     * and of the metadata cache, labelled cache="metadata".
+     */
+    @Override
+    public void writeMetrics(MetricsWriter writer) {
+
+        Map<String, FileContentCache> contentCaches = new LinkedHashMap<>();
+        if (contentCache != null) contentCaches.put("content", contentCache);
+        if (compressedCache != null) contentCaches.put("compressed", compressedCache);
+
+        writer.metric("httpfs_cache_hits_total", "counter", "Cache lookups finding the file.");
+        contentCaches.forEach((name, cache) -> writer.sample("httpfs_cache_hits_total", "cache=\"" + name + "\"", cache.getHits()));
+        if (mappedCache != null) writer.sample("httpfs_cache_hits_total", "cache=\"mapped\"", mappedCache.getHits());
+        writer.sample("httpfs_cache_hits_total", "cache=\"metadata\"", metadataCache.getHits());
+
+        writer.metric("httpfs_cache_misses_total", "counter", "Cache lookups not finding the file, or finding it modified.");
+        contentCaches.forEach((name, cache) -> writer.sample("httpfs_cache_misses_total", "cache=\"" + name + "\"", cache.getMisses()));
+        if (mappedCache != null) writer.sample("httpfs_cache_misses_total", "cache=\"mapped\"", mappedCache.getMisses());
+        writer.sample("httpfs_cache_misses_total", "cache=\"metadata\"", metadataCache.getMisses());
+
+        writer.metric("httpfs_cache_evictions_total", "counter", "Files evicted to make room for others.");
+        contentCaches.forEach((name, cache) -> writer.sample("httpfs_cache_evictions_total", "cache=\"" + name + "\"", cache.getEvictions()));
+
+        writer.metric("httpfs_cache_size_bytes", "gauge", "Bytes held by the cache.");
+        contentCaches.forEach((name, cache) -> writer.sample("httpfs_cache_size_bytes", "cache=\"" + name + "\"", cache.getSize()));
+        if (mappedCache != null) writer.sample("httpfs_cache_size_bytes", "cache=\"mapped\"", mappedCache.getSize());
+
+        writer.metric("httpfs_cache_max_size_bytes", "gauge", "Capacity of the cache.");
+        contentCaches.forEach((name, cache) -> writer.sample("httpfs_cache_max_size_bytes", "cache=\"" + name + "\"", cache.getMaxSize()));
+        if (mappedCache != null) writer.sample("httpfs_cache_max_size_bytes", "cache=\"mapped\"", mappedCache.getMaxSize());
+
+        writer.gauge("httpfs_cache_entries", "Paths held by the metadata cache.", metadataCache.getEntries());
+    }
+
+    @Override
+    public Map<String, Object> getMBeans() {
+        Map<String, Object> mBeans = new LinkedHashMap<>();
+        if (contentCache != null) mBeans.put("type=FileContentCache,name=content", contentCache);
+        if (compressedCache != null) mBeans.put("type=FileContentCache,name=compressed", compressedCache);
+        if (mappedCache != null) mBeans.put("type=MappedFileCache,name=mapped", mappedCache);
+        mBeans.put("type=FileMetadataCache,name=metadata", metadataCache);
+        return mBeans;
     }
 
     @Override
@@ -51,73 +191,136 @@ public class HttpFileServer implements HttpRequestHandler {
     }
 
     /* Threadsafe method to read and return the contents of a file
-     * Acquires a read lock preventing another thread from modifying
-     * a file while it's being read
+     * Acquires a read lock on the path preventing another thread from modifying
+     * the file (or directory) while it's being read
      */
+    @SuppressWarnings("try") // the locks are only held, never referenced
     private HttpResponse handleGET(HttpRequest httpRequest) {
 
-        r.lock();
-
-        try {
-            HttpResponse httpResponse = null;
-            String path = rootDir + httpRequest.getRequestURI();
+        String path = rootDir + httpRequest.getPath();
+        Path file = resolver.resolve(httpRequest.getPath());
 
-            if (! pathIsWithinRootDir(path)) {
-                String message = "Access forbidden for path: " + path + "\n";
-                return HttpServer.getErrorResponse(HttpResponse.FORBIDDEN_403, message);
-            }
+        if (file == null) {
+            String message = "Access forbidden for path: " + path + "\n";
+            return HttpServer.getErrorResponse(HttpResponse.FORBIDDEN_403, message);
+        }
 
-            File file = new File(path);
+        if (isUploadFile(file)) {
+            return HttpServer.getErrorResponse(HttpResponse.NOT_FOUND_404, "Resource does not exist.\n");
+        }
 
+        try (PathLockTable.Locks locks = pathLocks.lockForReading(file)) {
+            HttpResponse httpResponse = null;
 
-            if (file.isDirectory()) {
+            FileMetadataCache.Metadata metadata = metadataCache.get(file);
 
-                File[] fileList = file.listFiles();
-                StringBuilder sb = new StringBuilder();
-                if (fileList != null && fileList.length > 0){
-                    for (File dirEntity : fileList) {
-                        sb.append(dirEntity.getName());
-                        sb.append(dirEntity.isDirectory() ? File.separator + "\n" : "\n");
-                    }
-                }
-                else {
-                    sb.append("Empty directory\n");
-                }
-
-                return getResponse(HttpResponse.OK_200, sb.toString());
+            if (metadata.isDirectory()) {
+                return getListingResponse(httpRequest, file);
             }
-            else if (!file.isFile()){
+            else if (!metadata.isRegularFile()){
                 return HttpServer.getErrorResponse(HttpResponse.NOT_FOUND_404, "Resource does not exist.\n");
             }
-            else if (!file.canRead()) {
+            else if (!metadata.isReadable()) {
                 String message = "Cannot read the specified file: " + path + "\n";
                 return HttpServer.getErrorResponse(HttpResponse.FORBIDDEN_403, message);
             }
 
 
-            //if ok, get the string and make a 200ok response with body
-            try (BufferedReader br = new BufferedReader(new FileReader(path))) {
-
-                StringBuilder sb = new StringBuilder();
-                String line;
-                for (line = br.readLine(); line != null; line = br.readLine()) {
-                    sb.append(line + '\n');
+            //if ok, make a 200ok response with the file content as the body
+            try {
+                BasicFileAttributes attributes = metadata.getAttributes();
+                String contentType = getContentType(path);
+                boolean compressible = ContentCoding.isCompressible(contentType) && !path.endsWith(ContentCoding.GZIP.getFileSuffix());
+
+                // what to send: the file, its precompressed sibling (a.txt.gz), or the file compressed here
+                ContentCoding coding = getContentCoding(httpRequest, compressible);
+                Path source = file;
+                BasicFileAttributes sourceAttributes = attributes;
+                boolean precompressed = false;
+                if (coding != ContentCoding.IDENTITY) {
+                    BasicFileAttributes siblingAttributes = getPrecompressedAttributes(file, coding, attributes);
+                    if (siblingAttributes != null) {
+                        source = file.resolveSibling(file.getFileName() + coding.getFileSuffix());
+                        sourceAttributes = siblingAttributes;
+                        precompressed = true;
+                    }
+                    else if (!canCompress(attributes.size())) {
+                        coding = ContentCoding.IDENTITY;
+                    }
                 }
 
-                httpResponse = getResponse(HttpResponse.OK_200, sb.toString());
-
-                // get file extension
-                Optional<String> extension = getExtension(path);
-                if(extension.isPresent()) {
-                    String ext = HttpResponse.getExtensionString(extension.get());
-                    if (ext != null) {
-                        httpResponse.setContentType(ext);
+                // validators only need the attributes: an unchanged file is neither opened nor read
+                String eTag = getETag(sourceAttributes, coding);
+                String lastModified = HttpDate.format(attributes.lastModifiedTime().toInstant());
+                if (isNotModified(httpRequest, eTag, attributes)) {
+                    // the length of a variant compressed here is only known once compressed
+                    long size = (coding == ContentCoding.IDENTITY || precompressed) ? sourceAttributes.size() : ResponseBody.UNKNOWN_LENGTH;
+                    httpResponse = getNotModifiedResponse(eTag, lastModified, size);
+                    if (compressible) {
+                        httpResponse.setHeader("Vary", "Accept-Encoding");
                     }
+                    return httpResponse;
                 }
 
+                List<ByteRange> ranges = getRanges(httpRequest, eTag, lastModified, attributes.size());
+                if (ranges != null && ranges.isEmpty()) {
+                    httpResponse = HttpServer.getErrorResponse(HttpResponse.RANGE_NOT_SATISFIABLE_416, "Requested range not satisfiable.\n");
+                    httpResponse.setHeader("Content-Range", ByteRange.unsatisfiedContentRange(attributes.size()));
+                    return httpResponse;
+                }
+
+                FileContent content;
+                if (coding != ContentCoding.IDENTITY && !precompressed) {
+                    content = new FileContent(getCompressedContent(source, attributes, coding));
+                }
+                else if (contentCache != null && contentCache.accepts(sourceAttributes.size())) {
+                    content = new FileContent(getCachedContent(source, sourceAttributes));
+                }
+                else if (mappedCache != null && mappedCache.accepts(sourceAttributes.size())) {
+                    content = new FileContent(mappedCache.acquire(source, sourceAttributes));
+                }
+                else if (asyncIO) {
+                    // reading starts at once, under the read lock; the server closes the channel once the body is sent
+                    content = new FileContent(AsynchronousFileChannel.open(source, StandardOpenOption.READ));
+                }
+                else {
+                    // Opened under the read lock; the server closes the channel once the body is sent
+                    content = new FileContent(FileChannel.open(source, StandardOpenOption.READ));
+                }
 
+                try {
+                    if (ranges == null) {
+                        httpResponse = getFileResponse(content.getBody());
+                        httpResponse.setContentType(contentType);
+                    }
+                    else if (ranges.size() == 1) {
+                        ByteRange range = ranges.get(0);
+                        httpResponse = getFileResponse(HttpResponse.PARTIAL_CONTENT_206, content.getSlice(range));
+                        httpResponse.setContentType(contentType);
+                        httpResponse.setHeader("Content-Range", range.toContentRange(attributes.size()));
+                    }
+                    else {
+                        String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong() | Long.MIN_VALUE);
+                        httpResponse = getFileResponse(HttpResponse.PARTIAL_CONTENT_206,
+                                getMultipartBody(content, ranges, attributes.size(), contentType, boundary));
+                        httpResponse.setContentType("multipart/byteranges; boundary=" + boundary);
+                    }
+                }
+                finally {
+                    content.release(); // the bodies hold their own references
+                }
+                if (coding != ContentCoding.IDENTITY) {
+                    httpResponse.setHeader("Content-Encoding", coding.getToken());
+                }
+                if (compressible) {
+                    httpResponse.setHeader("Vary", "Accept-Encoding");
+                }
+                httpResponse.setHeader("Accept-Ranges", "bytes");
+                httpResponse.setHeader("ETag", eTag);
+                httpResponse.setHeader("Last-Modified", lastModified);
             }
-            catch (FileNotFoundException fnf) {
+            catch (NoSuchFileException fnf) {
+                metadataCache.invalidate(file); // removed since it was cached
                 String message = "Couldn't find resource: " + path + "\n";
                 httpResponse = HttpServer.getErrorResponse(HttpResponse.INTERNAL_SERVER_ERROR_500, message);
             }
@@ -128,34 +331,214 @@ public class HttpFileServer implements HttpRequestHandler {
 
             return httpResponse;
         }
-        finally {
-            r.unlock();
+
+    }
+
+    /**
+     * Strong validator built from the size and modification time: cheap, and it changes whenever
+     * an upload replaces the file (or the file is modified in place, up to the file system's time resolution).
+     * Each content coding is a different representation, with its own tag.
+     */
+    private static String getETag(BasicFileAttributes attributes, ContentCoding coding) {
+        return "\"" + Long.toHexString(attributes.size()) + "-"
+                + Long.toHexString(attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS))
+                + (coding == ContentCoding.IDENTITY ? "" : "-" + coding.getToken()) + "\"";
+    }
+
+    /**
+     * Negotiates the coding of a compressible file. Range requests get the file itself, so that
+     * byte positions always refer to the same representation.
+     */
+    private static ContentCoding getContentCoding(HttpRequest httpRequest, boolean compressible) {
+        if (!compressible || httpRequest.getHeader("Range") != null) {
+            return ContentCoding.IDENTITY;
+        }
+        return ContentCoding.negotiate(httpRequest.getHeader("Accept-Encoding"));
+    }
+
+    /**
+     * Returns the attributes of the precompressed sibling of a file in the given coding, or null
+     * if there is none, or if it is older than the file (left over from a previous version).
+     */
+    private BasicFileAttributes getPrecompressedAttributes(Path file, ContentCoding coding, BasicFileAttributes attributes) {
+        if (coding.getFileSuffix() == null) {
+            return null;
+        }
+        FileMetadataCache.Metadata sibling = metadataCache.get(file.resolveSibling(file.getFileName() + coding.getFileSuffix()));
+        if (sibling.isRegularFile() && sibling.isReadable()
+                && sibling.getAttributes().lastModifiedTime().compareTo(attributes.lastModifiedTime()) >= 0) {
+            return sibling.getAttributes();
         }
+        return null;
+    }
 
+    /**
+     * Small files gain little from compression, and large ones would be held in memory to compress them.
+     */
+    private boolean canCompress(long size) {
+        return compressionLevel > 0 && size >= MIN_COMPRESSED_FILE_SIZE && size <= MAX_COMPRESSED_FILE_SIZE;
     }
 
-    /* Creates a file and any needed directories requested by the client
-     * and writes to the file any content specified in the request.
-     * Uses a writer's lock to make sure no other thread is accessing the file
-     * system while this method is executing.
+    /**
+     * Evaluates the conditional GET headers. If-None-Match takes precedence over If-Modified-Since,
+     * as in RFC 7232; an unparseable date is ignored.
      */
-    private HttpResponse handlePOST(HttpRequest httpRequest) {
+    private static boolean isNotModified(HttpRequest httpRequest, String eTag, BasicFileAttributes attributes) {
+
+        String ifNoneMatch = httpRequest.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2); // weak comparison, enough for a GET
+                }
+                if (tag.equals("*") || tag.equals(eTag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
 
-        w.lock();
+        String ifModifiedSince = httpRequest.getHeader("If-Modified-Since");
+        if (ifModifiedSince != null) {
+            long since = HttpDate.parse(ifModifiedSince);
+            return since >= 0 && attributes.lastModifiedTime().to(TimeUnit.SECONDS) <= since; // Last-Modified has a one second resolution
+        }
+        return false;
+    }
 
+    /**
+     * Returns the ranges requested by a Range header, or null if the whole file is to be sent:
+     * no header, an invalid one, too many ranges, or an If-Range validator that does not match
+     * the current file (the client's copy is stale, it gets the new one in full).
+     * An empty list means that no range is satisfiable.
+     */
+    private static List<ByteRange> getRanges(HttpRequest httpRequest, String eTag, String lastModified, long size) {
+
+        String range = httpRequest.getHeader("Range");
+        if (range == null) {
+            return null;
+        }
+        String ifRange = httpRequest.getHeader("If-Range");
+        if (ifRange != null && !ifRange.trim().equals(eTag) && !ifRange.trim().equals(lastModified)) {
+            return null;
+        }
+        List<ByteRange> ranges = ByteRange.parse(range, size);
+        return (ranges != null && ranges.size() > MAX_RANGES) ? null : ranges;
+    }
+
+    /**
+     * multipart/byteranges body: each range preceded by its part header, as in RFC 7233 appendix A.
+     * The parts of the file are slices of the same buffer, or positional reads of the same channel,
+     * and the length is known in advance.
+     */
+    private static ResponseBody getMultipartBody(FileContent content, List<ByteRange> ranges,
+                                                 long size, String contentType, String boundary) throws IOException {
+
+        List<ResponseBody> parts = new ArrayList<>(2 * ranges.size() + 1);
         try {
-            String fullPath = rootDir + httpRequest.getRequestURI();
+            for (ByteRange range : ranges) {
+                String partHeader = "\r\n--" + boundary + "\r\n"
+                        + "Content-Type: " + contentType + "\r\n"
+                        + "Content-Range: " + range.toContentRange(size) + "\r\n\r\n";
+                parts.add(ResponseBody.of(partHeader.getBytes(StandardCharsets.ISO_8859_1)));
+                parts.add(content.getPart(range));
+            }
+        }
+        catch (RuntimeException e) {
+            ResponseBody.concat(parts).close(); // the parts built so far own the file
+            throw e;
+        }
+        parts.add(ResponseBody.of(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1)));
+        return ResponseBody.concat(parts);
+    }
 
-            File file = new File(fullPath);
+    /**
+     * 304 answer: the validators, and the length of the content the client already has, without a body.
+     */
+    private HttpResponse getNotModifiedResponse(String eTag, String lastModified, long size) {
 
-            if (! pathIsWithinRootDir(fullPath)) {
-                String message = "Access forbidden for path: " + fullPath + "\n";
-                return HttpServer.getErrorResponse(HttpResponse.FORBIDDEN_403, message);
+        return new HttpResponse.Builder(VERSION_1_0)
+                .statusCodeAndReasonPhrase(HttpResponse.NOT_MODIFIED_304)
+                .date(HttpDate.now())
+                .contentLength(size)
+                .header("ETag", eTag)
+                .header("Last-Modified", lastModified)
+                .build();
+    }
+
+    /**
+     * Lists a directory, or the page of it given by the offset and limit query parameters,
+     * as text or as JSON (format=json). Entries are listed as the response is written, after
+     * the lock is released: uploads only add entries with an atomic move, so the listing stays consistent.
+     */
+    private HttpResponse getListingResponse(HttpRequest httpRequest, Path directory) {
+
+        long offset;
+        long limit;
+        try {
+            offset = getLongParameter(httpRequest, "offset", 0);
+            limit = getLongParameter(httpRequest, "limit", DirectoryListing.NO_LIMIT);
+        }
+        catch (NumberFormatException e) {
+            return HttpServer.getErrorResponse(HttpResponse.BAD_REQUEST_400, "Offset and limit must be non-negative integers.\n");
+        }
+        boolean json = "json".equalsIgnoreCase(httpRequest.getQueryParameter("format"));
+
+        try {
+            DirectoryListing listing = new DirectoryListing(directory, httpRequest.getPath(), offset, limit,
+                    json ? DirectoryListing.Format.JSON : DirectoryListing.Format.TEXT);
+            HttpResponse httpResponse = getFileResponse(ResponseBody.chunked(listing));
+            if (json) {
+                httpResponse.setContentType(HttpResponse.contentTypeJson);
             }
+            return httpResponse;
+        }
+        catch (IOException e) {
+            String message = "Problem listing the specified directory: " + directory + "\n";
+            return HttpServer.getErrorResponse(HttpResponse.INTERNAL_SERVER_ERROR_500, message);
+        }
+    }
 
-            String path = file.getParent();
+    private static long getLongParameter(HttpRequest httpRequest, String name, long defaultValue) {
+        String value = httpRequest.getQueryParameter(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        long number = Long.parseLong(value);
+        if (number < 0) {
+            throw new NumberFormatException("Negative " + name + ": " + value);
+        }
+        return number;
+    }
 
-            File folder = new File(path);
+    /* Creates a file and any needed directories requested by the client
+     * and writes to the file any content specified in the request.
+     * The content is streamed to a temporary file next to the target in fixed-size
+     * buffers, then moved into place atomically: memory use does not depend on the
+     * size of the upload, and readers never see a partially written file.
+     * Write locks on the file and on the directories getting new entries are only
+     * held to prepare the directory and to move the file, not while the content is received.
+     */
+    @SuppressWarnings("try") // the locks are only held, never referenced
+    private HttpResponse handlePOST(HttpRequest httpRequest) {
+
+        String fullPath = rootDir + httpRequest.getPath();
+        Path target = resolver.resolve(httpRequest.getPath());
+
+        if (target == null || target.equals(resolver.getRoot()) || isUploadFile(target)) {
+            String message = "Access forbidden for path: " + fullPath + "\n";
+            return HttpServer.getErrorResponse(HttpResponse.FORBIDDEN_403, message);
+        }
+
+        File file = new File(fullPath);
+        String path = file.getParent();
+        Path parent = target.getParent();
+        Path tempFile;
+
+        List<Path> modifiedPaths = getModifiedPaths(target);
+        try (PathLockTable.Locks locks = pathLocks.lockForWriting(modifiedPaths)) {
+            File folder = parent.toFile();
 
             if (!folder.isDirectory()) {
 
@@ -169,52 +552,251 @@ public class HttpFileServer implements HttpRequestHandler {
                 return HttpServer.getErrorResponse(HttpResponse.FORBIDDEN_403, message);
             }
 
-            try {
+            if (Files.isDirectory(target)) {
+                String message = "Can't replace a directory with a file: " + file.getPath() + "\n";
+                return HttpServer.getErrorResponse(HttpResponse.FORBIDDEN_403, message);
+            }
+            if (Files.exists(target) && !Files.isWritable(target)) {
+                return HttpServer.getErrorResponse(HttpResponse.FORBIDDEN_403, "\nCan't write to file: " + file.getPath() + "\n");
+            }
 
-                if (!file.exists()) {
-                    boolean success = file.createNewFile();
-                    if (!success) throw new IOException("Cannot create new file: " + path + "\n");
-                }
+            tempFile = createUploadFile(parent, target.getFileName().toString());
+        }
+        catch (IOException e) {
+            String message = "Cannot create new file: " + path + "\n";
+            return HttpServer.getErrorResponse(HttpResponse.INTERNAL_SERVER_ERROR_500, message);
+        }
 
+        //write content to the temporary file, then replace the file with it
+        long size = 0;
+        try {
+            try (InputStream in = httpRequest.getBodyStream()) {
+                size = asyncIO ? receiveUploadAsync(in, tempFile) : receiveUpload(in, tempFile);
             }
-            catch (IOException e) {
-                return HttpServer.getErrorResponse(HttpResponse.INTERNAL_SERVER_ERROR_500, e.getMessage());
+
+            try (PathLockTable.Locks locks = pathLocks.lockForWriting(parent, target)) {
+                if (Files.isDirectory(target)) { // created while the content was received
+                    String message = "Can't replace a directory with a file: " + file.getPath() + "\n";
+                    return HttpServer.getErrorResponse(HttpResponse.FORBIDDEN_403, message);
+                }
+                moveIntoPlace(tempFile, target);
+                if (contentCache != null) {
+                    contentCache.invalidate(target.toString());
+                }
+                if (mappedCache != null) {
+                    mappedCache.invalidate(target.toString());
+                }
+                modifiedPaths.forEach(metadataCache::invalidate); // the file, and the directories it was created in
+            }
+        }
+        catch (IOException e) {
+            String message = "Problem writing to file: " + file.getPath() + "\n";
+            return HttpServer.getErrorResponse(HttpResponse.INTERNAL_SERVER_ERROR_500, message);
+        }
+        finally {
+            try {
+                Files.deleteIfExists(tempFile);
             }
+            catch (IOException ignored) {
+            }
+        }
 
-            if (!file.canWrite()) {
-                return HttpServer.getErrorResponse(HttpResponse.FORBIDDEN_403, "\nCan't write to file: " + file.getPath() + "\n");
+        String message = "File '" + file.getPath() + "' created successfully. Size: " + size + "\n";
+        return getResponse(HttpResponse.CREATED_201, message);
+    }
+
+    /**
+     * Returns the paths a POST to the target modifies: the target itself, and the directories
+     * getting a new entry, from the deepest existing ancestor down to the parent directory.
+     */
+    private static List<Path> getModifiedPaths(Path target) {
+
+        List<Path> paths = new ArrayList<>();
+        paths.add(target);
+
+        Path directory = target.getParent();
+        paths.add(directory);
+        while (!Files.isDirectory(directory) && directory.getParent() != null) {
+            directory = directory.getParent();
+            paths.add(directory);
+        }
+        return paths;
+    }
+
+    private static long receiveUpload(InputStream in, Path file) throws IOException {
+        long size = 0;
+        ByteBuffer buffer = BufferPool.HEAP.acquire(UPLOAD_BUFFER_SIZE);
+        try (OutputStream out = Files.newOutputStream(file)) {
+            int count;
+            while ((count = in.read(buffer.array(), buffer.arrayOffset(), buffer.capacity())) != -1) {
+                out.write(buffer.array(), buffer.arrayOffset(), count);
+                size += count;
             }
+        }
+        finally {
+            BufferPool.HEAP.release(buffer);
+        }
+        return size;
+    }
 
-            //write content to file, or overwrite with new or no content
-            try (PrintWriter pw = new PrintWriter(file)) {
-                String content = httpRequest.getEntityBody();
-                pw.print(content!= null ? content : "");
+    /**
+     * Receives an upload into two pooled direct buffers in turn: one is written to the file with an
+     * AsynchronousFileChannel while the next one is read from the connection. Direct buffers
+     * spare the file channel a copy into a temporary direct buffer of its own on every write.
+     */
+    private static long receiveUploadAsync(InputStream in, Path file) throws IOException {
+        ReadableByteChannel source = Channels.newChannel(in); // not closed: the stream belongs to the request
+        ByteBuffer reading = BufferPool.DIRECT.acquire(UPLOAD_BUFFER_SIZE);
+        ByteBuffer writing = BufferPool.DIRECT.acquire(UPLOAD_BUFFER_SIZE);
+        Future<Integer> write = null;
+        try (AsynchronousFileChannel channel = AsynchronousFileChannel.open(file, StandardOpenOption.WRITE)) {
+            long position = 0;
+            while (source.read(reading.clear()) != -1) {
+                reading.flip();
+                if (write != null) {
+                    position = completeWrite(channel, write, writing, position);
+                }
+                write = channel.write(reading, position);
+                ByteBuffer written = writing;
+                writing = reading;
+                reading = written;
+            }
+            if (write != null) {
+                position = completeWrite(channel, write, writing, position);
             }
-            catch (FileNotFoundException fnf) {
-                String message = "Problem writing to file: " + file.getPath();
-                return HttpServer.getErrorResponse(HttpResponse.INTERNAL_SERVER_ERROR_500, message);
+            return position;
+        }
+        finally {
+            BufferPool.DIRECT.release(reading);
+            if (write == null || write.isDone()) {
+                BufferPool.DIRECT.release(writing); // otherwise left to the garbage collector
             }
+        }
+    }
 
-            String message = "File '" + file.getPath() + "' created successfully. Size: " + httpRequest.getContentLength() + "\n";
-            return getResponse(HttpResponse.CREATED_201, message);
+    /**
+     * Waits for a write started at the position, and writes what it left of the buffer.
+     * Returns the position after the buffer.
+     */
+    private static long completeWrite(AsynchronousFileChannel channel, Future<Integer> write, ByteBuffer buffer, long position) throws IOException {
+        try {
+            position += write.get();
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position).get();
+            }
+            return position;
+        }
+        catch (ExecutionException e) {
+            throw (e.getCause() instanceof IOException) ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writing the upload");
+        }
+    }
 
+    /**
+     * Creates the temporary file receiving an upload. Temporary files are private by default;
+     * on POSIX file systems ask for the permissions a plain new file gets (subject to the umask).
+     */
+    private static Path createUploadFile(Path folder, String fileName) throws IOException {
+        String prefix = "." + fileName + ".";
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            return Files.createTempFile(folder, prefix, UPLOAD_SUFFIX,
+                    PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-rw-rw-")));
         }
-        finally {
-            w.unlock();
+        return Files.createTempFile(folder, prefix, UPLOAD_SUFFIX);
+    }
+
+    /**
+     * Whether the path names the temporary file of an upload (".NAME.random.upload"),
+     * which is neither listed, served nor written to directly.
+     */
+    static boolean isUploadFile(Path path) {
+        Path name = path.getFileName();
+        if (name == null) {
+            return false;
+        }
+        String fileName = name.toString();
+        return fileName.startsWith(".") && fileName.endsWith(UPLOAD_SUFFIX)
+                && fileName.length() > 1 + UPLOAD_SUFFIX.length();
+    }
+
+    private static void moveIntoPlace(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
         }
     }
 
     private HttpResponse getResponse(String statusAndReason, String message) {
 
-        int contentLength = message.getBytes().length;
+        return MESSAGE_TEMPLATES.computeIfAbsent(statusAndReason,
+                status -> new ResponseTemplate(status, HttpResponse.contentTypePlainText, DEFAULT_CONTENT_DISPOSITION))
+                .newResponse(message);
+    }
+
+    /**
+     * Returns the content of the file from the cache, reading and caching it on a miss.
+     */
+    private ByteBuffer getCachedContent(Path file, BasicFileAttributes attributes) throws IOException {
+
+        String key = file.normalize().toString();
+        long lastModified = attributes.lastModifiedTime().toMillis();
+
+        ByteBuffer content = contentCache.get(key, attributes.size(), lastModified);
+        if (content != null) {
+            return content;
+        }
+
+        byte[] bytes = Files.readAllBytes(file);
+        // only cache what was read if the file was not modified meanwhile (from outside the server)
+        if (bytes.length == attributes.size() && Files.getLastModifiedTime(file).toMillis() == lastModified) {
+            return contentCache.put(key, bytes, lastModified);
+        }
+        return ByteBuffer.wrap(bytes);
+    }
+
+    /**
+     * Returns the file compressed in the given coding, from the cache of compressed variants,
+     * compressing and caching it on a miss: a hot file is compressed once, not per request.
+     */
+    private ByteBuffer getCompressedContent(Path file, BasicFileAttributes attributes, ContentCoding coding) throws IOException {
+
+        String key = file.normalize() + ";" + coding.getToken();
+        long lastModified = attributes.lastModifiedTime().toMillis();
+
+        if (compressedCache != null) {
+            ByteBuffer content = compressedCache.get(key, attributes.size(), lastModified);
+            if (content != null) {
+                return content;
+            }
+        }
+
+        byte[] bytes = Files.readAllBytes(file);
+        byte[] encoded = coding.encode(bytes, compressionLevel);
+        if (compressedCache != null && bytes.length == attributes.size()
+                && Files.getLastModifiedTime(file).toMillis() == lastModified) {
+            return compressedCache.put(key, encoded, attributes.size(), lastModified);
+        }
+        return ByteBuffer.wrap(encoded);
+    }
+
+    private HttpResponse getFileResponse(ResponseBody body) {
+
+        return getFileResponse(HttpResponse.OK_200, body);
+    }
+
+    private HttpResponse getFileResponse(String statusAndReason, ResponseBody body) {
 
         return new HttpResponse.Builder(VERSION_1_0)
                 .statusCodeAndReasonPhrase(statusAndReason)
-                .date(formatter.format(ZonedDateTime.now()))
+                .date(HttpDate.now())
                 .contentType(HttpResponse.contentTypePlainText)
-                .contentLength(contentLength)
                 .contentDisposition(DEFAULT_CONTENT_DISPOSITION)
-                .entityBody(message)
+                .body(body)
                 .build();
     }
 
@@ -223,16 +805,117 @@ public class HttpFileServer implements HttpRequestHandler {
         return getResponse(statusAndReason, "");
     }
 
+    private String getContentType(String path) {
+        Optional<String> extension = getExtension(path);
+        if (extension.isPresent()) {
+            String contentType = HttpResponse.getExtensionString(extension.get());
+            if (contentType != null) {
+                return contentType;
+            }
+        }
+        return HttpResponse.contentTypePlainText;
+    }
+
     private Optional<String> getExtension(String filename) {
         return Optional.ofNullable(filename)
                 .filter(f -> f.contains("."))
                 .map(f -> f.substring(filename.lastIndexOf(".") + 1));
     }
 
-    private boolean pathIsWithinRootDir(String path) {
-        Path normalizedPath = Paths.get(path).normalize();
-        String regex = "^" + Pattern.quote(rootDir) + "(" + Pattern.quote(File.separator) + ".*)?$";
-        return normalizedPath.toString().matches(regex);
+    /**
+     * Content of a file being sent: a buffer (cached, compressed or mapped), or an open channel.
+     * Each body built from a mapping holds its own reference to it.
+     */
+    private static class FileContent {
+
+        private final ByteBuffer buffer;
+        private final MappedFileCache.Mapping mapping;
+        private final FileChannel channel;
+        private final AsynchronousFileChannel asyncChannel;
+        private boolean owned = false;
+
+        FileContent(ByteBuffer buffer) {
+            this(buffer, null, null, null);
+        }
+
+        FileContent(MappedFileCache.Mapping mapping) {
+            this(mapping.getContent(), mapping, null, null);
+        }
+
+        FileContent(FileChannel channel) {
+            this(null, null, channel, null);
+        }
+
+        FileContent(AsynchronousFileChannel asyncChannel) {
+            this(null, null, null, asyncChannel);
+        }
+
+        private FileContent(ByteBuffer buffer, MappedFileCache.Mapping mapping, FileChannel channel, AsynchronousFileChannel asyncChannel) {
+            this.buffer = buffer;
+            this.mapping = mapping;
+            this.channel = channel;
+            this.asyncChannel = asyncChannel;
+        }
+
+        ResponseBody getBody() throws IOException {
+            if (buffer != null) {
+                return getBody(buffer);
+            }
+            long size = (asyncChannel != null) ? asyncChannel.size() : channel.size();
+            return getSlice(0, size);
+        }
 
+        ResponseBody getSlice(ByteRange range) {
+            if (buffer != null) {
+                return getBody(buffer.duplicate().limit((int) range.getLast() + 1).position((int) range.getFirst()).slice());
+            }
+            return getSlice(range.getFirst(), range.length());
+        }
+
+        /**
+         * Same as getSlice, for a part of a multipart body: a file read asynchronously is only read
+         * once the part is written, rather than every part reading ahead at once.
+         */
+        ResponseBody getPart(ByteRange range) {
+            if (asyncChannel == null) {
+                return getSlice(range);
+            }
+            ResponseBody body = ResponseBody.deferred(asyncChannel, range.getFirst(), range.length());
+            owned = true;
+            return body;
+        }
+
+        /**
+         * Releases the reference to the mapping taken for building the bodies,
+         * and closes the file if no body was built to close it.
+         */
+        void release() {
+            if (mapping != null) {
+                mapping.release();
+            }
+            if (!owned) {
+                try {
+                    if (channel != null) {
+                        channel.close();
+                    }
+                    if (asyncChannel != null) {
+                        asyncChannel.close();
+                    }
+                }
+                catch (IOException ignored) {
+                }
+            }
+        }
+
+        private ResponseBody getSlice(long position, long count) {
+            ResponseBody body = (asyncChannel != null) ? ResponseBody.of(asyncChannel, position, count)
+                                                       : ResponseBody.of(channel, position, count);
+            owned = true; // the body closes the file
+            return body;
+        }
+
+        private ResponseBody getBody(ByteBuffer content) {
+            return (mapping != null) ? ResponseBody.of(content, mapping.retain()) : ResponseBody.of(content);
+        }
     }
 }
@@ -1,9 +1,15 @@
 package main;
 
+import http.AccessLog;
+import http.AccessLogFormat;
+import http.Engine;
+import http.ExecutionMode;
 import http.HttpServer;
+import http.RejectionPolicy;
 import org.apache.commons.cli.*;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.Scanner;
 
 /**
@@ -12,9 +18,18 @@ import java.util.Scanner;
 public class Main {
     private static final int DEFAULT_PORT = 8080;
     private static final int MAX_PORT = 65535;
+    private static final int MAX_SECONDS = Integer.MAX_VALUE / 1000; // timeouts are passed in ms
+    private static final int MAX_HEADER_KB = Integer.MAX_VALUE >> 10; // passed in bytes
     private static final String PORT_ERROR = "Port out of range. Please select a port in range [1024, 65535]";
     private static final String RESERVED_PORT_ERROR = "Chosen port is a well-known port. Please select a port in range [1024, 65535]";
     private static final String DIR_ERROR = "The path does not correspond to a directory.";
+    private static final String ENGINE_ERROR = "Unknown engine. Please select 'blocking' or 'nio'.";
+    private static final String MODE_ERROR = "Unknown execution mode. Please select 'pool' or 'virtual'.";
+    private static final String POLICY_ERROR = "Unknown rejection policy. Please select '503' or 'caller'.";
+    private static final String SERVING_MODE_ERROR = "Unknown file serving mode. Please select 'transfer', 'mmap' or 'async'.";
+    private static final String METRICS_PATH_ERROR = "The metrics path must start with '/'.";
+    private static final String LOG_FORMAT_ERROR = "Unknown access log format. Please select 'common', 'combined' or 'json'.";
+    private static final String LOG_SAMPLING_ERROR = "The access log sampling rate must be a number between 0 and 1.";
 
     public static void main(String[] args) {
         /**
@@ -98,14 +113,263 @@ public class Main {
             System.out.println("Root Directory = " +  rootDir);
         }
 
+        FileServingMode servingMode = FileServingMode.TRANSFER;
+        if (parsedOptions.hasOption('f')) {
+            String modeName = parsedOptions.getOptionValue('f');
+            if (modeName.equalsIgnoreCase("transfer")) {
+                servingMode = FileServingMode.TRANSFER;
+            }
+            else if (modeName.equalsIgnoreCase("mmap")) {
+                servingMode = FileServingMode.MMAP;
+            }
+            else if (modeName.equalsIgnoreCase("async")) {
+                servingMode = FileServingMode.ASYNC;
+            }
+            else {
+                System.out.println("\n" + SERVING_MODE_ERROR + "\n");
+                printUsage();
+                return;
+            }
+        }
+
+        if (parsedOptions.hasOption('v')) {
+            System.out.println("File serving mode = " + servingMode);
+        }
+
+        /**
+         * Validate execution options
+         */
+        Engine engine = Engine.BLOCKING;
+        if (parsedOptions.hasOption('e')) {
+            String engineName = parsedOptions.getOptionValue('e');
+            if (engineName.equalsIgnoreCase("blocking")) {
+                engine = Engine.BLOCKING;
+            }
+            else if (engineName.equalsIgnoreCase("nio")) {
+                engine = Engine.NIO;
+            }
+            else {
+                System.out.println("\n" + ENGINE_ERROR + "\n");
+                printUsage();
+                return;
+            }
+        }
+
+        ExecutionMode executionMode = ExecutionMode.POOL;
+        if (parsedOptions.hasOption('m')) {
+            String mode = parsedOptions.getOptionValue('m');
+            if (mode.equalsIgnoreCase("pool")) {
+                executionMode = ExecutionMode.POOL;
+            }
+            else if (mode.equalsIgnoreCase("virtual")) {
+                executionMode = ExecutionMode.VIRTUAL_THREADS;
+            }
+            else {
+                System.out.println("\n" + MODE_ERROR + "\n");
+                printUsage();
+                return;
+            }
+        }
+
+        RejectionPolicy rejectionPolicy = RejectionPolicy.SERVICE_UNAVAILABLE;
+        if (parsedOptions.hasOption('r')) {
+            String policy = parsedOptions.getOptionValue('r');
+            if (policy.equals("503")) {
+                rejectionPolicy = RejectionPolicy.SERVICE_UNAVAILABLE;
+            }
+            else if (policy.equalsIgnoreCase("caller")) {
+                rejectionPolicy = RejectionPolicy.CALLER_RUNS;
+            }
+            else {
+                System.out.println("\n" + POLICY_ERROR + "\n");
+                printUsage();
+                return;
+            }
+        }
+
+        String metricsPath = null;
+        if (parsedOptions.hasOption('s')) {
+            metricsPath = parsedOptions.getOptionValue('s');
+            if (!metricsPath.startsWith("/")) {
+                System.out.println("\n" + METRICS_PATH_ERROR + "\n");
+                printUsage();
+                return;
+            }
+        }
+
+        /**
+         * Validate access log options
+         */
+        AccessLogFormat logFormat = AccessLogFormat.COMMON;
+        if (parsedOptions.hasOption('g')) {
+            String formatName = parsedOptions.getOptionValue('g');
+            if (formatName.equalsIgnoreCase("common")) {
+                logFormat = AccessLogFormat.COMMON;
+            }
+            else if (formatName.equalsIgnoreCase("combined")) {
+                logFormat = AccessLogFormat.COMBINED;
+            }
+            else if (formatName.equalsIgnoreCase("json")) {
+                logFormat = AccessLogFormat.JSON;
+            }
+            else {
+                System.out.println("\n" + LOG_FORMAT_ERROR + "\n");
+                printUsage();
+                return;
+            }
+        }
+
+        double logSampling = 1;
+        if (parsedOptions.hasOption('u')) {
+            try {
+                logSampling = Double.parseDouble(parsedOptions.getOptionValue('u'));
+            }
+            catch (NumberFormatException e) {
+                logSampling = -1;
+            }
+            if (!(logSampling >= 0 && logSampling <= 1)) {
+                System.out.println("\n" + LOG_SAMPLING_ERROR + "\n");
+                printUsage();
+                return;
+            }
+        }
+
+        AccessLog accessLog = null;
+        if (parsedOptions.hasOption('a')) {
+            String logFile = parsedOptions.getOptionValue('a');
+            try {
+                accessLog = new AccessLog.Builder(logFile.equals("-") ? null : Paths.get(logFile))
+                        .format(logFormat)
+                        .sampleRate(logSampling)
+                        .build();
+            }
+            catch (IOException e) {
+                System.out.println("Cannot open the access log: " + logFile + "\n" + e.getMessage());
+                return;
+            }
+        }
+
+        int poolSize = getIntOption(parsedOptions, 't', HttpServer.DEFAULT_POOL_SIZE, 1);
+        int queueCapacity = getIntOption(parsedOptions, 'q', HttpServer.DEFAULT_QUEUE_CAPACITY, 1);
+        int eventLoops = getIntOption(parsedOptions, 'l', HttpServer.DEFAULT_EVENT_LOOPS, 1);
+        int handlerThreads = getIntOption(parsedOptions, 'w', 0, 0);
+        int maxBodySizeMB = getIntOption(parsedOptions, 'b', (int) (HttpServer.DEFAULT_MAX_BODY_SIZE >> 20), 1);
+        int cacheSizeMB = getIntOption(parsedOptions, 'c', (int) (HttpFileServer.DEFAULT_CACHE_SIZE >> 20), 0);
+        int keepAliveSeconds = getIntOption(parsedOptions, 'k', HttpServer.DEFAULT_KEEP_ALIVE_TIMEOUT / 1000, 0, MAX_SECONDS);
+        int maxRequests = getIntOption(parsedOptions, 'n', HttpServer.DEFAULT_MAX_REQUESTS_PER_CONNECTION, 1);
+        int requestTimeout = getIntOption(parsedOptions, 'o', HttpServer.DEFAULT_REQUEST_TIMEOUT, 0);
+        int maxHeaderKB = getIntOption(parsedOptions, 'x', HttpServer.DEFAULT_MAX_HEADER_SIZE >> 10, 1, MAX_HEADER_KB);
+        int maxHeaderCount = getIntOption(parsedOptions, "max-headers", HttpServer.DEFAULT_MAX_HEADER_COUNT, 1, Integer.MAX_VALUE);
+        int readTimeoutSeconds = getIntOption(parsedOptions, 'i', HttpServer.DEFAULT_READ_TIMEOUT / 1000, 0, MAX_SECONDS);
+        int headerTimeoutSeconds = getIntOption(parsedOptions, 'j', HttpServer.DEFAULT_HEADER_TIMEOUT / 1000, 0, MAX_SECONDS);
+        int bodyTimeoutSeconds = getIntOption(parsedOptions, 'y', HttpServer.DEFAULT_BODY_TIMEOUT / 1000, 0, MAX_SECONDS);
+        int compressionLevel = getIntOption(parsedOptions, 'z', ContentCoding.DEFAULT_LEVEL, 0);
+        if (poolSize < 0 || queueCapacity < 0 || eventLoops < 0 || handlerThreads < 0 || maxBodySizeMB < 0 || cacheSizeMB < 0
+                || keepAliveSeconds < 0 || maxRequests < 0 || requestTimeout < 0 || compressionLevel < 0 || compressionLevel > 9
+                || maxHeaderKB < 0 || maxHeaderCount < 0 || readTimeoutSeconds < 0 || headerTimeoutSeconds < 0 || bodyTimeoutSeconds < 0) {
+            printUsage();
+            return;
+        }
+
+        if (parsedOptions.hasOption('v')) {
+            System.out.println("Engine = " + engine);
+            if (engine == Engine.NIO) {
+                System.out.println("Event loops = " + eventLoops + ", handler threads = " + handlerThreads);
+            }
+            else {
+                System.out.println("Execution mode = " + executionMode);
+            }
+            if (engine == Engine.BLOCKING) {
+                System.out.println("Pool size = " + poolSize + ", queue capacity = " + queueCapacity
+                        + ", rejection policy = " + rejectionPolicy);
+            }
+            System.out.println("Maximum body size = " + maxBodySizeMB + " MB, maximum header size = " + maxHeaderKB + " KB"
+                    + ", maximum header lines = " + maxHeaderCount);
+            System.out.println("Read timeout = " + seconds(readTimeoutSeconds) + ", header timeout = " + seconds(headerTimeoutSeconds)
+                    + ", body timeout = " + seconds(bodyTimeoutSeconds));
+            System.out.println("Content cache size = " + cacheSizeMB + " MB");
+            System.out.println("Compression level = " + compressionLevel);
+            System.out.println("Keep-alive timeout = " + keepAliveSeconds + " s, max requests per connection = " + maxRequests);
+            System.out.println("Request timeout = " + ((requestTimeout > 0) ? requestTimeout + " ms" : "none"));
+            System.out.println("Metrics path = " + ((metricsPath != null) ? metricsPath : "off"));
+            if (accessLog != null) {
+                System.out.println("Access log = " + parsedOptions.getOptionValue('a') + ", format = " + logFormat
+                        + ", sampling = " + logSampling);
+            }
+        }
+
         boolean verbose = parsedOptions.hasOption('v');
-        HttpServer fileServer = new HttpServer(port, new HttpFileServer(dir.getPath()), verbose);
+        HttpServer fileServer = new HttpServer.Builder(port, new HttpFileServer(dir.getPath(), (long) cacheSizeMB << 20, compressionLevel, servingMode))
+                .verbose(verbose)
+                .engine(engine)
+                .eventLoops(eventLoops)
+                .handlerThreads(handlerThreads)
+                .executionMode(executionMode)
+                .poolSize(poolSize)
+                .queueCapacity(queueCapacity)
+                .rejectionPolicy(rejectionPolicy)
+                .maxBodySize((long) maxBodySizeMB << 20)
+                .maxHeader(maxHeaderKB << 10, maxHeaderCount)
+                .readTimeout(readTimeoutSeconds * 1000)
+                .headerTimeout(headerTimeoutSeconds * 1000)
+                .bodyTimeout(bodyTimeoutSeconds * 1000)
+                .keepAliveTimeout(keepAliveSeconds * 1000)
+                .maxRequestsPerConnection(maxRequests)
+                .requestTimeout(requestTimeout)
+                .metricsPath(metricsPath)
+                .accessLog(accessLog)
+                .build();
         try {
             fileServer.run();
         }
         catch (IOException e) {
             System.out.println("Problem creating a server socket.\n" + e.getMessage());
         }
+        catch (UnsupportedOperationException e) {
+            System.out.println(e.getMessage());
+        }
+    }
+
+    private static String seconds(int seconds) {
+        return (seconds > 0) ? seconds + " s" : "none";
+    }
+
+    /**
+     * Returns the value of a numeric option, the default if absent, or -1 if it is not an integer >= min.
+     */
+    private static int getIntOption(CommandLine parsedOptions, char option, int defaultValue, int min) {
+        return getIntOption(parsedOptions, String.valueOf(option), defaultValue, min, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Same, with a maximum: for values converted to a smaller unit, which must still fit in an int.
+     */
+    private static int getIntOption(CommandLine parsedOptions, char option, int defaultValue, int min, int max) {
+        return getIntOption(parsedOptions, String.valueOf(option), defaultValue, min, max);
+    }
+
+    /**
+     * Same, for an option given by its name: a letter, or the long name of an option without one.
+     */
+    private static int getIntOption(CommandLine parsedOptions, String option, int defaultValue, int min, int max) {
+        if (!parsedOptions.hasOption(option)) {
+            return defaultValue;
+        }
+        String flag = (option.length() > 1) ? "--" + option : "-" + option;
+        try {
+            int value = Integer.parseInt(parsedOptions.getOptionValue(option));
+            if (value > max) {
+                System.out.println("\nInvalid value for " + flag + ": " + value + " (maximum is " + max + ")");
+                return -1;
+            }
+            if (value >= min) {
+                return value;
+            }
+        }
+        catch (NumberFormatException ignored) {
+        }
+        System.out.println("\nInvalid value for " + flag + ": " + parsedOptions.getOptionValue(option));
+        return -1;
     }
 
     static private Options getParserOptions() {
@@ -121,26 +385,225 @@ public class Main {
                 .hasArg()
                 .build();
 
+        Option servingMode = Option.builder("f")
+                .required(false)
+                .hasArg()
+                .build();
+
         Option path = Option.builder("p")
                 .required(false)
                 .hasArg()
                 .build();
 
+        Option engine = Option.builder("e")
+                .required(false)
+                .hasArg()
+                .build();
+
+        Option eventLoops = Option.builder("l")
+                .required(false)
+                .hasArg()
+                .build();
+
+        Option handlerThreads = Option.builder("w")
+                .required(false)
+                .hasArg()
+                .build();
+
+        Option mode = Option.builder("m")
+                .required(false)
+                .hasArg()
+                .build();
+
+        Option threads = Option.builder("t")
+                .required(false)
+                .hasArg()
+                .build();
+
+        Option queue = Option.builder("q")
+                .required(false)
+                .hasArg()
+                .build();
+
+        Option rejection = Option.builder("r")
+                .required(false)
+                .hasArg()
+                .build();
+
+        Option maxBodySize = Option.builder("b")
+                .required(false)
+                .hasArg()
+                .build();
+
+        Option cacheSize = Option.builder("c")
+                .required(false)
+                .hasArg()
+                .build();
+
+        Option keepAlive = Option.builder("k")
+                .required(false)
+                .hasArg()
+                .build();
+
+        Option maxRequests = Option.builder("n")
+                .required(false)
+                .hasArg()
+                .build();
+
+        Option requestTimeout = Option.builder("o")
+                .required(false)
+                .hasArg()
+                .build();
+
+        Option maxHeaderSize = Option.builder("x")
+                .required(false)
+                .hasArg()
+                .build();
+
+        Option maxHeaderCount = Option.builder()
+                .longOpt("max-headers")
+                .required(false)
+                .hasArg()
+                .build();
+
+        Option readTimeout = Option.builder("i")
+                .required(false)
+                .hasArg()
+                .build();
+
+        Option headerTimeout = Option.builder("j")
+                .required(false)
+                .hasArg()
+                .build();
+
+        Option bodyTimeout = Option.builder("y")
+                .required(false)
+                .hasArg()
+                .build();
+
+        Option compression = Option.builder("z")
+                .required(false)
+                .hasArg()
+                .build();
+
+        Option metrics = Option.builder("s")
+                .required(false)
+                .hasArg()
+                .build();
+
+        Option accessLog = Option.builder("a")
+                .required(false)
+                .hasArg()
+                .build();
+
+        Option logFormat = Option.builder("g")
+                .required(false)
+                .hasArg()
+                .build();
+
+        Option logSampling = Option.builder("u")
+                .required(false)
+                .hasArg()
+                .build();
+
         return new Options()
                 .addOption(debug)
                 .addOption(directory)
-                .addOption(path);
+                .addOption(servingMode)
+                .addOption(path)
+                .addOption(engine)
+                .addOption(eventLoops)
+                .addOption(handlerThreads)
+                .addOption(mode)
+                .addOption(threads)
+                .addOption(queue)
+                .addOption(rejection)
+                .addOption(maxBodySize)
+                .addOption(cacheSize)
+                .addOption(keepAlive)
+                .addOption(maxRequests)
+                .addOption(requestTimeout)
+                .addOption(maxHeaderSize)
+                .addOption(maxHeaderCount)
+                .addOption(readTimeout)
+                .addOption(headerTimeout)
+                .addOption(bodyTimeout)
+                .addOption(compression)
+                .addOption(metrics)
+                .addOption(accessLog)
+                .addOption(logFormat)
+                .addOption(logSampling);
 
     }
 
     private static String usage =
-            "\nusage: httpfs [-v] [-p Port] [-d PATH-TO-DIR]\n" +
+            "\nusage: httpfs [-v] [-p Port] [-d PATH-TO-DIR] [-f transfer|mmap|async] [-e blocking|nio]\n" +
+                    "              [-l LOOPS] [-w THREADS] [-m pool|virtual] [-t THREADS] [-q QUEUE-SIZE] [-r 503|caller]\n" +
+                    "              [-b MAX-BODY-MB] [-c CACHE-MB] [-k KEEP-ALIVE-S] [-n MAX-REQUESTS]\n" +
+                    "              [-z LEVEL] [-s METRICS-PATH] [-a LOG-FILE|-] [-g common|combined|json]\n" +
+                    "              [-u SAMPLING] [-o TIMEOUT-MS] [-x MAX-HEADER-KB] [-i READ-TIMEOUT-S]\n" +
+                    "              [-j HEADER-TIMEOUT-S] [-y BODY-TIMEOUT-S] [--max-headers COUNT]\n" +
                     "\n" +
-                    "-v   Prints debugging messages\n" +
+                    "-v   Prints debugging messages (connections, socket problems) through the access log,\n" +
+                    "     which is the standard output if -a is not given.\n" +
                     "-p   Specifies the port number that the server will listen and serve at.\n" +
                     "     Default is 8080.\n" +
                     "-d   Specifies the directory that the server will use to read/write requested files.\n" +
-                    "     Default is the current directory when launching the application.\n";
+                    "     Default is the current directory when launching the application.\n" +
+                    "-f   Specifies how files too large for the cache are sent: 'transfer' (transferTo from\n" +
+                    "     the file) or 'mmap' (from memory mappings shared by the requests, up to "
+                            + (MappedFileCache.DEFAULT_MAX_SIZE >> 20) + " MB)\n" +
+                    "     or 'async' (read ahead with asynchronous file I/O, uploads written the same way).\n" +
+                    "     Default is transfer.\n" +
+                    "-e   Specifies the network engine: 'blocking' (one thread per active connection)\n" +
+                    "     or 'nio' (selector event loops). Default is blocking.\n" +
+                    "-l   Number of event loops of the nio engine. Default is the number of processors.\n" +
+                    "-w   Number of threads running requests for the nio engine, 0 to run them on the\n" +
+                    "     event loops. Default is 0.\n" +
+                    "-m   Specifies how connections are executed: 'pool' (bounded pool of threads)\n" +
+                    "     or 'virtual' (one virtual thread per connection, needs Java 21+). Default is pool.\n" +
+                    "-t   Number of threads in the pool, or of connections handled at a time on virtual threads.\n" +
+                    "     Default is " + HttpServer.DEFAULT_POOL_SIZE + ".\n" +
+                    "-q   Number of connections (requests for nio) that can wait for a pool thread, or for their\n" +
+                    "     turn on virtual threads. Default is " + HttpServer.DEFAULT_QUEUE_CAPACITY + ".\n" +
+                    "-r   What to do when the pool and queue are full: '503' (answer Service Unavailable)\n" +
+                    "     or 'caller' (handle it on the accepting thread). Default is 503.\n" +
+                    "-b   Maximum size of a request body in MB, at least 1; larger requests get 413. Default is "
+                            + (HttpServer.DEFAULT_MAX_BODY_SIZE >> 20) + ".\n" +
+                    "-c   Memory used to cache the content of frequently requested files, in MB.\n" +
+                    "     0 disables the cache. Default is " + (HttpFileServer.DEFAULT_CACHE_SIZE >> 20) + ".\n" +
+                    "-k   Seconds a persistent (keep-alive) connection may stay idle between requests.\n" +
+                    "     0 closes every connection after its response. Default is " + (HttpServer.DEFAULT_KEEP_ALIVE_TIMEOUT / 1000) + ".\n" +
+                    "-n   Number of requests after which a persistent connection is closed. Default is "
+                            + HttpServer.DEFAULT_MAX_REQUESTS_PER_CONNECTION + ".\n" +
+                    "-z   gzip/deflate level (1-9) of text, JSON and XML files compressed for clients that\n" +
+                    "     accept it; precompressed FILE.gz siblings are served as they are. 0 disables\n" +
+                    "     compressing on the fly. Default is " + ContentCoding.DEFAULT_LEVEL + ".\n" +
+                    "-s   Path answered with the server metrics (Prometheus text format), e.g. /metrics. It takes\n" +
+                    "     precedence over a file at that path, and the metrics show the server's internals:\n" +
+                    "     only enable it where clients may see them. Default is off. The metrics are always\n" +
+                    "     published over JMX, in the " + HttpServer.MBEAN_DOMAIN + " domain.\n" +
+                    "-a   Writes an access log to the file ('-' for the standard output), one line per request,\n" +
+                    "     from a background thread; the file is rotated every " + (AccessLog.DEFAULT_MAX_FILE_SIZE >> 20) + " MB, keeping "
+                            + AccessLog.DEFAULT_MAX_FILES + " files.\n" +
+                    "     Lines that cannot be written fast enough are dropped and counted. Default is no log.\n" +
+                    "-g   Access log format: 'common', 'combined' (with Referer and User-Agent) or 'json'.\n" +
+                    "     Default is common.\n" +
+                    "-u   Fraction of the successful requests written to the access log, between 0 and 1;\n" +
+                    "     4xx and 5xx responses are always logged. Default is 1.\n" +
+                    "-o   Time in ms a request may take to be handled, past which it is answered 503 if\n" +
+                    "     it is still waiting for a handler thread, 504 otherwise. NIO engine with handler\n" +
+                    "     threads only. Default is 0 (none).\n" +
+                    "-x   Maximum size of the request line and header lines in KB, larger headers (or more\n" +
+                    "     header lines than --max-headers) get 431. Default is " + (HttpServer.DEFAULT_MAX_HEADER_SIZE >> 10) + ".\n" +
+                    "-i   Seconds the server waits for the next bytes of a request that has started, 0 for\n" +
+                    "     no limit. A stalled request gets 408. Default is " + (HttpServer.DEFAULT_READ_TIMEOUT / 1000) + ".\n" +
+                    "-j   Seconds a client has to send a request header, from its first byte (and a new\n" +
+                    "     connection to start its first request), 0 for no limit. Default is " + (HttpServer.DEFAULT_HEADER_TIMEOUT / 1000) + ".\n" +
+                    "-y   Seconds a client has to send a request body, from the end of its header, 0 for no\n" +
+                    "     limit but the read timeout. A late body gets 408. Default is 0.\n" +
+                    "--max-headers   Maximum number of header lines in a request, more get 431.\n" +
+                    "     Default is " + HttpServer.DEFAULT_MAX_HEADER_COUNT + ".\n";
 
     private static void printUsage()  {
         System.out.println(usage);
@@ -0,0 +1,231 @@
+package main;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Memory mappings of files, keyed by normalized path, bounded by the total size mapped and
+ * evicted in LRU order. Responses are written from the mappings, so the content goes from the
+ * page cache to the socket without being copied through the heap, and a repeated GET does not
+ * even open the file.
+ *
+ * Mappings are reference counted: the cache holds one reference, and each response body using
+ * a mapping holds another. A mapping that is evicted or invalidated (an upload replaced the file)
+ * is unmapped when the last response using it is written, rather than whenever the garbage
+ * collector gets to it. As for FileContentCache, a lookup with a different size or modification
+ * time than the mapped file's is a miss.
+ *
+ * Uploads replace files with an atomic move, so a mapping always sees the complete old or new
+ * file; a file truncated in place by another program while mapped would fault its readers.
+ */
+public class MappedFileCache implements MappedFileCacheMBean {
+
+    public static final long DEFAULT_MAX_SIZE = 1L << 30;
+
+    private final long maxBytes;
+    private final LinkedHashMap<String, Mapping> mappings = new LinkedHashMap<>(16, 0.75f, true); // guarded by this
+    private long size; // guarded by this
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param maxBytes total size of the files mapped at once; a larger file is never mapped
+     */
+    public MappedFileCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns true if a file of this size can be mapped.
+     */
+    public boolean accepts(long size) {
+        return size > 0 && size <= Math.min(maxBytes, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns the mapping of the file, mapping it on a miss, with a reference taken for the
+     * caller, who must release() it.
+     */
+    public Mapping acquire(Path file, BasicFileAttributes attributes) throws IOException {
+
+        String key = file.normalize().toString();
+        long lastModified = attributes.lastModifiedTime().toMillis();
+
+        synchronized (this) {
+            Mapping mapping = mappings.get(key);
+            if (mapping != null && mapping.size == attributes.size() && mapping.lastModified == lastModified) {
+                hits.increment();
+                mapping.references.incrementAndGet();
+                return mapping;
+            }
+            if (mapping != null) {
+                remove(key); // changed on disk since it was mapped
+            }
+        }
+        misses.increment();
+
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, attributes.size()); // outlives the channel
+        }
+        Mapping mapping = new Mapping(buffer, attributes.size(), lastModified);
+        mapping.references.incrementAndGet(); // the caller's
+
+        synchronized (this) {
+            remove(key); // mapped concurrently by another request
+            mappings.put(key, mapping);
+            size += mapping.size;
+            Iterator<Map.Entry<String, Mapping>> eldest = mappings.entrySet().iterator();
+            while (size > maxBytes && eldest.hasNext()) {
+                Mapping evicted = eldest.next().getValue();
+                eldest.remove();
+                size -= evicted.size;
+                evicted.release();
+            }
+        }
+        return mapping;
+    }
+
+    /**
+     * Drops the mapping of a file, e.g. because it was just overwritten. It is unmapped once
+     * the responses still using it are written.
+     */
+    public synchronized void invalidate(String key) {
+        remove(key);
+    }
+
+    @Override
+    public long getHits() {
+        return hits.sum();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public synchronized long getSize() {
+        return size;
+    }
+
+    @Override
+    public long getMaxSize() {
+        return maxBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "MappedFileCache[size=" + getSize() + "/" + maxBytes + " bytes, hits=" + getHits() + ", misses=" + getMisses() + "]";
+    }
+
+    private void remove(String key) {
+        Mapping mapping = mappings.remove(key);
+        if (mapping != null) {
+            size -= mapping.size;
+            mapping.release();
+        }
+    }
+
+    /**
+     * Mapping of a file. Its content may only be used while a reference is held.
+     */
+    public static class Mapping {
+
+        private final MappedByteBuffer buffer;
+        private final long size;
+        private final long lastModified;
+        private final AtomicInteger references = new AtomicInteger(1); // the cache's
+
+        private Mapping(MappedByteBuffer buffer, long size, long lastModified) {
+            this.buffer = buffer;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * Returns a read-only view of the whole file.
+         */
+        public ByteBuffer getContent() {
+            return buffer.asReadOnlyBuffer();
+        }
+
+        /**
+         * Takes another reference, for a response body; closing the returned handle releases it
+         * (closing it again does nothing). Only valid while the caller holds a reference.
+         */
+        public Closeable retain() {
+            references.incrementAndGet();
+            AtomicBoolean released = new AtomicBoolean();
+            return () -> {
+                if (released.compareAndSet(false, true)) {
+                    release();
+                }
+            };
+        }
+
+        /**
+         * Releases a reference; the file is unmapped when the last one is released.
+         */
+        public void release() {
+            if (references.decrementAndGet() == 0) {
+                Unmapper.unmap(buffer);
+            }
+        }
+    }
+
+    /**
+     * Unmaps buffers at once through sun.misc.Unsafe.invokeCleaner (jdk.unsupported), when it is
+     * available; otherwise they are unmapped when garbage collected.
+     */
+    private static class Unmapper {
+
+        private static final Object UNSAFE;
+        private static final Method INVOKE_CLEANER;
+
+        static {
+            Object unsafe = null;
+            Method invokeCleaner = null;
+            try {
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Field field = unsafeClass.getDeclaredField("theUnsafe");
+                field.setAccessible(true);
+                unsafe = field.get(null);
+                invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            }
+            catch (ReflectiveOperationException | RuntimeException e) {
+                unsafe = null;
+                invokeCleaner = null;
+            }
+            UNSAFE = unsafe;
+            INVOKE_CLEANER = invokeCleaner;
+        }
+
+        static void unmap(MappedByteBuffer buffer) {
+            if (INVOKE_CLEANER == null) {
+                return;
+            }
+            try {
+                INVOKE_CLEANER.invoke(UNSAFE, buffer);
+            }
+            catch (ReflectiveOperationException ignored) {
+                // left to the garbage collector
+            }
+        }
+    }
+}
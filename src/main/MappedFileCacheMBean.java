@@ -0,0 +1,15 @@
+package main;
+
+/**
+ * Management interface of MappedFileCache, registered by the server next to its own metrics.
+ */
+public interface MappedFileCacheMBean {
+
+    long getHits();
+
+    long getMisses();
+
+    long getSize();
+
+    long getMaxSize();
+}
@@ -0,0 +1,105 @@
+package main;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Read/write locks per path, so that requests on unrelated files and directories do not wait
+ * for each other. Paths are mapped onto a fixed set of striped ReentrantReadWriteLocks: two
+ * paths sharing a stripe only cost some false contention, and memory stays constant.
+ *
+ * Locking is hierarchical in the sense that a directory is a path like any other: reading a
+ * file locks that file, listing a directory locks that directory, and creating entries in a
+ * directory (a new file, or new subdirectories) write-locks the directories whose entries change.
+ * Ancestors are not locked, so a POST in /a never blocks a GET under /b or /a/c.
+ *
+ * Locks covering several paths are acquired in ascending stripe order, and paths falling on
+ * the same stripe are merged, so that no two callers can deadlock.
+ */
+public class PathLockTable {
+
+    public static final int DEFAULT_STRIPES = 1024;
+
+    private final ReentrantReadWriteLock[] stripes;
+    private final int mask;
+
+    public PathLockTable() {
+        this(DEFAULT_STRIPES);
+    }
+
+    /**
+     * @param stripeCount rounded up to a power of two
+     */
+    public PathLockTable(int stripeCount) {
+        int size = Integer.highestOneBit(Math.max(1, stripeCount - 1)) << 1;
+        stripes = new ReentrantReadWriteLock[size];
+        for (int i = 0; i < size; ++i) {
+            stripes[i] = new ReentrantReadWriteLock();
+        }
+        mask = size - 1;
+    }
+
+    /**
+     * Locks a normalized path for reading (a file being read, or a directory being listed).
+     */
+    public Locks lockForReading(Path path) {
+        Lock lock = stripes[stripe(path)].readLock();
+        lock.lock();
+        return new Locks(new Lock[] { lock });
+    }
+
+    /**
+     * Locks normalized paths for writing (a file being replaced, directories getting new entries).
+     */
+    public Locks lockForWriting(Collection<Path> paths) {
+
+        int[] indexes = paths.stream().mapToInt(this::stripe).sorted().distinct().toArray();
+
+        Lock[] locks = new Lock[indexes.length];
+        int acquired = 0;
+        try {
+            for (int index : indexes) {
+                locks[acquired] = stripes[index].writeLock();
+                locks[acquired].lock();
+                ++acquired;
+            }
+        }
+        catch (RuntimeException e) {
+            new Locks(Arrays.copyOf(locks, acquired)).close();
+            throw e;
+        }
+        return new Locks(locks);
+    }
+
+    public Locks lockForWriting(Path... paths) {
+        return lockForWriting(List.of(paths));
+    }
+
+    private int stripe(Path path) {
+        int hash = path.hashCode();
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    /**
+     * Locks held by a caller, released by close() (use with try-with-resources).
+     */
+    public static class Locks implements AutoCloseable {
+
+        private final Lock[] locks;
+
+        private Locks(Lock[] locks) {
+            this.locks = locks;
+        }
+
+        @Override
+        public void close() {
+            for (int i = locks.length - 1; i >= 0; --i) {
+                locks[i].unlock();
+            }
+        }
+    }
+}
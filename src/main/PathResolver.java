@@ -0,0 +1,44 @@
+package main;
+
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Maps request paths to files under the root directory. The root is made absolute and normalized
+ * once; each request path is resolved against it, normalized, and accepted only if the result is
+ * still under the root, compared name by name (Path.startsWith), so "/../x" and "/a/../../x" are
+ * refused while "/a/../x" is served.
+ *
+ * The check is lexical: a symbolic link under the root is followed wherever it points.
+ */
+public class PathResolver {
+
+    private final Path root;
+
+    public PathResolver(String rootDir) {
+        this.root = Paths.get(rootDir).toAbsolutePath().normalize();
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    /**
+     * Returns the normalized path of the file a request path designates, or null if it is outside
+     * the root directory or not a valid path on this file system.
+     */
+    public Path resolve(String requestPath) {
+        int start = 0;
+        while (start < requestPath.length() && requestPath.charAt(start) == '/') {
+            ++start; // relative to the root, like the rest of the path
+        }
+        try {
+            Path path = root.resolve(requestPath.substring(start)).normalize();
+            return path.startsWith(root) ? path : null;
+        }
+        catch (InvalidPathException e) {
+            return null;
+        }
+    }
+}
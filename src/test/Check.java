@@ -0,0 +1,76 @@
+package test;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Assertions for the test harnesses, which are plain main classes: a failed check throws an
+ * AssertionError, and run() turns the outcome into the exit status (the servers started by
+ * the harnesses cannot be stopped, so the JVM has to be exited explicitly).
+ */
+final class Check {
+
+    interface Body {
+        void run() throws Exception;
+    }
+
+    private static int count;
+
+    private Check() {
+    }
+
+    /**
+     * Runs the checks, prints how many passed, and exits with status 0, or 1 after the first failure.
+     */
+    static void run(String name, Body body) {
+        try {
+            body.run();
+            System.out.println(name + ": " + count + " checks passed");
+            System.exit(0);
+        }
+        catch (Throwable e) {
+            System.out.println(name + ": failed after " + count + " checks");
+            e.printStackTrace(System.out);
+            System.exit(1);
+        }
+    }
+
+    static void that(boolean condition, String what) {
+        if (!condition) {
+            throw new AssertionError(what);
+        }
+        ++count;
+    }
+
+    static void equal(Object expected, Object actual, String what) {
+        if (!Objects.deepEquals(expected, actual)) {
+            throw new AssertionError(what + ": expected " + show(expected) + " but was " + show(actual));
+        }
+        ++count;
+    }
+
+    /**
+     * Checks that the body throws an exception of the given type, and returns it.
+     */
+    static <T extends Throwable> T raises(Class<T> type, Body body, String what) {
+        try {
+            body.run();
+        }
+        catch (Throwable e) {
+            if (!type.isInstance(e)) {
+                throw new AssertionError(what + ": expected " + type.getSimpleName() + " but got " + e, e);
+            }
+            ++count;
+            return type.cast(e);
+        }
+        throw new AssertionError(what + ": expected " + type.getSimpleName() + " but nothing was thrown");
+    }
+
+    private static String show(Object value) {
+        if (value instanceof byte[]) {
+            byte[] bytes = (byte[]) value;
+            return (bytes.length <= 64) ? Arrays.toString(bytes) : bytes.length + " bytes";
+        }
+        return "<" + value + ">";
+    }
+}
@@ -0,0 +1,161 @@
+package test;
+
+import http.Engine;
+import http.HttpResponse;
+import http.HttpServer;
+import main.ContentCoding;
+import main.HttpFileServer;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Content coding: Accept-Encoding negotiation, the encoders, and what the file server sends
+ * for compressible and other files, small files, precompressed siblings and range requests.
+ *
+ * usage: java test.ContentCodingTest
+ */
+public class ContentCodingTest {
+
+    private static final String TEXT = "2024-03-11 INFO request served /files/doc.txt in 12 ms\n".repeat(100);
+    private static final String PRECOMPRESSED_TEXT = "served from the .gz sibling\n".repeat(100);
+
+    public static void main(String[] args) {
+        Check.run("ContentCodingTest", () -> {
+            negotiation();
+            encoding();
+            Path root = createFiles();
+            for (Engine engine : Engine.values()) {
+                server(engine, root);
+            }
+            TestServer.deleteTree(root);
+        });
+    }
+
+    private static void negotiation() {
+
+        Object[][] cases = {
+                { null, ContentCoding.IDENTITY },
+                { "", ContentCoding.IDENTITY },
+                { "gzip", ContentCoding.GZIP },
+                { "x-gzip", ContentCoding.GZIP },
+                { "GZIP", ContentCoding.GZIP },
+                { "deflate", ContentCoding.DEFLATE },
+                { "gzip, deflate", ContentCoding.GZIP },
+                { "deflate, gzip", ContentCoding.GZIP },
+                { "gzip;q=0.5, deflate", ContentCoding.DEFLATE },
+                { "gzip; q=0.8, deflate;q=0.9", ContentCoding.DEFLATE },
+                { "gzip;q=0, deflate;q=0", ContentCoding.IDENTITY },
+                { "gzip;q=x", ContentCoding.IDENTITY },
+                { "br", ContentCoding.IDENTITY },
+                { "*", ContentCoding.GZIP },
+                { "*;q=0", ContentCoding.IDENTITY },
+                { "deflate, *;q=0.1", ContentCoding.DEFLATE },
+                { "gzip;q=0, *", ContentCoding.DEFLATE },
+        };
+        for (Object[] c : cases) {
+            Check.equal(c[1], ContentCoding.negotiate((String) c[0]), "Accept-Encoding: " + c[0]);
+        }
+
+        Check.that(ContentCoding.isCompressible(HttpResponse.contentTypePlainText), "text is compressible");
+        Check.that(ContentCoding.isCompressible(HttpResponse.contentTypeJson), "JSON is compressible");
+        Check.that(ContentCoding.isCompressible(HttpResponse.contentTypeXml), "XML is compressible");
+        Check.that(!ContentCoding.isCompressible(HttpResponse.contentTypePng), "PNG is not compressible");
+    }
+
+    private static void encoding() throws IOException {
+
+        byte[] content = TEXT.getBytes(StandardCharsets.UTF_8);
+        for (int level : new int[] { 1, ContentCoding.DEFAULT_LEVEL, 9 }) {
+            byte[] gzip = ContentCoding.GZIP.encode(content, level);
+            Check.that(gzip.length < content.length / 4, "gzip compresses text at level " + level);
+            Check.equal(content, decode(ContentCoding.GZIP, gzip), "gzip round trip at level " + level);
+            Check.equal(content, decode(ContentCoding.DEFLATE, ContentCoding.DEFLATE.encode(content, level)),
+                    "deflate (zlib) round trip at level " + level);
+        }
+        Check.equal(content, ContentCoding.IDENTITY.encode(content, 9), "identity leaves the content as it is");
+    }
+
+    private static Path createFiles() throws IOException {
+
+        Path root = Files.createTempDirectory("content-coding-test");
+        Files.writeString(root.resolve("a.txt"), TEXT);
+        Files.writeString(root.resolve("small.txt"), "too small to compress\n");
+        Files.write(root.resolve("image.png"), TEXT.getBytes(StandardCharsets.UTF_8));
+        Files.writeString(root.resolve("pre.txt"), TEXT);
+        Files.write(root.resolve("pre.txt.gz"), ContentCoding.GZIP.encode(PRECOMPRESSED_TEXT.getBytes(StandardCharsets.UTF_8), 9));
+        Files.writeString(root.resolve("stale.txt"), TEXT);
+        Files.write(root.resolve("stale.txt.gz"), ContentCoding.GZIP.encode(PRECOMPRESSED_TEXT.getBytes(StandardCharsets.UTF_8), 9));
+        Files.setLastModifiedTime(root.resolve("stale.txt.gz"), FileTime.fromMillis(0));
+        return root;
+    }
+
+    private static void server(Engine engine, Path root) throws Exception {
+
+        InetSocketAddress address = TestServer.start(port -> new HttpServer.Builder(port, new HttpFileServer(root.toString()))
+                .engine(engine)
+                .build());
+        String on = " (" + engine + ")";
+
+        TestClient.Response identity = get(address, "/a.txt", null);
+        Check.equal(200, identity.status, "plain GET" + on);
+        Check.equal(null, identity.header("content-encoding"), "no coding unless accepted" + on);
+        Check.equal("Accept-Encoding", identity.header("vary"), "Vary on a compressible file" + on);
+        Check.equal(TEXT, identity.text(), "plain content" + on);
+
+        for (ContentCoding coding : new ContentCoding[] { ContentCoding.GZIP, ContentCoding.DEFLATE }) {
+            TestClient.Response encoded = get(address, "/a.txt", coding.getToken());
+            Check.equal(coding.getToken(), encoded.header("content-encoding"), coding + " negotiated" + on);
+            Check.equal("Accept-Encoding", encoded.header("vary"), "Vary on a compressed response" + on);
+            Check.that(encoded.body.length < TEXT.length() / 4, coding + " response is compressed" + on);
+            Check.equal(TEXT, new String(decode(coding, encoded.body), StandardCharsets.UTF_8), coding + " content" + on);
+            Check.that(!encoded.header("etag").equals(identity.header("etag")), coding + " variant has its own ETag" + on);
+        }
+        Check.equal(TEXT, new String(decode(ContentCoding.GZIP, get(address, "/a.txt", "gzip").body), StandardCharsets.UTF_8),
+                "compressed variant served again, from the cache" + on);
+
+        TestClient.Response small = get(address, "/small.txt", "gzip");
+        Check.equal(null, small.header("content-encoding"), "small file sent as it is" + on);
+        TestClient.Response image = get(address, "/image.png", "gzip");
+        Check.equal(null, image.header("content-encoding"), "image sent as it is" + on);
+        Check.equal(null, image.header("vary"), "no Vary on a file that is never compressed" + on);
+
+        TestClient.Response precompressed = get(address, "/pre.txt", "gzip");
+        Check.equal("gzip", precompressed.header("content-encoding"), "precompressed sibling" + on);
+        Check.equal(PRECOMPRESSED_TEXT, new String(decode(ContentCoding.GZIP, precompressed.body), StandardCharsets.UTF_8),
+                "content of the .gz sibling" + on);
+        TestClient.Response deflated = get(address, "/pre.txt", "deflate");
+        Check.equal(TEXT, new String(decode(ContentCoding.DEFLATE, deflated.body), StandardCharsets.UTF_8),
+                "no .gz sibling for deflate: the file is compressed here" + on);
+        TestClient.Response stale = get(address, "/stale.txt", "gzip");
+        Check.equal(TEXT, new String(decode(ContentCoding.GZIP, stale.body), StandardCharsets.UTF_8),
+                "a .gz sibling older than the file is ignored" + on);
+
+        TestClient.Response range = TestClient.exchange(address,
+                "GET /a.txt HTTP/1.1\r\nAccept-Encoding: gzip\r\nRange: bytes=0-9\r\nConnection: close\r\n\r\n");
+        Check.equal(206, range.status, "range of a compressible file" + on);
+        Check.equal(null, range.header("content-encoding"), "ranges refer to the file itself" + on);
+        Check.equal(TEXT.substring(0, 10), range.text(), "range content" + on);
+    }
+
+    private static TestClient.Response get(InetSocketAddress address, String path, String acceptEncoding) throws IOException {
+        return TestClient.exchange(address, "GET " + path + " HTTP/1.1\r\n"
+                + (acceptEncoding != null ? "Accept-Encoding: " + acceptEncoding + "\r\n" : "")
+                + "Connection: close\r\n\r\n");
+    }
+
+    private static byte[] decode(ContentCoding coding, byte[] encoded) throws IOException {
+        InputStream bytes = new ByteArrayInputStream(encoded);
+        try (InputStream in = (coding == ContentCoding.GZIP) ? new GZIPInputStream(bytes) : new InflaterInputStream(bytes)) {
+            return in.readAllBytes();
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package test;
+
+import http.Engine;
+import http.HttpServer;
+import main.ContentCoding;
+import main.FileServingMode;
+import main.HttpFileServer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * HttpFileServer over loopback, in each serving mode and on each engine, without the content
+ * cache so that every file goes through the serving mode: file content, Range requests (206,
+ * multipart, merged ranges, 416, If-Range), conditional GETs (ETag and Last-Modified, 304),
+ * a GET after an upload replaced the file, and uploads (new directories, large and concurrent
+ * bodies, 100 Continue, refused targets, aborted uploads).
+ *
+ * usage: java test.FileServerTest
+ */
+public class FileServerTest {
+
+    private static final FileServingMode[] MODES = { FileServingMode.TRANSFER, FileServingMode.MMAP, FileServingMode.ASYNC };
+    private static final int SIZE = 3 << 20;
+
+    public static void main(String[] args) {
+        Check.run("FileServerTest", () -> {
+            for (FileServingMode mode : MODES) {
+                for (Engine engine : Engine.values()) {
+                    Path root = Files.createTempDirectory("file-server-test");
+                    byte[] content = new byte[SIZE];
+                    new Random(42).nextBytes(content);
+                    Files.write(root.resolve("big.bin"), content);
+
+                    InetSocketAddress address = TestServer.start(port -> new HttpServer.Builder(port,
+                            new HttpFileServer(root.toString(), 0, ContentCoding.DEFAULT_LEVEL, mode))
+                            .engine(engine)
+                            .build());
+                    String on = " (" + mode + ", " + engine + ")";
+                    get(address, content, on);
+                    ranges(address, content, on);
+                    conditional(address, on);
+                    replaced(address, on);
+                    uploads(address, root, engine, on);
+                    TestServer.deleteTree(root);
+                }
+            }
+        });
+    }
+
+    private static void get(InetSocketAddress address, byte[] content, String on) throws IOException {
+
+        TestClient.Response response = get(address, "/big.bin");
+        Check.equal(200, response.status, "GET" + on);
+        Check.equal(content, response.body, "content" + on);
+        Check.equal("bytes", response.header("accept-ranges"), "Accept-Ranges" + on);
+        Check.that(response.header("etag") != null && response.header("last-modified") != null, "validators" + on);
+
+        // several requests on a persistent connection
+        try (TestClient client = new TestClient(address)) {
+            for (int i = 0; i < 3; ++i) {
+                client.send("GET /big.bin HTTP/1.1\r\n\r\n");
+                Check.equal(content, client.read().body, "content on a persistent connection, request " + i + on);
+            }
+        }
+
+        Check.equal(404, get(address, "/missing.bin").status, "missing file" + on);
+        Check.equal(403, get(address, "/../big.bin").status, "path outside the root" + on);
+    }
+
+    private static void ranges(InetSocketAddress address, byte[] content, String on) throws IOException {
+
+        TestClient.Response response = get(address, "/big.bin", "Range: bytes=100-199");
+        Check.equal(206, response.status, "single range" + on);
+        Check.equal("bytes 100-199/" + SIZE, response.header("content-range"), "Content-Range" + on);
+        Check.equal(Arrays.copyOfRange(content, 100, 200), response.body, "range content" + on);
+
+        response = get(address, "/big.bin", "Range: bytes=-100");
+        Check.equal("bytes " + (SIZE - 100) + "-" + (SIZE - 1) + "/" + SIZE, response.header("content-range"), "suffix range" + on);
+        Check.equal(Arrays.copyOfRange(content, SIZE - 100, SIZE), response.body, "suffix range content" + on);
+
+        response = get(address, "/big.bin", "Range: bytes=" + (SIZE - 10) + "-" + (SIZE + 100));
+        Check.equal("bytes " + (SIZE - 10) + "-" + (SIZE - 1) + "/" + SIZE, response.header("content-range"),
+                "range truncated to the file" + on);
+
+        response = get(address, "/big.bin", "Range: bytes=0-9,1000-1009");
+        Check.equal(206, response.status, "multiple ranges" + on);
+        Check.that(response.header("content-type").startsWith("multipart/byteranges; boundary="), "multipart type" + on);
+        String multipart = new String(response.body, StandardCharsets.ISO_8859_1);
+        for (int first : new int[] { 0, 1000 }) {
+            Check.that(multipart.contains("Content-Range: bytes " + first + "-" + (first + 9) + "/" + SIZE + "\r\n\r\n"
+                    + new String(content, first, 10, StandardCharsets.ISO_8859_1) + "\r\n"), "part " + first + on);
+        }
+
+        response = get(address, "/big.bin", "Range: bytes=0-99,50-149,150-199");
+        Check.equal("bytes 0-199/" + SIZE, response.header("content-range"), "overlapping and adjacent ranges merged" + on);
+        Check.equal(Arrays.copyOfRange(content, 0, 200), response.body, "merged range content" + on);
+
+        response = get(address, "/big.bin", "Range: bytes=0-,0-,0-");
+        Check.equal(200, response.status, "ranges larger than the file ignored" + on);
+        Check.equal(SIZE, response.body.length, "whole file instead of the ranges" + on);
+
+        Check.equal(200, get(address, "/big.bin", "Range: bytes=abc").status, "invalid Range ignored" + on);
+        StringBuilder manyRanges = new StringBuilder("Range: bytes=0-0");
+        for (int i = 1; i <= 64; ++i) {
+            manyRanges.append(',').append(2 * i).append('-').append(2 * i);
+        }
+        Check.equal(200, get(address, "/big.bin", manyRanges.toString()).status, "too many ranges ignored" + on);
+
+        response = get(address, "/big.bin", "Range: bytes=" + SIZE + "-");
+        Check.equal(416, response.status, "range after the end" + on);
+        Check.equal("bytes */" + SIZE, response.header("content-range"), "416 Content-Range" + on);
+
+        String eTag = get(address, "/big.bin").header("etag");
+        Check.equal(206, get(address, "/big.bin", "Range: bytes=0-9", "If-Range: " + eTag).status, "If-Range matching" + on);
+        Check.equal(200, get(address, "/big.bin", "Range: bytes=0-9", "If-Range: \"stale\"").status, "If-Range not matching" + on);
+    }
+
+    private static void conditional(InetSocketAddress address, String on) throws IOException {
+
+        TestClient.Response response = get(address, "/big.bin");
+        String eTag = response.header("etag");
+        String lastModified = response.header("last-modified");
+
+        TestClient.Response notModified = get(address, "/big.bin", "If-None-Match: " + eTag);
+        Check.equal(304, notModified.status, "If-None-Match matching" + on);
+        Check.equal(eTag, notModified.header("etag"), "304 ETag" + on);
+        Check.equal(304, get(address, "/big.bin", "If-None-Match: \"other\", W/" + eTag).status, "weak tag in a list" + on);
+        Check.equal(304, get(address, "/big.bin", "If-None-Match: *").status, "If-None-Match: *" + on);
+        Check.equal(200, get(address, "/big.bin", "If-None-Match: \"other\"").status, "If-None-Match not matching" + on);
+        Check.equal(200, get(address, "/big.bin", "If-None-Match: \"other\"", "If-Modified-Since: " + lastModified).status,
+                "If-None-Match takes precedence" + on);
+
+        Check.equal(304, get(address, "/big.bin", "If-Modified-Since: " + lastModified).status, "If-Modified-Since" + on);
+        Check.equal(200, get(address, "/big.bin", "If-Modified-Since: Thu, 01 Jan 1970 00:00:00 GMT").status,
+                "modified since" + on);
+        Check.equal(200, get(address, "/big.bin", "If-Modified-Since: yesterday").status, "unparseable date ignored" + on);
+    }
+
+    /**
+     * Replaces a file that was served (and, in MMAP mode, mapped), then reads it again.
+     */
+    private static void replaced(InetSocketAddress address, String on) throws IOException {
+
+        String eTag = get(address, "/big.bin").header("etag");
+        String content = "replaced\n";
+        Check.equal(201, TestClient.exchange(address, "POST /big.bin HTTP/1.1\r\nContent-Length: " + content.length()
+                + "\r\nConnection: close\r\n\r\n" + content).status, "upload" + on);
+
+        TestClient.Response response = get(address, "/big.bin", "If-None-Match: " + eTag);
+        Check.equal(200, response.status, "old ETag no longer matches" + on);
+        Check.equal(content, response.text(), "replaced content" + on);
+    }
+
+    private static void uploads(InetSocketAddress address, Path root, Engine engine, String on) throws Exception {
+
+        Check.equal(201, post(address, "/new/dir/a.txt", "hello\n".getBytes(StandardCharsets.UTF_8)).status, "upload in new directories" + on);
+        Check.equal("hello\n", get(address, "/new/dir/a.txt").text(), "uploaded content" + on);
+
+        // larger than what the NIO engine keeps in memory, received in several buffers
+        byte[] large = new byte[5 << 20];
+        new Random(7).nextBytes(large);
+        Check.equal(201, post(address, "/large.bin", large).status, "large upload" + on);
+        Check.equal(large, get(address, "/large.bin").body, "large uploaded content" + on);
+
+        Thread[] uploaders = new Thread[4];
+        byte[][] contents = new byte[uploaders.length][];
+        int[] statuses = new int[uploaders.length];
+        for (int i = 0; i < uploaders.length; ++i) {
+            int index = i;
+            contents[i] = new byte[(1 << 20) + i];
+            new Random(i).nextBytes(contents[i]);
+            uploaders[i] = new Thread(() -> {
+                try {
+                    statuses[index] = post(address, "/concurrent/" + index + ".bin", contents[index]).status;
+                }
+                catch (IOException e) {
+                    statuses[index] = -1;
+                }
+            });
+            uploaders[i].start();
+        }
+        for (int i = 0; i < uploaders.length; ++i) {
+            uploaders[i].join();
+            Check.equal(201, statuses[i], "concurrent upload " + i + on);
+            Check.equal(contents[i], get(address, "/concurrent/" + i + ".bin").body, "concurrent upload content " + i + on);
+        }
+
+        try (TestClient client = new TestClient(address)) {
+            client.send("POST /continued.txt HTTP/1.1\r\nContent-Length: 3\r\nExpect: 100-continue\r\n\r\n");
+            Check.equal(100, client.read().status, "100 Continue before the body" + on);
+            client.send("abc");
+            Check.equal(201, client.read().status, "upload after 100 Continue" + on);
+        }
+        Check.equal("abc", get(address, "/continued.txt").text(), "content sent after 100 Continue" + on);
+
+        Check.equal(403, post(address, "/new/dir", new byte[1]).status, "a directory is not replaced" + on);
+        Check.that(Files.isDirectory(root.resolve("new/dir")), "directory still there" + on);
+        Check.equal(403, post(address, "/", new byte[1]).status, "the root is not replaced" + on);
+        Check.equal(403, post(address, "/../outside.txt", new byte[1]).status, "no upload outside the root" + on);
+
+        // the blocking engine hands the body to the handler as it arrives: the connection is closed once
+        // the handler receives it in a hidden file next to the target; the NIO engine buffers it first
+        try (TestClient client = new TestClient(address)) {
+            client.send("POST /aborted.txt HTTP/1.1\r\nContent-Length: 1000\r\n\r\nonly part of it");
+            if (engine == Engine.BLOCKING) {
+                Check.that(waitFor(root, true), "upload file created" + on);
+            }
+        }
+        Check.that(waitFor(root, false), "aborted upload leaves no file" + on);
+        Check.that(!Files.exists(root.resolve("aborted.txt")), "aborted upload does not replace the target" + on);
+        Check.equal(404, get(address, "/aborted.txt").status, "aborted upload not served" + on);
+    }
+
+    /**
+     * Waits up to 5 seconds for the upload file of aborted.txt to exist, or to be gone.
+     */
+    private static boolean waitFor(Path root, boolean exists) throws IOException, InterruptedException {
+        for (int attempt = 0; attempt < 50; ++attempt) {
+            try (Stream<Path> files = Files.list(root)) {
+                if (files.anyMatch(file -> file.getFileName().toString().startsWith(".aborted.txt.")) == exists) {
+                    return true;
+                }
+            }
+            Thread.sleep(100);
+        }
+        return false;
+    }
+
+    private static TestClient.Response post(InetSocketAddress address, String path, byte[] content) throws IOException {
+        try (TestClient client = new TestClient(address)) {
+            client.send("POST " + path + " HTTP/1.1\r\nContent-Length: " + content.length + "\r\nConnection: close\r\n\r\n");
+            client.send(content);
+            return client.read();
+        }
+    }
+
+    private static TestClient.Response get(InetSocketAddress address, String path, String... headers) throws IOException {
+        StringBuilder request = new StringBuilder("GET ").append(path).append(" HTTP/1.1\r\n");
+        for (String header : headers) {
+            request.append(header).append("\r\n");
+        }
+        return TestClient.exchange(address, request.append("Connection: close\r\n\r\n").toString());
+    }
+}
@@ -0,0 +1,146 @@
+package test;
+
+/**
+ * Histogram of latencies in microseconds, with buckets laid out as in HdrHistogram: values are
+ * kept with a fixed relative precision (3 significant digits) from 1 us up to an hour, in a
+ * constant amount of memory, so recording costs a few instructions and no allocation.
+ *
+ * Not thread-safe: record into one histogram per thread, then add() them together.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 11; // 2048 sub-buckets: better than 0.1% precision
+    private static final int SUB_BUCKET_HALF_COUNT_MAGNITUDE = SUB_BUCKET_BITS - 1;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF_COUNT = SUB_BUCKET_COUNT / 2;
+    private static final long SUB_BUCKET_MASK = SUB_BUCKET_COUNT - 1;
+    private static final int LEADING_ZERO_COUNT_BASE = 64 - SUB_BUCKET_HALF_COUNT_MAGNITUDE - 1;
+
+    public static final long MAX_VALUE = 3_600_000_000L; // one hour
+
+    private final long[] counts;
+    private long totalCount;
+    private long min = Long.MAX_VALUE;
+    private long max;
+    private double sum;
+
+    public LatencyHistogram() {
+        int bucketCount = 1;
+        while (((long) SUB_BUCKET_COUNT << (bucketCount - 1)) <= MAX_VALUE) {
+            ++bucketCount;
+        }
+        counts = new long[(bucketCount + 1) * SUB_BUCKET_HALF_COUNT];
+    }
+
+    /**
+     * Records a latency; values above MAX_VALUE are recorded as MAX_VALUE.
+     */
+    public void record(long micros) {
+        record(micros, 1);
+    }
+
+    private void record(long micros, long count) {
+        long value = Math.max(0, Math.min(micros, MAX_VALUE));
+        counts[countsIndex(value)] += count;
+        totalCount += count;
+        sum += (double) value * count;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    /**
+     * Records a latency measured by a client that waits for each response before sending the next
+     * request (closed loop), correcting for coordinated omission: while that response was late,
+     * the requests that should have been sent every expectedInterval were not, and would have
+     * waited as well. Their latencies are added, as HdrHistogram's recordValueWithExpectedInterval does.
+     */
+    public void recordCorrected(long micros, long expectedIntervalMicros) {
+        recordCorrected(micros, 1, expectedIntervalMicros);
+    }
+
+    private void recordCorrected(long micros, long count, long expectedIntervalMicros) {
+        record(micros, count);
+        if (expectedIntervalMicros <= 0) {
+            return;
+        }
+        for (long missed = micros - expectedIntervalMicros; missed >= expectedIntervalMicros; missed -= expectedIntervalMicros) {
+            record(missed, count);
+        }
+    }
+
+    /**
+     * Returns a copy of this histogram of uncorrected latencies, corrected as if each value had been
+     * recorded with recordCorrected(), like HdrHistogram's copyCorrectedForCoordinatedOmission.
+     */
+    public LatencyHistogram copyCorrected(long expectedIntervalMicros) {
+        LatencyHistogram corrected = new LatencyHistogram();
+        for (int i = 0; i < counts.length; ++i) {
+            if (counts[i] > 0) {
+                corrected.recordCorrected(Math.min(highestEquivalentValue(i), max), counts[i], expectedIntervalMicros);
+            }
+        }
+        return corrected;
+    }
+
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length; ++i) {
+            counts[i] += other.counts[i];
+        }
+        totalCount += other.totalCount;
+        sum += other.sum;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    public long getMin() {
+        return (totalCount == 0) ? 0 : min;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return (totalCount == 0) ? 0 : sum / totalCount;
+    }
+
+    /**
+     * Returns the latency below or at which the given percentage of the values fall, e.g. 99.9,
+     * as the highest value equivalent to it within the histogram precision.
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (totalCount == 0) {
+            return 0;
+        }
+        long countAtPercentile = Math.max(1, (long) Math.ceil(Math.min(percentile, 100.0) / 100.0 * totalCount));
+        long cumulative = 0;
+        for (int i = 0; i < counts.length; ++i) {
+            cumulative += counts[i];
+            if (cumulative >= countAtPercentile) {
+                return Math.min(highestEquivalentValue(i), max);
+            }
+        }
+        return max;
+    }
+
+    private static int countsIndex(long value) {
+        int bucketIndex = LEADING_ZERO_COUNT_BASE - Long.numberOfLeadingZeros(value | SUB_BUCKET_MASK);
+        int subBucketIndex = (int) (value >>> bucketIndex);
+        return ((bucketIndex + 1) << SUB_BUCKET_HALF_COUNT_MAGNITUDE) + (subBucketIndex - SUB_BUCKET_HALF_COUNT);
+    }
+
+    private static long highestEquivalentValue(int index) {
+        int bucketIndex = (index >> SUB_BUCKET_HALF_COUNT_MAGNITUDE) - 1;
+        int subBucketIndex = (index & (SUB_BUCKET_HALF_COUNT - 1)) + SUB_BUCKET_HALF_COUNT;
+        if (bucketIndex < 0) {
+            subBucketIndex -= SUB_BUCKET_HALF_COUNT;
+            bucketIndex = 0;
+        }
+        long lowest = (long) subBucketIndex << bucketIndex;
+        return lowest + (1L << bucketIndex) - 1;
+    }
+}
@@ -0,0 +1,586 @@
+package test;
+
+import http.Engine;
+import http.HttpServer;
+import main.HttpFileServer;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+
+/**
+ * End-to-end load generator: a number of client connections send a weighted mix of requests to
+ * an HttpServer on loopback, started in-process over a generated directory unless an address is
+ * given, and the latencies are reported as percentiles.
+ *
+ * Closed loop (the default), each connection sends its next request as soon as it has the
+ * response: the server sets the pace, and a stall delays the requests that would have been sent
+ * meanwhile instead of measuring them (coordinated omission). The corrected percentiles add
+ * those requests back, taking the mean service time as the interval at which they were due.
+ *
+ * Open loop (-r), requests are due at a fixed rate whatever the server does, and their latency
+ * is measured from the time they were due, so a stall shows up in every request it delays.
+ * The service time, from the time a request was actually sent, is reported as well.
+ *
+ * usage: java test.LoadGenerator [-a HOST:PORT | -e ENGINE [-d DIR]] [-c CONNECTIONS] [-t SECONDS]
+ *                                [-u SECONDS] [-r RATE] [-k on|off] [-m MIX]
+ */
+public class LoadGenerator {
+
+    private static final String USAGE = "\nusage: java test.LoadGenerator [-a HOST:PORT | -e ENGINE [-d DIR]] [-c CONNECTIONS] [-t SECONDS]\n" +
+            "                               [-u SECONDS] [-r RATE] [-k on|off] [-m MIX]\n\n" +
+            "  -a  address of a running server; by default one is started on a free loopback port\n" +
+            "  -e  engine of the started server, blocking or nio (default nio)\n" +
+            "  -d  root directory of the started server (default: a generated one, see the default mix)\n" +
+            "  -c  number of connections (default 16)\n" +
+            "  -t  seconds measured (default 10)\n" +
+            "  -u  seconds of warmup before, not measured (default 2)\n" +
+            "  -r  open loop: requests per second over all connections (default: closed loop)\n" +
+            "  -k  persistent connections, on or off (default on)\n" +
+            "  -m  request mix, comma-separated WEIGHT:GET:PATH or WEIGHT:POST:PATH:BYTES entries\n" +
+            "      (default " + "%s" + ")\n";
+
+    private static final String DEFAULT_MIX = "50:GET:/small.txt,20:GET:/medium.json,5:GET:/large.bin,10:GET:/dir,15:POST:/upload/data.txt:4096";
+    private static final int DIRECTORY_ENTRIES = 200;
+    private static final double[] PERCENTILES = { 50, 75, 90, 99, 99.9, 99.99, 100 };
+
+    /**
+     * One kind of request of the mix, pre-encoded
+     */
+    private static class RequestType {
+        final String name;
+        final int weight;
+        final byte[] header;
+        final byte[] body;
+
+        RequestType(String name, int weight, byte[] header, byte[] body) {
+            this.name = name;
+            this.weight = weight;
+            this.header = header;
+            this.body = body;
+        }
+    }
+
+    /**
+     * What one connection measured
+     */
+    private static class Results {
+        final LatencyHistogram latency = new LatencyHistogram(); // from the time due, open loop only
+        final LatencyHistogram service = new LatencyHistogram(); // from the time sent
+        final LatencyHistogram[] byType;
+        final long[] statusCounts = new long[600];
+        long errors;
+        long connects;
+        long lastDone; // time the last measured response was complete, relative to the start of the measure once totalled
+
+        Results(int types) {
+            byType = new LatencyHistogram[types];
+            for (int i = 0; i < types; ++i) {
+                byType[i] = new LatencyHistogram();
+            }
+        }
+
+        void add(Results other) {
+            latency.add(other.latency);
+            service.add(other.service);
+            for (int i = 0; i < byType.length; ++i) {
+                byType[i].add(other.byType[i]);
+            }
+            for (int i = 0; i < statusCounts.length; ++i) {
+                statusCounts[i] += other.statusCounts[i];
+            }
+            errors += other.errors;
+            connects += other.connects;
+            lastDone = Math.max(lastDone, other.lastDone);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        CommandLine options;
+        try {
+            options = new DefaultParser().parse(getParserOptions(), args);
+        }
+        catch (ParseException e) {
+            System.out.println(e.getMessage());
+            System.out.printf(USAGE, DEFAULT_MIX);
+            return;
+        }
+
+        int connections = Integer.parseInt(options.getOptionValue('c', "16"));
+        int seconds = Integer.parseInt(options.getOptionValue('t', "10"));
+        int warmupSeconds = Integer.parseInt(options.getOptionValue('u', "2"));
+        double rate = Double.parseDouble(options.getOptionValue('r', "0"));
+        boolean keepAlive = !options.getOptionValue('k', "on").equalsIgnoreCase("off");
+        String mix = options.getOptionValue('m', DEFAULT_MIX);
+
+        Path generatedDir = null;
+        HttpServer server = null;
+        InetSocketAddress address;
+        if (options.hasOption('a')) {
+            String[] hostAndPort = options.getOptionValue('a').split(":");
+            address = new InetSocketAddress(hostAndPort[0], Integer.parseInt(hostAndPort[1]));
+        }
+        else {
+            String rootDir = options.getOptionValue('d');
+            if (rootDir == null) {
+                generatedDir = generateFiles();
+                rootDir = generatedDir.toString();
+            }
+            Engine engine = Engine.valueOf(options.getOptionValue('e', "nio").toUpperCase(Locale.ROOT));
+            address = new InetSocketAddress("127.0.0.1", getFreePort());
+            server = startServer(address, engine, rootDir);
+            System.out.printf("%s server on %s, root directory %s%n", engine, address, rootDir);
+        }
+
+        try {
+            List<RequestType> types = parseMix(mix, address, keepAlive);
+            System.out.printf("%d connections, %s, keep-alive %s, %ds (+%ds warmup)%n%n", connections,
+                    (rate > 0) ? String.format("open loop at %.0f requests/s", rate) : "closed loop",
+                    keepAlive ? "on" : "off", seconds, warmupSeconds);
+
+            Results results = run(address, types, connections, rate, keepAlive, warmupSeconds, seconds);
+            report(results, types, rate, seconds);
+        }
+        finally {
+            if (generatedDir != null) {
+                deleteRecursively(generatedDir);
+            }
+        }
+        if (server != null) {
+            System.exit(0); // the server cannot be stopped, and its handler threads would keep running
+        }
+    }
+
+    private static Results run(InetSocketAddress address, List<RequestType> types, int connections, double rate,
+                               boolean keepAlive, int warmupSeconds, int seconds) throws InterruptedException {
+
+        long start = System.nanoTime();
+        long measureStart = start + warmupSeconds * 1_000_000_000L;
+        long end = measureStart + seconds * 1_000_000_000L;
+        long interval = (rate > 0) ? (long) (connections * 1e9 / rate) : 0; // per connection
+
+        Results[] connectionResults = new Results[connections];
+        Thread[] clients = new Thread[connections];
+        for (int c = 0; c < connections; ++c) {
+            Results results = connectionResults[c] = new Results(types.size());
+            long firstDue = start + interval * c / connections; // spread the connections over the interval
+            clients[c] = new Thread(() -> new Client(address, types, keepAlive, results).run(firstDue, interval, measureStart, end),
+                    "load-generator-" + c);
+            clients[c].start();
+        }
+
+        Results total = new Results(types.size());
+        for (int c = 0; c < connections; ++c) {
+            clients[c].join();
+            total.add(connectionResults[c]);
+        }
+        total.lastDone -= measureStart;
+        return total;
+    }
+
+    /**
+     * One connection, reopened when the server closes it or keep-alive is off
+     */
+    private static class Client {
+
+        private final InetSocketAddress address;
+        private final List<RequestType> types;
+        private final int totalWeight;
+        private final boolean keepAlive;
+        private final Results results;
+        private final byte[] buffer = new byte[65536];
+        private Socket socket;
+        private InputStream in;
+        private OutputStream out;
+
+        Client(InetSocketAddress address, List<RequestType> types, boolean keepAlive, Results results) {
+            this.address = address;
+            this.types = types;
+            this.totalWeight = types.stream().mapToInt(type -> type.weight).sum();
+            this.keepAlive = keepAlive;
+            this.results = results;
+        }
+
+        void run(long firstDue, long interval, long measureStart, long end) {
+
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            long due = firstDue;
+            try {
+                while (true) {
+                    long sent;
+                    if (interval > 0) {
+                        if (due >= end) break;
+                        long now;
+                        while ((now = System.nanoTime()) < due) {
+                            LockSupport.parkNanos(due - now);
+                        }
+                        sent = now;
+                    }
+                    else {
+                        sent = due = System.nanoTime();
+                        if (sent >= end) break;
+                    }
+
+                    int type = pick(random.nextInt(totalWeight));
+                    int status = send(types.get(type));
+                    long done = System.nanoTime();
+
+                    if (due >= measureStart) {
+                        results.lastDone = done;
+                        if (status < 0) {
+                            ++results.errors;
+                        }
+                        else {
+                            ++results.statusCounts[status];
+                            long latency = (done - due) / 1000;
+                            results.service.record((done - sent) / 1000);
+                            results.latency.record(latency);
+                            results.byType[type].record(latency);
+                        }
+                    }
+                    due += interval;
+                }
+            }
+            finally {
+                disconnect();
+            }
+        }
+
+        private int pick(int value) {
+            for (int i = 0; i < types.size(); ++i) {
+                value -= types.get(i).weight;
+                if (value < 0) return i;
+            }
+            return types.size() - 1;
+        }
+
+        /**
+         * Sends the request and reads the whole response, returning its status code, or -1 on an
+         * I/O error. A request on a reused connection is sent again on a new one if the server
+         * closed it before answering (when it timed out while idle, typically).
+         */
+        private int send(RequestType type) {
+            for (int attempt = 0; attempt < 2; ++attempt) {
+                boolean reused = socket != null;
+                try {
+                    if (socket == null) {
+                        connect();
+                    }
+                    out.write(type.header);
+                    out.write(type.body);
+                    out.flush();
+                    return readResponse();
+                }
+                catch (EOFException e) {
+                    disconnect();
+                    if (!reused) return -1;
+                }
+                catch (IOException e) {
+                    disconnect();
+                    return -1;
+                }
+            }
+            return -1;
+        }
+
+        private void connect() throws IOException {
+            socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.connect(address);
+            in = new BufferedInputStream(socket.getInputStream(), buffer.length);
+            out = new BufferedOutputStream(socket.getOutputStream());
+            ++results.connects;
+        }
+
+        private void disconnect() {
+            if (socket != null) {
+                try {
+                    socket.close();
+                }
+                catch (IOException ignored) {
+                }
+                socket = null;
+            }
+        }
+
+        /**
+         * Reads the status line and headers, then the body as delimited by Content-Length, by
+         * chunked encoding or by the end of the connection.
+         */
+        private int readResponse() throws IOException {
+
+            String statusLine = readLine();
+            if (statusLine == null) {
+                throw new EOFException(); // closed before answering
+            }
+            int status = Integer.parseInt(statusLine.split(" ", 3)[1]);
+
+            long contentLength = -1;
+            boolean chunked = false;
+            boolean close = !keepAlive || statusLine.startsWith(HttpServer.VERSION_1_0);
+            String line;
+            while ((line = readLine()) != null && !line.isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon < 0) continue;
+                String name = line.substring(0, colon).trim();
+                String value = line.substring(colon + 1).trim();
+                if (name.equalsIgnoreCase("Content-Length")) {
+                    contentLength = Long.parseLong(value);
+                }
+                else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+                    chunked = value.equalsIgnoreCase("chunked");
+                }
+                else if (name.equalsIgnoreCase("Connection")) {
+                    close = value.equalsIgnoreCase("close") || (close && !value.equalsIgnoreCase("keep-alive"));
+                }
+            }
+            if (line == null) {
+                throw new IOException("Connection closed in the response header");
+            }
+
+            if (chunked) {
+                long size;
+                while ((size = Long.parseLong(readLine().split(";", 2)[0].trim(), 16)) > 0) {
+                    skip(size);
+                    readLine();
+                }
+                while ((line = readLine()) != null && !line.isEmpty()) {
+                    // trailer
+                }
+            }
+            else if (contentLength >= 0) {
+                skip(contentLength);
+            }
+            else {
+                while (in.read(buffer) != -1) {
+                    // until the server closes
+                }
+                close = true;
+            }
+
+            if (close) {
+                disconnect();
+            }
+            return status;
+        }
+
+        private void skip(long count) throws IOException {
+            while (count > 0) {
+                int read = in.read(buffer, 0, (int) Math.min(count, buffer.length));
+                if (read == -1) {
+                    throw new IOException("Connection closed in the response body");
+                }
+                count -= read;
+            }
+        }
+
+        private String readLine() throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+            int b;
+            while ((b = in.read()) != '\n') {
+                if (b == -1) {
+                    return (line.size() == 0) ? null : line.toString(StandardCharsets.ISO_8859_1);
+                }
+                if (b != '\r') {
+                    line.write(b);
+                }
+            }
+            return line.toString(StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    private static void report(Results results, List<RequestType> types, double rate, int seconds) {
+
+        // an overloaded server answers the last requests due in the measure after its end
+        long completed = results.service.getTotalCount();
+        double elapsed = Math.max(seconds, results.lastDone / 1e9);
+        double throughput = completed / elapsed;
+        System.out.printf("%d requests, %.0f requests/s, %d errors, %d connections opened%n",
+                completed, throughput, results.errors, results.connects);
+        StringBuilder statuses = new StringBuilder("status codes:");
+        for (int status = 0; status < results.statusCounts.length; ++status) {
+            if (results.statusCounts[status] > 0) {
+                statuses.append(' ').append(status).append(" x").append(results.statusCounts[status]);
+            }
+        }
+        System.out.println(statuses);
+        if (completed == 0) {
+            return;
+        }
+        if (rate > 0 && throughput < rate * 0.95) {
+            System.out.printf("warning: the target rate was not reached, add connections or lower -r%n");
+        }
+
+        LatencyHistogram latency;
+        String latencyName;
+        if (rate > 0) {
+            latency = results.latency;
+            latencyName = "latency";
+        }
+        else {
+            latency = results.service.copyCorrected(Math.round(results.service.getMean()));
+            latencyName = "corrected";
+        }
+
+        System.out.printf("%n%-10s %12s %12s%n", "percentile", latencyName + " (us)", "service (us)");
+        for (double percentile : PERCENTILES) {
+            System.out.printf("%-10s %12d %12d%n", (percentile == 100) ? "max" : percentile,
+                    latency.getValueAtPercentile(percentile), results.service.getValueAtPercentile(percentile));
+        }
+        System.out.printf("%-10s %12.0f %12.0f%n", "mean", latency.getMean(), results.service.getMean());
+
+        System.out.printf("%n%-36s %10s %12s %12s %12s%n", "request", "count", "p50 (us)", "p99 (us)", "max (us)");
+        for (int i = 0; i < types.size(); ++i) {
+            LatencyHistogram histogram = results.byType[i];
+            System.out.printf("%-36s %10d %12d %12d %12d%n", types.get(i).name, histogram.getTotalCount(),
+                    histogram.getValueAtPercentile(50), histogram.getValueAtPercentile(99), histogram.getMax());
+        }
+    }
+
+    private static List<RequestType> parseMix(String mix, InetSocketAddress address, boolean keepAlive) {
+
+        List<RequestType> types = new ArrayList<>();
+        for (String entry : mix.split(",")) {
+            String[] fields = entry.trim().split(":");
+            if (fields.length < 3) {
+                throw new IllegalArgumentException("Invalid request mix entry: " + entry);
+            }
+            int weight = Integer.parseInt(fields[0]);
+            String method = fields[1].toUpperCase(Locale.ROOT);
+            String path = fields[2];
+            int bodySize = (fields.length > 3) ? Integer.parseInt(fields[3]) : 0;
+            if (weight <= 0 || !(method.equals("GET") || method.equals("POST")) || (method.equals("POST") && fields.length < 4)) {
+                throw new IllegalArgumentException("Invalid request mix entry: " + entry);
+            }
+
+            StringBuilder header = new StringBuilder()
+                    .append(method).append(' ').append(path).append(' ').append(HttpServer.VERSION_1_1).append("\r\n")
+                    .append("Host: ").append(address.getHostString()).append(':').append(address.getPort()).append("\r\n");
+            if (!keepAlive) {
+                header.append("Connection: close\r\n");
+            }
+            byte[] body = new byte[bodySize];
+            if (method.equals("POST")) {
+                header.append("Content-Type: text/plain\r\n").append("Content-Length: ").append(bodySize).append("\r\n");
+                for (int i = 0; i < bodySize; ++i) {
+                    body[i] = (byte) ('a' + ThreadLocalRandom.current().nextInt(26));
+                }
+            }
+            header.append("\r\n");
+
+            String name = method + " " + path + (method.equals("POST") ? " (" + bodySize + " bytes)" : "");
+            types.add(new RequestType(name, weight, header.toString().getBytes(StandardCharsets.ISO_8859_1), body));
+        }
+        return types;
+    }
+
+    /**
+     * Files of the default mix: text, JSON, binary, and a directory to list
+     */
+    private static Path generateFiles() throws IOException {
+
+        Path root = Files.createTempDirectory("load-generator");
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        StringBuilder text = new StringBuilder();
+        while (text.length() < 1024) {
+            text.append("The quick brown fox jumps over the lazy dog ").append(text.length()).append('\n');
+        }
+        Files.writeString(root.resolve("small.txt"), text, StandardCharsets.UTF_8);
+
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; json.length() < 64 * 1024; ++i) {
+            json.append((i > 0) ? "," : "").append("{\"id\":").append(i).append(",\"value\":").append(random.nextInt()).append('}');
+        }
+        Files.writeString(root.resolve("medium.json"), json.append("]\n"), StandardCharsets.UTF_8);
+
+        byte[] binary = new byte[1 << 20];
+        random.nextBytes(binary);
+        Files.write(root.resolve("large.bin"), binary);
+
+        Path dir = Files.createDirectory(root.resolve("dir"));
+        for (int i = 0; i < DIRECTORY_ENTRIES; ++i) {
+            Files.writeString(dir.resolve("file" + i + ".txt"), "file " + i + "\n", StandardCharsets.UTF_8);
+        }
+        Files.createDirectory(root.resolve("upload"));
+        return root;
+    }
+
+    private static HttpServer startServer(InetSocketAddress address, Engine engine, String rootDir) throws InterruptedException {
+
+        HttpServer server = new HttpServer.Builder(address.getPort(), new HttpFileServer(rootDir))
+                .engine(engine)
+                .build();
+        Thread thread = new Thread(() -> {
+            try {
+                server.run();
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, "load-generator-server");
+        thread.setDaemon(true);
+        thread.start();
+
+        // wait until it accepts connections
+        while (true) {
+            try (Socket probe = new Socket()) {
+                probe.connect(address);
+                return server;
+            }
+            catch (IOException e) {
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    private static int getFreePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void deleteRecursively(Path root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    private static Options getParserOptions() {
+        return new Options()
+                .addOption(Option.builder("a").hasArg().argName("HOST:PORT").desc("address of a running server").build())
+                .addOption(Option.builder("e").hasArg().argName("ENGINE").desc("engine of the started server").build())
+                .addOption(Option.builder("d").hasArg().argName("DIR").desc("root directory of the started server").build())
+                .addOption(Option.builder("c").hasArg().argName("CONNECTIONS").desc("number of connections").build())
+                .addOption(Option.builder("t").hasArg().argName("SECONDS").desc("seconds measured").build())
+                .addOption(Option.builder("u").hasArg().argName("SECONDS").desc("seconds of warmup").build())
+                .addOption(Option.builder("r").hasArg().argName("RATE").desc("requests per second, open loop").build())
+                .addOption(Option.builder("k").hasArg().argName("on|off").desc("persistent connections").build())
+                .addOption(Option.builder("m").hasArg().argName("MIX").desc("request mix").build());
+    }
+}
@@ -1,25 +1,23 @@
 package test;
 
+import http.HttpDate;
 import http.HttpRequest;
 import http.HttpRequestHandler;
 import http.HttpResponse;
 import http.HttpServer;
 
-import java.time.ZonedDateTime;
-import java.time.format.DateTimeFormatter;
+import java.nio.charset.StandardCharsets;
 
 public class MockHttpRequestHandler implements HttpRequestHandler {
     @Override
     public HttpResponse handleRequest(HttpRequest httpRequest) {
 
-        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss O");
-
         String responseBody = "We received your request. Thank you!: \n" + httpRequest.getEntityBody();
 
         return new HttpResponse.Builder(HttpServer.VERSION_1_0)
-                .date(formatter.format(ZonedDateTime.now()))
+                .date(HttpDate.now())
                 .statusCodeAndReasonPhrase(HttpResponse.OK_200)
-                .contentLength(responseBody.getBytes().length)
+                .contentLength(responseBody.getBytes(StandardCharsets.UTF_8).length)
                 .entityBody(responseBody)
                 .build();
     }
@@ -0,0 +1,102 @@
+package test;
+
+import main.PathLockTable;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PathLockTable: readers share a path, a writer excludes readers and writers of its paths only,
+ * and writers locking the same paths in opposite orders, or paths on the same stripe, do not
+ * deadlock.
+ *
+ * usage: java test.PathLockTableTest
+ */
+public class PathLockTableTest {
+
+    private static final long WAIT_MILLIS = 200;
+
+    private static final Path DIRECTORY = Paths.get("/srv/files/docs");
+    private static final Path FILE = DIRECTORY.resolve("a.txt");
+    private static final Path OTHER_FILE = Paths.get("/srv/files/images/b.png");
+
+    public static void main(String[] args) {
+        Check.run("PathLockTableTest", () -> {
+            exclusion(new PathLockTable());
+            deadlocks(new PathLockTable());
+            deadlocks(new PathLockTable(1)); // every path on the same stripe
+        });
+    }
+
+    private static void exclusion(PathLockTable table) throws Exception {
+
+        PathLockTable.Locks read = table.lockForReading(FILE);
+        Check.that(completes(() -> table.lockForReading(FILE).close()), "readers share a path");
+        Thread writer = start(() -> table.lockForWriting(DIRECTORY, FILE).close());
+        Check.that(isBlocked(writer), "a writer waits for the reader");
+        read.close();
+        Check.that(joins(writer), "the writer gets the path once the reader is done");
+
+        PathLockTable.Locks write = table.lockForWriting(DIRECTORY, FILE);
+        Thread reader = start(() -> table.lockForReading(FILE).close());
+        Thread lister = start(() -> table.lockForReading(DIRECTORY).close());
+        Check.that(isBlocked(reader), "a reader waits for the writer");
+        Check.that(isBlocked(lister), "a listing waits for the writer of an entry");
+        Check.that(completes(() -> table.lockForReading(OTHER_FILE).close()), "an unrelated path is not locked");
+        Check.that(completes(() -> table.lockForWriting(OTHER_FILE.getParent(), OTHER_FILE).close()), "an unrelated path can be written");
+        write.close();
+        Check.that(joins(reader) && joins(lister), "readers get the paths once the writer is done");
+    }
+
+    private static void deadlocks(PathLockTable table) throws Exception {
+
+        int rounds = 10_000;
+        CountDownLatch start = new CountDownLatch(1);
+        Thread forward = start(() -> {
+            start.await();
+            for (int i = 0; i < rounds; ++i) {
+                table.lockForWriting(FILE, OTHER_FILE).close();
+            }
+        });
+        Thread backward = start(() -> {
+            start.await();
+            for (int i = 0; i < rounds; ++i) {
+                table.lockForWriting(OTHER_FILE, FILE, OTHER_FILE).close();
+            }
+        });
+        start.countDown();
+        forward.join(TimeUnit.SECONDS.toMillis(10));
+        backward.join(TimeUnit.SECONDS.toMillis(10));
+        Check.that(!forward.isAlive() && !backward.isAlive(), "writers locking paths in opposite orders do not deadlock");
+    }
+
+    private static boolean completes(Check.Body body) throws InterruptedException {
+        return joins(start(body));
+    }
+
+    private static Thread start(Check.Body body) {
+        Thread thread = new Thread(() -> {
+            try {
+                body.run();
+            }
+            catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private static boolean isBlocked(Thread thread) throws InterruptedException {
+        thread.join(WAIT_MILLIS);
+        return thread.isAlive();
+    }
+
+    private static boolean joins(Thread thread) throws InterruptedException {
+        thread.join(TimeUnit.SECONDS.toMillis(5));
+        return !thread.isAlive();
+    }
+}
@@ -0,0 +1,171 @@
+package test;
+
+import http.Engine;
+import http.HttpRequest;
+import http.HttpRequestFormatException;
+import http.HttpRequestHeaderTooLargeException;
+import http.HttpRequestParser;
+import http.HttpRequestTooLargeException;
+import http.HttpRequestUnsupportedVersionException;
+import http.HttpServer;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Request parsing: the incremental parser on complete, fragmented, pipelined and ill-formed
+ * requests, then the status codes both engines answer for ill-formed requests and requests
+ * crossing the limits (400, 505, 413, 431, 408).
+ *
+ * usage: java test.RequestParsingTest
+ */
+public class RequestParsingTest {
+
+    private static final String BROWSER_GET =
+            "GET /docs/report.json?offset=100 HTTP/1.1\r\n" +
+            "Host: localhost:8080\r\n" +
+            "Accept-Encoding: gzip\r\n" +
+            "accept-encoding: deflate\r\n" +
+            "If-None-Match:   \"1a95e\"  \r\n\r\n";
+
+    public static void main(String[] args) {
+        Check.run("RequestParsingTest", () -> {
+            parser();
+            limits();
+            for (Engine engine : Engine.values()) {
+                server(engine);
+            }
+        });
+    }
+
+    private static void parser() throws Exception {
+
+        HttpRequest request = parse(new HttpRequestParser(), BROWSER_GET);
+        Check.equal("GET", request.getMethod(), "method");
+        Check.equal("/docs/report.json", request.getPath(), "path");
+        Check.equal("100", request.getQueryParameter("offset"), "query parameter");
+        Check.equal(HttpServer.VERSION_1_1, request.getHttpVersion(), "version");
+        Check.equal("localhost:8080", request.getHeader("host"), "header value");
+        Check.equal("gzip, deflate", request.getHeader("accept-encoding"), "repeated header, names in any case");
+        Check.equal("\"1a95e\"", request.getHeader("if-none-match"), "whitespace around a value");
+
+        // one byte at a time, as the slowest client would send it
+        HttpRequestParser parser = new HttpRequestParser();
+        byte[] raw = BROWSER_GET.getBytes(StandardCharsets.ISO_8859_1);
+        for (int i = 0; i < raw.length; ++i) {
+            Check.equal(i == raw.length - 1, parser.parse(raw, i, 1), "header complete after byte " + i);
+        }
+        Check.equal(request.toString(), parser.getRequest().toString(), "same request from fragments");
+
+        request = parse(new HttpRequestParser(), "\r\n\nGET / HTTP/1.0\n\n");
+        Check.equal("/", request.getRequestURI(), "empty lines before the request line, bare LF line ends");
+
+        // the parser stops at the end of the header: the body and the next request stay in the buffer
+        parser = new HttpRequestParser();
+        ByteBuffer buffer = ascii("POST /a.txt HTTP/1.1\r\nContent-Length: 5\r\n\r\nhelloGET /b.txt HTTP/1.1\r\n\r\n");
+        Check.that(parser.parse(buffer), "POST header complete");
+        Check.equal(5L, parser.getContentLength(), "content length");
+        Check.equal("hello", next(buffer, 5), "body left in the buffer");
+        parser.reset();
+        Check.that(parser.parse(buffer), "pipelined request complete");
+        Check.equal("/b.txt", parser.getRequest().getRequestURI(), "pipelined request");
+
+        parser = new HttpRequestParser();
+        Check.that(!parser.parse(ascii("GET /a HTTP/1.1\r\nHost: x\r\n")), "incomplete header");
+        Check.equal(null, parser.getRequest(), "no request before the end of the header");
+        Check.that(parser.hasStarted(), "started");
+
+        Check.equal("10", parse(new HttpRequestParser(), "POST /a HTTP/1.1\r\nContent-Length: 10\r\nContent-Length: 10\r\n\r\n")
+                .getHeader("content-length"), "repeated identical Content-Length");
+
+        String[] illFormed = {
+                " GET / HTTP/1.1\r\n\r\n",
+                "GET /\r\n\r\n",
+                "PUT / HTTP/1.1\r\n\r\n",
+                "GET index.html HTTP/1.1\r\n\r\n",
+                "POST / HTTP/1.1\r\n\r\n",
+                "POST / HTTP/1.1\r\nContent-Length: 1x\r\n\r\n",
+                "POST / HTTP/1.1\r\nContent-Length: 1 2\r\n\r\n",
+                "POST / HTTP/1.1\r\nContent-Length:\r\n\r\n",
+                "POST / HTTP/1.1\r\nContent-Length: 1234567890123456789\r\n\r\n",
+                "POST / HTTP/1.1\r\nContent-Length: 10\r\nContent-Length: 11\r\n\r\n",
+                "POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n",
+        };
+        for (String illFormedRequest : illFormed) {
+            Check.raises(HttpRequestFormatException.class, () -> parse(new HttpRequestParser(), illFormedRequest), "ill-formed: " + illFormedRequest.trim());
+        }
+        Check.raises(HttpRequestUnsupportedVersionException.class,
+                () -> parse(new HttpRequestParser(), "GET / HTTP/2.0\r\n\r\n"), "unsupported version");
+    }
+
+    private static void limits() throws Exception {
+
+        Check.raises(HttpRequestTooLargeException.class,
+                () -> parse(new HttpRequestParser(100), "POST / HTTP/1.1\r\nContent-Length: 101\r\n\r\n"), "body over the limit");
+        parse(new HttpRequestParser(100), "POST / HTTP/1.1\r\nContent-Length: 100\r\n\r\n");
+
+        String header = "GET / HTTP/1.1\r\nX-A: " + "a".repeat(100) + "\r\n\r\n";
+        Check.raises(HttpRequestHeaderTooLargeException.class,
+                () -> parse(new HttpRequestParser(0, header.length() - 1, 10), header), "header over the size limit");
+        parse(new HttpRequestParser(0, header.length(), 10), header);
+
+        String lines = "GET / HTTP/1.1\r\nA: 1\r\nB: 2\r\nC: 3\r\n\r\n";
+        Check.raises(HttpRequestHeaderTooLargeException.class,
+                () -> parse(new HttpRequestParser(0, 1000, 2), lines), "header lines over the limit");
+        parse(new HttpRequestParser(0, 1000, 3), lines);
+
+        // the limit is checked as the bytes arrive, not once the header is complete
+        HttpRequestParser parser = new HttpRequestParser(0, 64, 10);
+        Check.raises(HttpRequestHeaderTooLargeException.class,
+                () -> parser.parse(ascii("GET /" + "a".repeat(100))), "size limit crossed in an incomplete header");
+    }
+
+    private static void server(Engine engine) throws Exception {
+
+        InetSocketAddress address = TestServer.start(port -> new HttpServer.Builder(port, new MockHttpRequestHandler())
+                .engine(engine)
+                .maxBodySize(1 << 20)
+                .maxHeader(1024, 10)
+                .headerTimeout(500)
+                .build());
+        String on = " (" + engine + ")";
+
+        Check.equal(200, TestClient.exchange(address, "GET / HTTP/1.1\r\n\r\n").status, "valid request" + on);
+        Check.equal(400, TestClient.exchange(address, "GET /\r\n\r\n").status, "ill-formed request line" + on);
+        Check.equal(400, TestClient.exchange(address, "POST / HTTP/1.1\r\nContent-Length: 1\r\nContent-Length: 2\r\n\r\nab").status,
+                "conflicting Content-Length" + on);
+        Check.equal(400, TestClient.exchange(address, "POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n").status,
+                "chunked request body" + on);
+        Check.equal(505, TestClient.exchange(address, "GET / HTTP/2.0\r\n\r\n").status, "unsupported version" + on);
+        Check.equal(413, TestClient.exchange(address, "POST / HTTP/1.1\r\nContent-Length: " + ((1 << 20) + 1) + "\r\n\r\n").status,
+                "body over the limit" + on);
+        Check.equal(431, TestClient.exchange(address, "GET / HTTP/1.1\r\nX-A: " + "a".repeat(1024) + "\r\n\r\n").status,
+                "header over the size limit" + on);
+        Check.equal(431, TestClient.exchange(address, "GET / HTTP/1.1\r\n" + "A: 1\r\n".repeat(11) + "\r\n").status,
+                "header lines over the limit" + on);
+
+        try (TestClient client = new TestClient(address)) {
+            client.send("GET / HTTP/1.1\r\nHost: loc");
+            long start = System.nanoTime();
+            Check.equal(408, client.read().status, "header not complete in time" + on);
+            Check.that(System.nanoTime() - start < 5_000_000_000L, "408 sent after the header timeout" + on);
+            Check.that(client.isClosedByServer(), "connection closed after 408" + on);
+        }
+    }
+
+    private static HttpRequest parse(HttpRequestParser parser, String raw) throws Exception {
+        Check.that(parser.parse(ascii(raw)), "header complete: " + raw.trim());
+        return parser.getRequest();
+    }
+
+    private static ByteBuffer ascii(String raw) {
+        return ByteBuffer.wrap(raw.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    private static String next(ByteBuffer buffer, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,152 @@
+package test;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Raw HTTP client for the test harnesses: sends bytes exactly as given, so that ill-formed and
+ * partial requests can be sent too, and reads responses delimited by Content-Length, chunked,
+ * or by the end of the connection.
+ */
+final class TestClient implements AutoCloseable {
+
+    static final int TIMEOUT = 10_000; // ms
+
+    static final class Response {
+
+        final int status;
+        final Map<String, String> headers; // lower case names
+        final byte[] body;
+
+        Response(int status, Map<String, String> headers, byte[] body) {
+            this.status = status;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        String header(String name) {
+            return headers.get(name);
+        }
+
+        String text() {
+            return new String(body, StandardCharsets.UTF_8);
+        }
+    }
+
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+
+    TestClient(InetSocketAddress address) throws IOException {
+        socket = new Socket();
+        socket.connect(address, TIMEOUT);
+        socket.setSoTimeout(TIMEOUT);
+        in = new BufferedInputStream(socket.getInputStream());
+        out = socket.getOutputStream();
+    }
+
+    /**
+     * Sends a request over a new connection and returns the response.
+     */
+    static Response exchange(InetSocketAddress address, String request) throws IOException {
+        try (TestClient client = new TestClient(address)) {
+            client.send(request);
+            return client.read();
+        }
+    }
+
+    void send(String request) throws IOException {
+        send(request.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    void send(byte[] bytes) throws IOException {
+        out.write(bytes);
+        out.flush();
+    }
+
+    Response read() throws IOException {
+
+        String statusLine = readLine();
+        if (statusLine == null) {
+            throw new EOFException("Connection closed before the response");
+        }
+        int status = Integer.parseInt(statusLine.split(" ")[1]);
+
+        Map<String, String> headers = new LinkedHashMap<>();
+        String line;
+        while (!(line = readLine()).isEmpty()) {
+            int colon = line.indexOf(':');
+            headers.merge(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim(), (first, next) -> first + ", " + next);
+        }
+
+        byte[] body;
+        if (status < 200 || status == 204 || status == 304) {
+            body = new byte[0];
+        }
+        else if ("chunked".equalsIgnoreCase(headers.get("transfer-encoding"))) {
+            ByteArrayOutputStream chunks = new ByteArrayOutputStream();
+            int size;
+            while ((size = Integer.parseInt(readLine().split(";")[0].trim(), 16)) > 0) {
+                chunks.write(in.readNBytes(size));
+                readLine();
+            }
+            while (!readLine().isEmpty()) {
+                // trailer
+            }
+            body = chunks.toByteArray();
+        }
+        else if (headers.containsKey("content-length")) {
+            int length = Integer.parseInt(headers.get("content-length"));
+            body = in.readNBytes(length);
+            if (body.length < length) {
+                throw new EOFException("Connection closed in the body: " + body.length + " of " + length + " bytes");
+            }
+        }
+        else {
+            body = in.readAllBytes();
+        }
+        return new Response(status, headers, body);
+    }
+
+    /**
+     * Returns true if the server closed the connection (nothing more to read).
+     */
+    boolean isClosedByServer() throws IOException {
+        try {
+            return in.read() == -1;
+        }
+        catch (IOException e) {
+            return true; // reset
+        }
+    }
+
+    /**
+     * Reads a line without its line end, or returns null at the end of the stream.
+     */
+    private String readLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c == -1) {
+                if (line.length() == 0) return null;
+                throw new EOFException("Connection closed in a line: " + line);
+            }
+            if (c != '\r') line.append((char) c);
+        }
+        return line.toString();
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
@@ -0,0 +1,68 @@
+package test;
+
+import http.HttpServer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.function.IntFunction;
+import java.util.stream.Stream;
+
+/**
+ * Runs an HttpServer over loopback for the test harnesses. The server cannot be stopped: it
+ * runs on a daemon thread until the harness exits.
+ */
+final class TestServer {
+
+    private TestServer() {
+    }
+
+    /**
+     * Builds the server on a free port, starts it, and returns its address once it accepts connections.
+     */
+    static InetSocketAddress start(IntFunction<HttpServer> factory) throws IOException, InterruptedException {
+
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        HttpServer server = factory.apply(port);
+        Thread thread = new Thread(() -> {
+            try {
+                server.run();
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, "test-server-" + port);
+        thread.setDaemon(true);
+        thread.start();
+
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", port);
+        for (int attempt = 0; attempt < 100; ++attempt) {
+            try (Socket socket = new Socket()) {
+                socket.connect(address, 100);
+                return address;
+            }
+            catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+        throw new IOException("Server did not start on " + address);
+    }
+
+    /**
+     * Deletes a directory served by a test server, with its content, once the checks are done.
+     */
+    static void deleteTree(Path root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+}